@@ -0,0 +1,125 @@
+package ziggy.bank.benchmark;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.configuration.WALMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import ziggy.bank.ignite.IgniteInitializer;
+import ziggy.bank.model.Account;
+import ziggy.bank.model.PendingTransferKey;
+import ziggy.bank.model.Transfer;
+import ziggy.bank.service.AccountService;
+import ziggy.bank.service.MoneyTransferService;
+import ziggy.bank.utils.IdGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * In-process Ignite node with {@code accounts} funded accounts. Transfer endpoints are drawn with Zipfian
+ * {@code skew}, so with a high skew most transfers touch a few hot accounts. {@code storage} is either
+ * {@code MEMORY} or the {@link WALMode} of a node with native persistence in a temporary directory. {@code ids} is the
+ * {@link IdGenerator.Type} of accounts and transfers.
+ */
+@State(Scope.Benchmark)
+public class BankState {
+
+    static final long BALANCE = 1_000_000_000_00L;
+    static final long AMOUNT = 1;
+
+    @Param({"100", "10000"})
+    public int accounts;
+
+    @Param({"0", "0.99"})
+    public double skew;
+
+    @Param({"MEMORY"})
+    public String storage;
+
+    @Param({"RANDOM"})
+    public IdGenerator.Type ids;
+
+    Ignite ignite;
+    AccountService accountService;
+    MoneyTransferService moneyTransferService;
+
+    private Path workDirectory;
+    private UUID[] accountIds;
+    private ZipfianGenerator generator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final IgniteInitializer initializer = new IgniteInitializer();
+        if (!"MEMORY".equals(storage)) {
+            workDirectory = Files.createTempDirectory("bank-benchmark");
+            initializer.setPersistenceEnabled(true);
+            initializer.setWorkDirectory(workDirectory.toString());
+            initializer.setWalMode(WALMode.valueOf(storage));
+        }
+        ignite = initializer.init();
+        accountService = new AccountService(ignite);
+        moneyTransferService = new MoneyTransferService(ignite);
+        final IdGenerator idGenerator = IdGenerator.create(ids);
+        accountService.setIdGenerator(idGenerator);
+        moneyTransferService.setIdGenerator(idGenerator);
+
+        accountIds = new UUID[accounts];
+        for (int i = 0; i < accounts; i++) {
+            accountIds[i] = accountService.createAccount(new Account(BALANCE));
+        }
+        generator = new ZipfianGenerator(accounts, skew);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ignite.close();
+        if (workDirectory != null) {
+            try (Stream<Path> paths = Files.walk(workDirectory)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    UUID account() {
+        return accountIds[generator.next()];
+    }
+
+    Transfer transfer() {
+        final UUID accountFrom = account();
+        UUID accountTo = account();
+        while (accountTo.equals(accountFrom)) {
+            accountTo = account();
+        }
+        final Transfer transfer = new Transfer();
+        transfer.setAccountFrom(accountFrom);
+        transfer.setAccountTo(accountTo);
+        transfer.setAmount(AMOUNT);
+        return transfer;
+    }
+
+    List<PendingTransferKey> submit(int count) {
+        final List<PendingTransferKey> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(submit());
+        }
+        return keys;
+    }
+
+    PendingTransferKey submit() {
+        final Transfer transfer = transfer();
+        moneyTransferService.submitTransfer(transfer);
+        return PendingTransferKey.of(transfer);
+    }
+
+}
@@ -0,0 +1,59 @@
+package ziggy.bank.benchmark;
+
+import org.apache.ignite.IgniteCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ziggy.bank.ignite.IgniteInitializer;
+import ziggy.bank.model.Account;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static ziggy.bank.utils.Constants.ACCOUNTS;
+
+/**
+ * Cost of resolving a cache by name on every call, as the services did, compared with a handle resolved once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class CacheHandleBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Handle {
+
+        IgniteCache<UUID, Account> accounts;
+
+        @Setup
+        public void setUp(BankState bank) {
+            accounts = IgniteInitializer.accounts(bank.ignite);
+        }
+    }
+
+    @Benchmark
+    public IgniteCache<UUID, Account> getOrCreateCache(BankState bank) {
+        return bank.ignite.getOrCreateCache(ACCOUNTS);
+    }
+
+    @Benchmark
+    public Account getThroughGetOrCreateCache(BankState bank) {
+        final IgniteCache<UUID, Account> accounts = bank.ignite.getOrCreateCache(ACCOUNTS);
+        return accounts.get(bank.account());
+    }
+
+    @Benchmark
+    public Account getThroughHandle(BankState bank, Handle handle) {
+        return handle.accounts.get(bank.account());
+    }
+
+}
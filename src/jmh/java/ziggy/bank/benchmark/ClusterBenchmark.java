@@ -0,0 +1,117 @@
+package ziggy.bank.benchmark;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ziggy.bank.ignite.IgniteInitializer;
+import ziggy.bank.model.Account;
+import ziggy.bank.model.Transfer;
+import ziggy.bank.service.AccountService;
+import ziggy.bank.service.MoneyTransferProcessor;
+import ziggy.bank.service.MoneyTransferService;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * End-to-end throughput of a cluster of {@code nodes} in-process nodes found by static addresses on localhost. Every
+ * invocation submits {@link #TRANSFERS_PER_INVOCATION} transfers between uniformly drawn accounts, spread over the
+ * nodes, and waits until all of them are processed. Nodes share the CPUs of one host, so this shows the overhead of
+ * distribution there and the scaling only with a CPU budget per node.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+@State(Scope.Benchmark)
+public class ClusterBenchmark {
+
+    static final int TRANSFERS_PER_INVOCATION = 1000;
+
+    @Param({"1", "2", "3"})
+    public int nodes;
+
+    @Param({"0", "1"})
+    public int backups;
+
+    @Param({"10000"})
+    public int accounts;
+
+    private final List<Ignite> ignites = new ArrayList<>();
+    private final List<MoneyTransferService> services = new ArrayList<>();
+    private final List<MoneyTransferProcessor> processors = new ArrayList<>();
+    private IgniteCache<UUID, Transfer> transfers;
+    private UUID[] accountIds;
+    private ZipfianGenerator generator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < nodes; i++) {
+            final IgniteInitializer initializer = new IgniteInitializer();
+            initializer.setInstanceName("BANK-" + i);
+            initializer.setLocalAddress("127.0.0.1");
+            initializer.setDiscoveryAddresses(singletonList("127.0.0.1:47500..47509"));
+            initializer.setBackups(backups);
+            initializer.setDataRegionSize(512L << 20);
+            final Ignite ignite = initializer.init();
+            final MoneyTransferService service = new MoneyTransferService(ignite);
+            final MoneyTransferProcessor processor = new MoneyTransferProcessor(service);
+            processor.start();
+            ignites.add(ignite);
+            services.add(service);
+            processors.add(processor);
+        }
+        transfers = IgniteInitializer.transfers(ignites.get(0));
+
+        final AccountService accountService = new AccountService(ignites.get(0));
+        accountIds = new UUID[accounts];
+        for (int i = 0; i < accounts; i++) {
+            accountIds[i] = accountService.createAccount(new Account(BankState.BALANCE));
+        }
+        generator = new ZipfianGenerator(accounts, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        processors.forEach(MoneyTransferProcessor::stop);
+        ignites.forEach(Ignite::close);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRANSFERS_PER_INVOCATION)
+    public void submitAndProcess() {
+        final Set<UUID> ids = new HashSet<>();
+        for (int i = 0; i < TRANSFERS_PER_INVOCATION; i++) {
+            final Transfer transfer = new Transfer();
+            transfer.setAccountFrom(accountIds[generator.next()]);
+            transfer.setAccountTo(accountIds[generator.next()]);
+            transfer.setAmount(BankState.AMOUNT);
+            ids.add(services.get(i % nodes).submitTransfer(transfer));
+        }
+        while (!transfers.containsKeys(ids)) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+}
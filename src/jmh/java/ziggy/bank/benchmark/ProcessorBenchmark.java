@@ -0,0 +1,81 @@
+package ziggy.bank.benchmark;
+
+import org.apache.ignite.IgniteCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ziggy.bank.model.PendingTransferKey;
+import ziggy.bank.service.MoneyTransferProcessor;
+import ziggy.bank.service.ProcessingMode;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import static ziggy.bank.utils.Constants.TRANSFERS;
+
+/**
+ * End-to-end throughput: every invocation submits {@link #TRANSFERS_PER_INVOCATION} transfers and waits until
+ * {@link MoneyTransferProcessor} has moved all of them to {@code TRANSFERS}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class ProcessorBenchmark {
+
+    static final int TRANSFERS_PER_INVOCATION = 1000;
+
+    @State(Scope.Benchmark)
+    public static class Processor {
+
+        @Param({"1", "4"})
+        public int lanes;
+
+        @Param({"OBJECT", "BINARY", "ENTRY_PROCESSOR", "LEDGER"})
+        public ProcessingMode processing;
+
+        MoneyTransferProcessor processor;
+        IgniteCache<UUID, ?> transfers;
+
+        @Setup(Level.Trial)
+        public void setUp(BankState bank) {
+            bank.moneyTransferService.setProcessingMode(processing);
+            processor = new MoneyTransferProcessor(bank.moneyTransferService, lanes,
+                    bank.moneyTransferService.getBatchSize());
+            processor.start();
+            transfers = bank.ignite.cache(TRANSFERS);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            processor.stop();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRANSFERS_PER_INVOCATION)
+    public void submitAndProcess(BankState bank, Processor processor) {
+        final Set<UUID> ids = bank.submit(TRANSFERS_PER_INVOCATION).stream()
+                .map(PendingTransferKey::getId)
+                .collect(Collectors.toSet());
+        while (!processor.transfers.containsKeys(ids)) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package ziggy.bank.benchmark;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteCheckedException;
+import org.apache.ignite.binary.BinaryObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ziggy.bank.ignite.IgniteInitializer;
+import ziggy.bank.model.Transfer;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * Marshalling cost of a failed {@link Transfer} with the {@code Binarylizable} format compared with the reflection
+ * based format of a class with the same fields. The marshalled size of each format is logged on setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(SerializationBenchmark.class);
+
+    public enum Format {BINARYLIZABLE, REFLECTIVE}
+
+    @Param({"BINARYLIZABLE", "REFLECTIVE"})
+    public Format format;
+
+    private Ignite ignite;
+    private Object transfer;
+    private BinaryObject binary;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("deprecation") // the marshaller is only read, to measure the marshalled size
+    public void setUp() throws IgniteCheckedException {
+        final IgniteInitializer initializer = new IgniteInitializer();
+        initializer.setDataRegionSize(64L << 20);
+        ignite = initializer.init();
+
+        final UUID id = UUID.randomUUID();
+        final UUID accountFrom = UUID.randomUUID();
+        final UUID accountTo = UUID.randomUUID();
+        final Date date = new Date();
+        if (format == Format.BINARYLIZABLE) {
+            final Transfer binarylizable = new Transfer();
+            binarylizable.setId(id);
+            binarylizable.setAccountFrom(accountFrom);
+            binarylizable.setAccountTo(accountTo);
+            binarylizable.setAmount(100);
+            binarylizable.setDate(date);
+            binarylizable.setStatus(Transfer.Status.FAILED);
+            binarylizable.getFailReasons().add(Transfer.FailReason.INSUFFICIENT_FUNDS);
+            transfer = binarylizable;
+        } else {
+            transfer = new ReflectiveTransfer(id, accountFrom, accountTo, 100, date);
+        }
+        binary = ignite.binary().toBinary(transfer);
+        LOGGER.info("{} transfer: {} bytes", format, ignite.configuration().getMarshaller().marshal(transfer).length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ignite.close();
+    }
+
+    @Benchmark
+    public BinaryObject serialize() {
+        return ignite.binary().toBinary(transfer);
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return binary.deserialize();
+    }
+
+    /**
+     * Fields of {@link Transfer} stored by reflection, as before it implemented {@code Binarylizable}.
+     */
+    public static class ReflectiveTransfer {
+        private UUID id;
+        private UUID accountFrom;
+        private UUID accountTo;
+        private long amount;
+        private Date date;
+        private Transfer.Status status = Transfer.Status.FAILED;
+        private List<Transfer.FailReason> failReasons = new ArrayList<>(singletonList(Transfer.FailReason.INSUFFICIENT_FUNDS));
+
+        public ReflectiveTransfer() {
+        }
+
+        ReflectiveTransfer(UUID id, UUID accountFrom, UUID accountTo, long amount, Date date) {
+            this.id = id;
+            this.accountFrom = accountFrom;
+            this.accountTo = accountTo;
+            this.amount = amount;
+            this.date = date;
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package ziggy.bank.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ziggy.bank.model.PendingTransferKey;
+import ziggy.bank.model.Transfer;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single operations of {@link ziggy.bank.service.MoneyTransferService} against an in-process node.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class TransferBenchmark {
+
+    private static final int HISTORY_PER_ACCOUNT = 4;
+
+    @State(Scope.Thread)
+    public static class PendingTransfer {
+
+        PendingTransferKey key;
+
+        @Setup(Level.Invocation)
+        public void setUp(BankState bank) {
+            key = bank.submit();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class History {
+
+        @Setup(Level.Trial)
+        public void setUp(BankState bank) {
+            bank.moneyTransferService.processTransfers(bank.submit(bank.accounts * HISTORY_PER_ACCOUNT));
+        }
+    }
+
+    @Benchmark
+    public UUID submitTransfer(BankState bank) {
+        return bank.moneyTransferService.submitTransfer(bank.transfer());
+    }
+
+    @Benchmark
+    public UUID processTransfer(BankState bank, PendingTransfer pending) {
+        bank.moneyTransferService.processTransfer(pending.key);
+        return pending.key.getId();
+    }
+
+    @Benchmark
+    public List<Transfer> getTransfersByAccount(BankState bank, History history) {
+        return bank.moneyTransferService.getTransfersByAccount(bank.account());
+    }
+
+}
@@ -0,0 +1,37 @@
+package ziggy.bank.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks indexes in {@code [0, n)} with Zipfian distribution: index {@code i} is chosen with probability proportional
+ * to {@code 1 / (i + 1)^skew}. Skew 0 is uniform, skew around 1 sends most of the traffic to a few hot indexes.
+ */
+class ZipfianGenerator {
+
+    private final double[] cumulative;
+
+    ZipfianGenerator(int n, double skew) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive: " + n);
+        }
+        if (skew < 0) {
+            throw new IllegalArgumentException("skew must not be negative: " + skew);
+        }
+        cumulative = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    int next() {
+        final int i = Arrays.binarySearch(cumulative, ThreadLocalRandom.current().nextDouble());
+        return Math.min(i >= 0 ? i : -i - 1, cumulative.length - 1);
+    }
+
+}
@@ -1,18 +1,29 @@
 package ziggy.bank;
 
-import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.jmx.JmxConfig;
+import io.micrometer.jmx.JmxMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
 import org.apache.ignite.Ignite;
+import org.apache.ignite.configuration.DataStorageConfiguration;
+import org.apache.ignite.configuration.WALMode;
 import ziggy.bank.ignite.IgniteInitializer;
+import ziggy.bank.ignite.TransactionMode;
+import ziggy.bank.rest.HttpTransport;
 import ziggy.bank.rest.RestContext;
 import ziggy.bank.service.AccountService;
+import ziggy.bank.service.AdmissionControl;
 import ziggy.bank.service.MoneyTransferProcessor;
 import ziggy.bank.service.MoneyTransferService;
-
-import javax.ws.rs.ext.RuntimeDelegate;
-import java.net.InetSocketAddress;
+import ziggy.bank.service.ProcessingMode;
+import ziggy.bank.service.TransferCompletionListener;
+import ziggy.bank.utils.IdGenerator;
 
 import static java.lang.Integer.getInteger;
+import static java.lang.Long.getLong;
+import static java.util.Arrays.asList;
 
 /**
  * Created by Dmitry Tsigelnik on 3/8/19.
@@ -20,40 +31,110 @@ import static java.lang.Integer.getInteger;
 public class Application {
 
     public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 256;
+    public static final long DEFAULT_MAX_CONCURRENT_TIMEOUT = 1000;
 
     private IgniteInitializer igniteInitializer;
     private MoneyTransferService moneyTransferService;
     private MoneyTransferProcessor moneyTransferProcessor;
+    private TransferCompletionListener transferCompletionListener;
+    private AdmissionControl admissionControl;
     private AccountService accountService;
     private Ignite ignite;
+    private PrometheusMeterRegistry prometheusRegistry;
+    private CompositeMeterRegistry meterRegistry;
+    private final boolean virtualThreads = Boolean.getBoolean("threads.virtual");
 
-    private HttpServer httpServer;
+    private HttpTransport httpTransport;
     private RestContext context;
 
     public void start() throws Exception {
         init();
 
-        context = new RestContext(moneyTransferService, accountService);
-
-        httpServer = HttpServer.create(new InetSocketAddress(getInteger("http.port", DEFAULT_PORT)), 0);
-        httpServer.createContext("/api", RuntimeDelegate.getInstance().createEndpoint(context, HttpHandler.class));
-        httpServer.start();
+        context = new RestContext(moneyTransferService, accountService, transferCompletionListener, admissionControl)
+                .limitConcurrentRequests(getInteger("http.max.concurrent", DEFAULT_MAX_CONCURRENT_REQUESTS),
+                        getLong("http.max.concurrent.timeout", DEFAULT_MAX_CONCURRENT_TIMEOUT))
+                .exposeMetrics(prometheusRegistry);
+
+        httpTransport = HttpTransport.create(
+                HttpTransport.Type.valueOf(System.getProperty("http.transport", HttpTransport.Type.GRIZZLY.name())),
+                getInteger("http.port", DEFAULT_PORT));
+        httpTransport.setBacklog(getInteger("http.backlog", HttpTransport.DEFAULT_BACKLOG));
+        httpTransport.setSelectorThreads(getInteger("http.selectors", HttpTransport.DEFAULT_SELECTOR_THREADS));
+        httpTransport.setWorkerThreads(getInteger("http.workers", HttpTransport.DEFAULT_WORKER_THREADS));
+        httpTransport.setKeepAliveTimeout(getInteger("http.keepalive.timeout", HttpTransport.DEFAULT_KEEP_ALIVE_TIMEOUT));
+        httpTransport.setVirtualThreads(virtualThreads);
+        httpTransport.start(context);
     }
 
     private void init() {
+        final TransactionMode transactionMode = TransactionMode.valueOf(System.getProperty("transfer.tx.mode", TransactionMode.OPTIMISTIC.name()));
         igniteInitializer = new IgniteInitializer();
+        igniteInitializer.setTransactionMode(transactionMode);
+        igniteInitializer.setPersistenceEnabled(Boolean.getBoolean("storage.persistence"));
+        igniteInitializer.setWorkDirectory(System.getProperty("storage.path"));
+        igniteInitializer.setDataRegionSize(getLong("storage.region.size", IgniteInitializer.DEFAULT_DATA_REGION_SIZE >> 20) << 20);
+        igniteInitializer.setWalMode(WALMode.valueOf(System.getProperty("storage.wal.mode", DataStorageConfiguration.DFLT_WAL_MODE.name())));
+        igniteInitializer.setCheckpointFrequency(getLong("storage.checkpoint.frequency", DataStorageConfiguration.DFLT_CHECKPOINT_FREQ));
+        igniteInitializer.setPageSize(getInteger("storage.page.size", DataStorageConfiguration.DFLT_PAGE_SIZE));
+        igniteInitializer.setAccountsNearCacheSize(getInteger("accounts.near.cache.size", 0));
+        igniteInitializer.setIdempotencyKeyTtl(getLong("transfer.idempotency.ttl", IgniteInitializer.DEFAULT_IDEMPOTENCY_KEY_TTL));
+        igniteInitializer.setInstanceName(System.getProperty("cluster.node.name", IgniteInitializer.DEFAULT_INSTANCE_NAME));
+        igniteInitializer.setLocalAddress(System.getProperty("cluster.local.address"));
+        final String discoveryAddresses = System.getProperty("cluster.addresses");
+        if (discoveryAddresses != null) {
+            igniteInitializer.setDiscoveryAddresses(asList(discoveryAddresses.split(",")));
+        }
+        igniteInitializer.setMulticastGroup(System.getProperty("cluster.multicast.group"));
+        igniteInitializer.setBackups(getInteger("cluster.backups", 0));
+        igniteInitializer.setPartitions(getInteger("cluster.partitions", IgniteInitializer.DEFAULT_PARTITIONS));
         ignite = igniteInitializer.init();
 
+        // meters are published over JMX and served by the metrics resource
+        prometheusRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        meterRegistry = new CompositeMeterRegistry();
+        meterRegistry.add(prometheusRegistry);
+        meterRegistry.add(new JmxMeterRegistry(JmxConfig.DEFAULT, Clock.SYSTEM));
+
+        final IdGenerator idGenerator = IdGenerator.create(IdGenerator.Type.valueOf(System.getProperty("id.generator", IdGenerator.Type.RANDOM.name())));
         accountService = new AccountService(ignite);
+        accountService.setIdGenerator(idGenerator);
+        final int batchSize = getInteger("transfer.batch.size", MoneyTransferService.DEFAULT_BATCH_SIZE);
         moneyTransferService = new MoneyTransferService(ignite);
-        moneyTransferProcessor = new MoneyTransferProcessor(moneyTransferService);
+        moneyTransferService.setBatchSize(batchSize);
+        moneyTransferService.setLedgerFoldThreshold(getInteger("transfer.ledger.fold.threshold", MoneyTransferService.DEFAULT_LEDGER_FOLD_THRESHOLD));
+        moneyTransferService.setIdGenerator(idGenerator);
+        moneyTransferService.setTransactionMode(transactionMode);
+        moneyTransferService.setProcessingMode(ProcessingMode.valueOf(System.getProperty("transfer.processing", ProcessingMode.OBJECT.name())));
+        accountService.setProcessingMode(moneyTransferService.getProcessingMode());
+        if (moneyTransferService.getProcessingMode() != ProcessingMode.LEDGER) {
+            // a persistent store may keep credits of an earlier run in ledger mode
+            moneyTransferService.foldLedger();
+        }
+        moneyTransferProcessor = new MoneyTransferProcessor(moneyTransferService,
+                getInteger("transfer.lanes", Runtime.getRuntime().availableProcessors()), batchSize);
+        moneyTransferProcessor.setVirtualThreads(virtualThreads);
+        moneyTransferService.bindTo(meterRegistry);
+        moneyTransferProcessor.bindTo(meterRegistry);
 
         moneyTransferProcessor.start();
+
+        transferCompletionListener = new TransferCompletionListener(ignite);
+        transferCompletionListener.start();
+
+        admissionControl = new AdmissionControl(ignite, moneyTransferService,
+                getLong("transfer.pending.high", AdmissionControl.DEFAULT_HIGH_WATERMARK),
+                getLong("transfer.pending.low", AdmissionControl.DEFAULT_LOW_WATERMARK));
+        admissionControl.bindTo(meterRegistry);
+        admissionControl.start();
     }
 
     public void stop() {
-        httpServer.stop(0);
+        httpTransport.stop();
+        admissionControl.stop();
+        transferCompletionListener.stop();
         moneyTransferProcessor.stop();
+        meterRegistry.close();
         ignite.close();
     }
 
@@ -1,57 +1,395 @@
 package ziggy.bank.ignite;
 
 import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteCache;
+import org.apache.ignite.IgniteCluster;
 import org.apache.ignite.Ignition;
 import org.apache.ignite.cache.CacheAtomicityMode;
+import org.apache.ignite.cache.CacheMode;
+import org.apache.ignite.cache.affinity.rendezvous.RendezvousAffinityFunction;
+import org.apache.ignite.cache.eviction.lru.LruEvictionPolicyFactory;
+import org.apache.ignite.cache.query.QueryCursor;
+import org.apache.ignite.cache.query.ScanQuery;
+import org.apache.ignite.cluster.BaselineNode;
 import org.apache.ignite.configuration.CacheConfiguration;
+import org.apache.ignite.configuration.DataStorageConfiguration;
 import org.apache.ignite.configuration.IgniteConfiguration;
+import org.apache.ignite.configuration.NearCacheConfiguration;
 import org.apache.ignite.configuration.TransactionConfiguration;
+import org.apache.ignite.configuration.WALMode;
+import org.apache.ignite.events.EventType;
 import org.apache.ignite.logger.slf4j.Slf4jLogger;
-import org.apache.ignite.transactions.TransactionConcurrency;
-import org.apache.ignite.transactions.TransactionIsolation;
+import org.apache.ignite.spi.discovery.tcp.TcpDiscoverySpi;
+import org.apache.ignite.spi.discovery.tcp.ipfinder.multicast.TcpDiscoveryMulticastIpFinder;
+import org.apache.ignite.spi.discovery.tcp.ipfinder.vm.TcpDiscoveryVmIpFinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ziggy.bank.model.Account;
+import ziggy.bank.model.LedgerEntry;
+import ziggy.bank.model.LedgerEntryKey;
+import ziggy.bank.model.PendingTransferKey;
 import ziggy.bank.model.Transfer;
+import ziggy.bank.model.TransferWaiterKey;
 
+import javax.cache.expiry.CreatedExpiryPolicy;
+import javax.cache.expiry.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static ziggy.bank.utils.Constants.ACCOUNTS;
+import static ziggy.bank.utils.Constants.IDEMPOTENCY_KEYS;
+import static ziggy.bank.utils.Constants.LEDGER;
 import static ziggy.bank.utils.Constants.PENDING_TRANSFERS;
 import static ziggy.bank.utils.Constants.TRANSFERS;
+import static ziggy.bank.utils.Constants.TRANSFER_WAITERS;
 
 /**
  * Created by Dmitry Tsigelnik on 3/8/19.
  */
 public class IgniteInitializer {
 
+    private final static Logger LOGGER = LoggerFactory.getLogger(IgniteInitializer.class);
+
+    public static final long DEFAULT_DATA_REGION_SIZE = DataStorageConfiguration.DFLT_DATA_REGION_MAX_SIZE;
+    public static final long DEFAULT_IDEMPOTENCY_KEY_TTL = TimeUnit.DAYS.toSeconds(1);
+    public static final String DEFAULT_INSTANCE_NAME = "BANK";
+    public static final int DEFAULT_PARTITIONS = RendezvousAffinityFunction.DFLT_PARTITION_COUNT;
+
+    /**
+     * Waiters are removed when their transfer is processed; the expiry only drops the ones of nodes which left.
+     */
+    static final long TRANSFER_WAITER_TTL = TimeUnit.HOURS.toSeconds(1);
+
+    private TransactionMode transactionMode = TransactionMode.OPTIMISTIC;
+    private boolean persistenceEnabled;
+    private String workDirectory;
+    private long dataRegionSize = DEFAULT_DATA_REGION_SIZE;
+    private WALMode walMode = DataStorageConfiguration.DFLT_WAL_MODE;
+    private long checkpointFrequency = DataStorageConfiguration.DFLT_CHECKPOINT_FREQ;
+    private int pageSize = DataStorageConfiguration.DFLT_PAGE_SIZE;
+    private int accountsNearCacheSize;
+    private long idempotencyKeyTtl = DEFAULT_IDEMPOTENCY_KEY_TTL;
+    private String instanceName = DEFAULT_INSTANCE_NAME;
+    private String localAddress;
+    private Collection<String> discoveryAddresses;
+    private String multicastGroup;
+    private int backups;
+    private int partitions = DEFAULT_PARTITIONS;
+
+    public void setTransactionMode(TransactionMode transactionMode) {
+        this.transactionMode = transactionMode;
+    }
+
+    /**
+     * Stores accounts and transfers on disk, so they survive a restart of the node.
+     */
+    public void setPersistenceEnabled(boolean persistenceEnabled) {
+        this.persistenceEnabled = persistenceEnabled;
+    }
+
+    /**
+     * Directory of the persistent store and of the WAL, Ignite default if not set.
+     */
+    public void setWorkDirectory(String workDirectory) {
+        this.workDirectory = workDirectory;
+    }
+
+    public void setDataRegionSize(long dataRegionSize) {
+        this.dataRegionSize = dataRegionSize;
+    }
+
+    public void setWalMode(WALMode walMode) {
+        this.walMode = walMode;
+    }
+
+    public void setCheckpointFrequency(long checkpointFrequency) {
+        this.checkpointFrequency = checkpointFrequency;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Max number of accounts kept in the near cache of every node, least recently used are evicted first. The near
+     * cache is disabled if not positive.
+     */
+    public void setAccountsNearCacheSize(int accountsNearCacheSize) {
+        this.accountsNearCacheSize = accountsNearCacheSize;
+    }
+
+    /**
+     * Seconds an idempotency key is remembered after the transfer was submitted with it.
+     */
+    public void setIdempotencyKeyTtl(long idempotencyKeyTtl) {
+        if (idempotencyKeyTtl <= 0) {
+            throw new IllegalArgumentException("idempotencyKeyTtl must be positive: " + idempotencyKeyTtl);
+        }
+        this.idempotencyKeyTtl = idempotencyKeyTtl;
+    }
+
+    /**
+     * Name of the node, unique among the nodes started in one JVM.
+     */
+    public void setInstanceName(String instanceName) {
+        this.instanceName = instanceName;
+    }
+
+    /**
+     * Address the node binds discovery and communication to, e.g. {@code 127.0.0.1} for a cluster on one host. All
+     * interfaces if not set.
+     */
+    public void setLocalAddress(String localAddress) {
+        this.localAddress = localAddress;
+    }
+
+    /**
+     * Static addresses of the cluster nodes, e.g. {@code 127.0.0.1:47500..47509}. Takes precedence over
+     * {@link #setMulticastGroup multicast} discovery.
+     */
+    public void setDiscoveryAddresses(Collection<String> discoveryAddresses) {
+        this.discoveryAddresses = discoveryAddresses;
+    }
+
+    /**
+     * Multicast group the nodes find each other with, Ignite default group if neither this nor static addresses are
+     * set.
+     */
+    public void setMulticastGroup(String multicastGroup) {
+        this.multicastGroup = multicastGroup;
+    }
+
+    /**
+     * Number of backup copies of every partition, so that a cluster keeps all accounts and transfers when that many
+     * nodes leave it.
+     */
+    public void setBackups(int backups) {
+        if (backups < 0) {
+            throw new IllegalArgumentException("backups must not be negative: " + backups);
+        }
+        this.backups = backups;
+    }
+
+    /**
+     * Number of partitions of every cache. All caches have the same partitions, so that an account, its pending
+     * transfers and its ledger entries are on the same node.
+     */
+    public void setPartitions(int partitions) {
+        if (partitions <= 0 || partitions > CacheConfiguration.MAX_PARTITIONS_COUNT) {
+            throw new IllegalArgumentException("partitions must be between 1 and "
+                    + CacheConfiguration.MAX_PARTITIONS_COUNT + ": " + partitions);
+        }
+        this.partitions = partitions;
+    }
+
+    /**
+     * Starts the node with {@code Accounts}, {@code PendingTransfers}, {@code Transfers}, {@code IdempotencyKeys},
+     * {@code Ledger} and {@code TransferWaiters} caches. Services resolve their handles once with {@link #accounts},
+     * {@link #pendingTransfers}, {@link #transfers}, {@link #idempotencyKeys}, {@link #ledger} and
+     * {@link #transferWaiters}.
+     */
     public Ignite init() {
-        return Ignition.start(igniteConfiguration());
+        final Ignite ignite = Ignition.start(igniteConfiguration());
+        if (persistenceEnabled) {
+            // a node with persistence starts inactive until the caches are restored from disk
+            ignite.cluster().active(true);
+            joinBaseline(ignite);
+            warmUp(ignite);
+        }
+        return ignite;
+    }
+
+    /**
+     * Adds the server nodes of the cluster to the baseline topology, the nodes which store the persisted partitions.
+     * Activation only sets the baseline once, so a node joining an active cluster would otherwise hold no data. Nodes of
+     * the baseline which are offline are kept, so their partitions are not moved while they restart.
+     */
+    private void joinBaseline(Ignite ignite) {
+        final IgniteCluster cluster = ignite.cluster();
+        final Map<Object, BaselineNode> baseline = new LinkedHashMap<>();
+        final Collection<BaselineNode> current = cluster.currentBaselineTopology();
+        if (current != null) {
+            current.forEach(node -> baseline.put(node.consistentId(), node));
+        }
+        final int size = baseline.size();
+        cluster.forServers().nodes().forEach(node -> baseline.putIfAbsent(node.consistentId(), node));
+        if (baseline.size() > size) {
+            cluster.setBaselineTopology(baseline.values());
+            LOGGER.info("Baseline topology extended to {} nodes", baseline.size());
+        }
+    }
+
+    /**
+     * Reads all accounts once, so their pages are loaded from disk before the first transfer needs them.
+     */
+    private void warmUp(Ignite ignite) {
+        final long start = System.currentTimeMillis();
+        long count = 0;
+        try (QueryCursor<?> cursor = accounts(ignite).query(new ScanQuery<>())) {
+            for (Object ignored : cursor) {
+                count++;
+            }
+        }
+        LOGGER.info("Loaded {} accounts in {} ms", count, System.currentTimeMillis() - start);
+    }
+
+
+    public static IgniteCache<UUID, Account> accounts(Ignite ignite) {
+        return cache(ignite, ACCOUNTS);
+    }
+
+    public static IgniteCache<PendingTransferKey, Transfer> pendingTransfers(Ignite ignite) {
+        return cache(ignite, PENDING_TRANSFERS);
     }
 
+    public static IgniteCache<UUID, Transfer> transfers(Ignite ignite) {
+        return cache(ignite, TRANSFERS);
+    }
+
+    public static IgniteCache<String, PendingTransferKey> idempotencyKeys(Ignite ignite) {
+        return cache(ignite, IDEMPOTENCY_KEYS);
+    }
+
+    public static IgniteCache<LedgerEntryKey, LedgerEntry> ledger(Ignite ignite) {
+        return cache(ignite, LEDGER);
+    }
+
+    public static IgniteCache<TransferWaiterKey, Boolean> transferWaiters(Ignite ignite) {
+        return cache(ignite, TRANSFER_WAITERS);
+    }
+
+    private static <K, V> IgniteCache<K, V> cache(Ignite ignite, String name) {
+        final IgniteCache<K, V> cache = ignite.cache(name);
+        if (cache == null) {
+            throw new IllegalStateException("Cache " + name + " is not started, the node must be started by init()");
+        }
+        return cache;
+    }
 
     private IgniteConfiguration igniteConfiguration() {
         IgniteConfiguration cfg = new IgniteConfiguration();
-        cfg.setIgniteInstanceName("BANK");
-        cfg.setCacheConfiguration(cacheConfiguration(ACCOUNTS, Account.class),
-                cacheConfiguration(PENDING_TRANSFERS, Transfer.class), cacheConfiguration(TRANSFERS, Transfer.class));
+        cfg.setIgniteInstanceName(instanceName);
+        cfg.setLocalHost(localAddress);
+        cfg.setDiscoverySpi(discoverySpi());
+        // pending transfers are dispatched again once their partitions moved to the nodes of a new topology
+        cfg.setIncludeEventTypes(EventType.EVT_CACHE_REBALANCE_STOPPED);
+        cfg.setCacheConfiguration(accountsConfiguration(),
+                cacheConfiguration(PENDING_TRANSFERS, PendingTransferKey.class, Transfer.class),
+                cacheConfiguration(TRANSFERS, Transfer.class),
+                idempotencyKeysConfiguration(),
+                ledgerConfiguration(),
+                transferWaitersConfiguration());
         cfg.setTransactionConfiguration(transactionConfiguration());
+        cfg.setDataStorageConfiguration(dataStorageConfiguration());
+        if (workDirectory != null) {
+            cfg.setWorkDirectory(workDirectory);
+        }
         cfg.setGridLogger(new Slf4jLogger());
         return cfg;
     }
 
+    private TcpDiscoverySpi discoverySpi() {
+        final TcpDiscoverySpi spi = new TcpDiscoverySpi();
+        if (discoveryAddresses != null && !discoveryAddresses.isEmpty()) {
+            spi.setIpFinder(new TcpDiscoveryVmIpFinder().setAddresses(discoveryAddresses));
+        } else if (multicastGroup != null) {
+            spi.setIpFinder(new TcpDiscoveryMulticastIpFinder().setMulticastGroup(multicastGroup));
+        }
+        return spi;
+    }
+
+    private DataStorageConfiguration dataStorageConfiguration() {
+        final DataStorageConfiguration cfg = new DataStorageConfiguration();
+        cfg.setPageSize(pageSize);
+        cfg.setWalMode(walMode);
+        cfg.setCheckpointFrequency(checkpointFrequency);
+        cfg.getDefaultDataRegionConfiguration()
+                .setInitialSize(Math.min(DataStorageConfiguration.DFLT_DATA_REGION_INITIAL_SIZE, dataRegionSize))
+                .setMaxSize(dataRegionSize)
+                .setPersistenceEnabled(persistenceEnabled);
+        return cfg;
+    }
+
     private TransactionConfiguration transactionConfiguration() {
         final TransactionConfiguration cfg = new TransactionConfiguration();
-        cfg.setDefaultTxConcurrency(TransactionConcurrency.OPTIMISTIC);
-        cfg.setDefaultTxIsolation(TransactionIsolation.READ_COMMITTED);
+        cfg.setDefaultTxConcurrency(transactionMode.getConcurrency());
+        cfg.setDefaultTxIsolation(transactionMode.getIsolation());
+        return cfg;
+    }
+
+    /**
+     * Near entries of a transactional cache are updated by the primary node on commit, so a balance changed by a
+     * transfer is never read stale from the near cache.
+     */
+    private CacheConfiguration accountsConfiguration() {
+        final CacheConfiguration cfg = cacheConfiguration(ACCOUNTS, Account.class);
+        if (accountsNearCacheSize > 0) {
+            final NearCacheConfiguration<UUID, Account> nearCfg = new NearCacheConfiguration<>();
+            nearCfg.setNearEvictionPolicyFactory(new LruEvictionPolicyFactory<>(accountsNearCacheSize));
+            cfg.setNearConfiguration(nearCfg);
+            cfg.setStatisticsEnabled(true);
+        }
+        return cfg;
+    }
+
+    /**
+     * Keys of submitted transfers, not indexed and not transactional: every submission with a key does a single
+     * atomic {@code getAndPutIfAbsent}. Keys expire {@code idempotencyKeyTtl} seconds after they were stored.
+     */
+    private CacheConfiguration idempotencyKeysConfiguration() {
+        final CacheConfiguration<String, PendingTransferKey> cfg = new CacheConfiguration<>(IDEMPOTENCY_KEYS);
+        cfg.setAtomicityMode(CacheAtomicityMode.ATOMIC);
+        partitioned(cfg);
+        cfg.setExpiryPolicyFactory(CreatedExpiryPolicy.factoryOf(new Duration(TimeUnit.SECONDS, idempotencyKeyTtl)));
+        cfg.setEagerTtl(true);
+        return cfg;
+    }
+
+    /**
+     * Outstanding credits of accounts, not indexed: entries of an account are read by their numbered slots, see
+     * {@link LedgerEntryKey}.
+     */
+    private CacheConfiguration ledgerConfiguration() {
+        final CacheConfiguration<LedgerEntryKey, LedgerEntry> cfg = new CacheConfiguration<>(LEDGER);
+        cfg.setAtomicityMode(CacheAtomicityMode.TRANSACTIONAL);
+        partitioned(cfg);
+        return cfg;
+    }
+
+    /**
+     * Nodes waiting for transfers to be processed, not indexed and not transactional: a waiter is stored in the
+     * partition of its transfer, see {@link TransferWaiterKey}.
+     */
+    private CacheConfiguration transferWaitersConfiguration() {
+        final CacheConfiguration<TransferWaiterKey, Boolean> cfg = new CacheConfiguration<>(TRANSFER_WAITERS);
+        cfg.setAtomicityMode(CacheAtomicityMode.ATOMIC);
+        partitioned(cfg);
+        cfg.setExpiryPolicyFactory(CreatedExpiryPolicy.factoryOf(new Duration(TimeUnit.SECONDS, TRANSFER_WAITER_TTL)));
+        cfg.setEagerTtl(true);
         return cfg;
     }
 
     private CacheConfiguration cacheConfiguration(String name, Class type) {
+        return cacheConfiguration(name, UUID.class, type);
+    }
+
+    private CacheConfiguration cacheConfiguration(String name, Class keyType, Class type) {
         final CacheConfiguration cfg = new CacheConfiguration();
-        cfg.setTypes(UUID.class, type);
-        cfg.setIndexedTypes(UUID.class, type);
+        cfg.setTypes(keyType, type);
+        cfg.setIndexedTypes(keyType, type);
         cfg.setAtomicityMode(CacheAtomicityMode.TRANSACTIONAL);
         cfg.setName(name);
+        partitioned(cfg);
         return cfg;
     }
 
+    private void partitioned(CacheConfiguration cfg) {
+        cfg.setCacheMode(CacheMode.PARTITIONED);
+        cfg.setBackups(backups);
+        cfg.setAffinity(new RendezvousAffinityFunction(false, partitions));
+    }
+
 }
@@ -0,0 +1,31 @@
+package ziggy.bank.ignite;
+
+import org.apache.ignite.transactions.TransactionConcurrency;
+import org.apache.ignite.transactions.TransactionIsolation;
+
+/**
+ * Concurrency and isolation used for transfer transactions.
+ * <p>
+ * {@link #OPTIMISTIC} takes locks on commit and aborts conflicting transactions, {@link #PESSIMISTIC} locks every
+ * entry on first read, so concurrent transfers of one account wait for each other instead of aborting.
+ */
+public enum TransactionMode {
+    OPTIMISTIC(TransactionConcurrency.OPTIMISTIC, TransactionIsolation.SERIALIZABLE),
+    PESSIMISTIC(TransactionConcurrency.PESSIMISTIC, TransactionIsolation.REPEATABLE_READ);
+
+    private final TransactionConcurrency concurrency;
+    private final TransactionIsolation isolation;
+
+    TransactionMode(TransactionConcurrency concurrency, TransactionIsolation isolation) {
+        this.concurrency = concurrency;
+        this.isolation = isolation;
+    }
+
+    public TransactionConcurrency getConcurrency() {
+        return concurrency;
+    }
+
+    public TransactionIsolation getIsolation() {
+        return isolation;
+    }
+}
@@ -1,6 +1,10 @@
 package ziggy.bank.model;
 
-import java.math.BigDecimal;
+import org.apache.ignite.binary.BinaryObjectException;
+import org.apache.ignite.binary.BinaryReader;
+import org.apache.ignite.binary.BinaryWriter;
+import org.apache.ignite.binary.Binarylizable;
+
 import java.util.Objects;
 import java.util.StringJoiner;
 import java.util.UUID;
@@ -8,14 +12,17 @@ import java.util.UUID;
 /**
  * Created by Dmitry Tsigelnik on 3/8/19.
  */
-public class Account {
+public class Account implements Binarylizable {
     private UUID id;
-    private BigDecimal balance = BigDecimal.ZERO;
+    /**
+     * In minor units, see {@link ziggy.bank.utils.Money}.
+     */
+    private long balance;
 
     public Account() {
     }
 
-    public Account(BigDecimal balance) {
+    public Account(long balance) {
         this.balance = balance;
     }
 
@@ -27,21 +34,33 @@ public class Account {
         this.id = id;
     }
 
-    public BigDecimal getBalance() {
+    public long getBalance() {
         return balance;
     }
 
-    public void setBalance(BigDecimal balance) {
+    public void setBalance(long balance) {
         this.balance = balance;
     }
 
+    @Override
+    public void writeBinary(BinaryWriter writer) throws BinaryObjectException {
+        writer.writeUuid("id", id);
+        writer.writeLong("balance", balance);
+    }
+
+    @Override
+    public void readBinary(BinaryReader reader) throws BinaryObjectException {
+        id = reader.readUuid("id");
+        balance = reader.readLong("balance");
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Account account = (Account) o;
-        return Objects.equals(id, account.id) &&
-                Objects.equals(balance, account.balance);
+        return balance == account.balance &&
+                Objects.equals(id, account.id);
     }
 
     @Override
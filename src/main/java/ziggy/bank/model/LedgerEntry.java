@@ -0,0 +1,83 @@
+package ziggy.bank.model;
+
+import org.apache.ignite.binary.BinaryObjectException;
+import org.apache.ignite.binary.BinaryReader;
+import org.apache.ignite.binary.BinaryWriter;
+import org.apache.ignite.binary.Binarylizable;
+
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.UUID;
+
+/**
+ * Credit of a transfer to an account which is not yet folded into the {@link Account#getBalance() balance} of the
+ * account. The balance of an account is its snapshot plus the amounts of its entries.
+ */
+public class LedgerEntry implements Binarylizable {
+
+    private UUID accountId;
+    private UUID transferId;
+    /**
+     * In minor units, see {@link ziggy.bank.utils.Money}.
+     */
+    private long amount;
+
+    public LedgerEntry() {
+    }
+
+    public LedgerEntry(UUID accountId, UUID transferId, long amount) {
+        this.accountId = accountId;
+        this.transferId = transferId;
+        this.amount = amount;
+    }
+
+    public UUID getAccountId() {
+        return accountId;
+    }
+
+    public UUID getTransferId() {
+        return transferId;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    @Override
+    public void writeBinary(BinaryWriter writer) throws BinaryObjectException {
+        writer.writeUuid("accountId", accountId);
+        writer.writeUuid("transferId", transferId);
+        writer.writeLong("amount", amount);
+    }
+
+    @Override
+    public void readBinary(BinaryReader reader) throws BinaryObjectException {
+        accountId = reader.readUuid("accountId");
+        transferId = reader.readUuid("transferId");
+        amount = reader.readLong("amount");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LedgerEntry that = (LedgerEntry) o;
+        return amount == that.amount &&
+                Objects.equals(accountId, that.accountId) &&
+                Objects.equals(transferId, that.transferId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(accountId, transferId, amount);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", LedgerEntry.class.getSimpleName() + "[", "]")
+                .add("accountId=" + accountId)
+                .add("transferId=" + transferId)
+                .add("amount=" + amount)
+                .toString();
+    }
+}
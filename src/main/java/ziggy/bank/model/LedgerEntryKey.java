@@ -0,0 +1,66 @@
+package ziggy.bank.model;
+
+import org.apache.ignite.cache.affinity.AffinityKeyMapped;
+
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.UUID;
+
+/**
+ * Key of a {@link LedgerEntry}: its account and its slot, the number of the entry among the outstanding entries of the
+ * account counted from 1. An entry is stored in the same partition as its account, so it is folded into the balance on
+ * the primary node of that account.
+ */
+public class LedgerEntryKey implements Comparable<LedgerEntryKey> {
+
+    private static final Comparator<LedgerEntryKey> ORDER = Comparator.comparing(LedgerEntryKey::getAccountId)
+            .thenComparingLong(LedgerEntryKey::getSlot);
+
+    @AffinityKeyMapped
+    private UUID accountId;
+    private long slot;
+
+    public LedgerEntryKey() {
+    }
+
+    public LedgerEntryKey(UUID accountId, long slot) {
+        this.accountId = accountId;
+        this.slot = slot;
+    }
+
+    public UUID getAccountId() {
+        return accountId;
+    }
+
+    public long getSlot() {
+        return slot;
+    }
+
+    @Override
+    public int compareTo(LedgerEntryKey o) {
+        return ORDER.compare(this, o);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LedgerEntryKey that = (LedgerEntryKey) o;
+        return slot == that.slot &&
+                Objects.equals(accountId, that.accountId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(accountId, slot);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", LedgerEntryKey.class.getSimpleName() + "[", "]")
+                .add("accountId=" + accountId)
+                .add("slot=" + slot)
+                .toString();
+    }
+}
@@ -0,0 +1,68 @@
+package ziggy.bank.model;
+
+import org.apache.ignite.cache.affinity.AffinityKeyMapped;
+
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.UUID;
+
+/**
+ * Key of a pending transfer. A pending transfer is stored in the same partition as the account it debits, so it is
+ * processed on the primary node of that account.
+ */
+public class PendingTransferKey implements Comparable<PendingTransferKey> {
+    private UUID id;
+    @AffinityKeyMapped
+    private UUID accountFrom;
+
+    public PendingTransferKey() {
+    }
+
+    public PendingTransferKey(UUID id, UUID accountFrom) {
+        this.id = id;
+        this.accountFrom = accountFrom;
+    }
+
+    /**
+     * A transfer without {@code accountFrom} is only going to fail validation, it is collocated by its own id.
+     */
+    public static PendingTransferKey of(Transfer transfer) {
+        return new PendingTransferKey(transfer.getId(),
+                transfer.getAccountFrom() == null ? transfer.getId() : transfer.getAccountFrom());
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public UUID getAccountFrom() {
+        return accountFrom;
+    }
+
+    @Override
+    public int compareTo(PendingTransferKey o) {
+        return id.compareTo(o.id);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PendingTransferKey that = (PendingTransferKey) o;
+        return Objects.equals(id, that.id) &&
+                Objects.equals(accountFrom, that.accountFrom);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, accountFrom);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", PendingTransferKey.class.getSimpleName() + "[", "]")
+                .add("id=" + id)
+                .add("accountFrom=" + accountFrom)
+                .toString();
+    }
+}
@@ -1,32 +1,59 @@
 package ziggy.bank.model;
 
+import org.apache.ignite.binary.BinaryObjectException;
+import org.apache.ignite.binary.BinaryReader;
+import org.apache.ignite.binary.BinaryWriter;
+import org.apache.ignite.binary.Binarylizable;
 import org.apache.ignite.cache.query.annotations.QuerySqlField;
 
-import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
 /**
  * Created by Dmitry Tsigelnik on 3/8/19.
+ * <p>
+ * Stored with {@link Binarylizable} instead of reflection: the status is written as a byte, the fail reasons as a bit
+ * mask and the date as epoch millis. Fields keep their names, so SQL and binary objects read them as before. Constants
+ * of {@link Status} and {@link FailReason} are encoded by ordinal, so new ones must only be appended.
  */
-public class Transfer {
-    public enum FailReason {INSUFFICIENT_FUNDS, INCORRECT_AMOUNT, FROM_ACCOUNT_NOT_FOUND, TO_ACCOUNT_NOT_FOUND}
+public class Transfer implements Binarylizable {
+    public enum FailReason {INSUFFICIENT_FUNDS, INCORRECT_AMOUNT, FROM_ACCOUNT_NOT_FOUND, TO_ACCOUNT_NOT_FOUND, BALANCE_OVERFLOW}
 
     public enum Status {PENDING, DONE, FAILED}
 
+    private static final Status[] STATUSES = Status.values();
+    private static final FailReason[] FAIL_REASONS = FailReason.values();
 
-    @QuerySqlField(index = true)
+
+    static final String FROM_DATE_INDEX = "FROM_DATE_IDX";
+    static final String TO_DATE_INDEX = "TO_DATE_IDX";
+
+    @QuerySqlField(index = true, orderedGroups = {@QuerySqlField.Group(name = FROM_DATE_INDEX, order = 2),
+            @QuerySqlField.Group(name = TO_DATE_INDEX, order = 2)})
     private UUID id;
 
-    @QuerySqlField(index = true)
+    @QuerySqlField(index = true, orderedGroups = @QuerySqlField.Group(name = FROM_DATE_INDEX, order = 0))
     private UUID accountFrom;
-    @QuerySqlField(index = true)
+    @QuerySqlField(index = true, orderedGroups = @QuerySqlField.Group(name = TO_DATE_INDEX, order = 0))
     private UUID accountTo;
-    private BigDecimal amount;
-    @QuerySqlField(index = true)
+    /**
+     * In minor units, see {@link ziggy.bank.utils.Money}.
+     */
+    private long amount;
+    /**
+     * Transfers of an account are paged by {@code (date, id)}, see {@link #FROM_DATE_INDEX} and {@link #TO_DATE_INDEX}.
+     */
+    @QuerySqlField(index = true, orderedGroups = {@QuerySqlField.Group(name = FROM_DATE_INDEX, order = 1),
+            @QuerySqlField.Group(name = TO_DATE_INDEX, order = 1)})
     private Date date;
+    /**
+     * Submission counter of the node which submitted the transfer, orders transfers of the same {@code date}.
+     */
+    @QuerySqlField
+    private long sequence;
 
     private Status status = Status.PENDING;
     private List<FailReason> failReasons = new ArrayList<>();
@@ -59,11 +86,11 @@ public class Transfer {
         return date;
     }
 
-    public BigDecimal getAmount() {
+    public long getAmount() {
         return amount;
     }
 
-    public void setAmount(BigDecimal amount) {
+    public void setAmount(long amount) {
         this.amount = amount;
     }
 
@@ -71,6 +98,14 @@ public class Transfer {
         this.date = date;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
     public Status getStatus() {
         return status;
     }
@@ -87,4 +122,55 @@ public class Transfer {
         this.failReasons = failReasons;
     }
 
+    /**
+     * Code of the status in the {@code status} field of a binary transfer, {@code -1} for {@code null}.
+     */
+    public static byte statusCode(Status status) {
+        return status == null ? -1 : (byte) status.ordinal();
+    }
+
+    /**
+     * Bit mask of the reasons in the {@code failReasons} field of a binary transfer, bit {@code ordinal} per reason.
+     */
+    public static int failReasonsMask(Collection<FailReason> failReasons) {
+        int mask = 0;
+        if (failReasons != null) {
+            for (FailReason reason : failReasons) {
+                mask |= 1 << reason.ordinal();
+            }
+        }
+        return mask;
+    }
+
+    @Override
+    public void writeBinary(BinaryWriter writer) throws BinaryObjectException {
+        writer.writeUuid("id", id);
+        writer.writeUuid("accountFrom", accountFrom);
+        writer.writeUuid("accountTo", accountTo);
+        writer.writeLong("amount", amount);
+        writer.writeDate("date", date);
+        writer.writeLong("sequence", sequence);
+        writer.writeByte("status", statusCode(status));
+        writer.writeInt("failReasons", failReasonsMask(failReasons));
+    }
+
+    @Override
+    public void readBinary(BinaryReader reader) throws BinaryObjectException {
+        id = reader.readUuid("id");
+        accountFrom = reader.readUuid("accountFrom");
+        accountTo = reader.readUuid("accountTo");
+        amount = reader.readLong("amount");
+        date = reader.readDate("date");
+        sequence = reader.readLong("sequence");
+        final byte statusCode = reader.readByte("status");
+        status = statusCode < 0 ? null : STATUSES[statusCode];
+        final int mask = reader.readInt("failReasons");
+        failReasons = new ArrayList<>(Integer.bitCount(mask));
+        for (FailReason reason : FAIL_REASONS) {
+            if ((mask & 1 << reason.ordinal()) != 0) {
+                failReasons.add(reason);
+            }
+        }
+    }
+
 }
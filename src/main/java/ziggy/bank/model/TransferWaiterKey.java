@@ -0,0 +1,56 @@
+package ziggy.bank.model;
+
+import org.apache.ignite.cache.affinity.AffinityKeyMapped;
+
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.UUID;
+
+/**
+ * Key of a node waiting for a transfer to be processed. It is stored in the same partition as the processed
+ * transfer, so the nodes storing the transfer tell from their own data whether a node waits for it.
+ */
+public class TransferWaiterKey {
+
+    @AffinityKeyMapped
+    private UUID transferId;
+    private UUID nodeId;
+
+    public TransferWaiterKey() {
+    }
+
+    public TransferWaiterKey(UUID transferId, UUID nodeId) {
+        this.transferId = transferId;
+        this.nodeId = nodeId;
+    }
+
+    public UUID getTransferId() {
+        return transferId;
+    }
+
+    public UUID getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TransferWaiterKey that = (TransferWaiterKey) o;
+        return Objects.equals(transferId, that.transferId) &&
+                Objects.equals(nodeId, that.nodeId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(transferId, nodeId);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", TransferWaiterKey.class.getSimpleName() + "[", "]")
+                .add("transferId=" + transferId)
+                .add("nodeId=" + nodeId)
+                .toString();
+    }
+}
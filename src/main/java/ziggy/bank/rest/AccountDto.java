@@ -0,0 +1,74 @@
+package ziggy.bank.rest;
+
+import ziggy.bank.model.Account;
+import ziggy.bank.utils.Money;
+
+import java.math.BigDecimal;
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.UUID;
+
+/**
+ * JSON representation of {@link Account} with the balance as a decimal amount.
+ */
+public class AccountDto {
+    private UUID id;
+    private BigDecimal balance = BigDecimal.ZERO;
+
+    public AccountDto() {
+    }
+
+    public AccountDto(BigDecimal balance) {
+        this.balance = balance;
+    }
+
+    public static AccountDto of(Account account) {
+        final AccountDto dto = new AccountDto(Money.toDecimal(account.getBalance()));
+        dto.setId(account.getId());
+        return dto;
+    }
+
+    public Account toAccount() {
+        final Account account = new Account(Money.toMinor(balance));
+        account.setId(id);
+        return account;
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public void setId(UUID id) {
+        this.id = id;
+    }
+
+    public BigDecimal getBalance() {
+        return balance;
+    }
+
+    public void setBalance(BigDecimal balance) {
+        this.balance = balance;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        AccountDto account = (AccountDto) o;
+        return Objects.equals(id, account.id) &&
+                Objects.equals(balance, account.balance);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, balance);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", AccountDto.class.getSimpleName() + "[", "]")
+                .add("id=" + id)
+                .add("balance=" + balance)
+                .toString();
+    }
+}
@@ -2,6 +2,8 @@ package ziggy.bank.rest;
 
 import ziggy.bank.model.Account;
 import ziggy.bank.service.AccountService;
+import ziggy.bank.service.NearCacheStats;
+import ziggy.bank.utils.Money;
 
 import javax.inject.Inject;
 import javax.ws.rs.Consumes;
@@ -29,23 +31,37 @@ public class AccountResource {
     }
 
 
+    @GET
+    @Path("/near-cache")
+    @Produces(APPLICATION_JSON)
+    public NearCacheStats getNearCacheStats() {
+        return accountService.getNearCacheStats();
+    }
+
     @GET
     @Path("/{id}")
-    public Account getAccount(@PathParam("id") UUID id) {
+    public AccountDto getAccount(@PathParam("id") UUID id) {
         Account account = accountService.getAccount(id);
         if (account == null) {
             throw new WebApplicationException(404);
         }
 
-        return account;
+        return AccountDto.of(account);
     }
 
     @POST
     @Consumes(APPLICATION_JSON)
     @Produces(APPLICATION_JSON)
-    public Account createAccount(Account account) {
-        final UUID id = accountService.createAccount(account);
-        return accountService.getAccount(id);
+    public AccountDto createAccount(AccountDto account) {
+        validate(account);
+        final UUID id = accountService.createAccount(account.toAccount());
+        return AccountDto.of(accountService.getAccount(id));
+    }
+
+    private void validate(AccountDto account) {
+        if (account.getBalance() == null || !Money.isRepresentable(account.getBalance())) {
+            throw new WebApplicationException(422);
+        }
     }
 
 }
@@ -0,0 +1,51 @@
+package ziggy.bank.rest;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Body of a rejected batch: the first transfers of the batch were submitted before the rejection and got
+ * {@code ids}, the ones after them were not.
+ */
+public class BatchRejectionDto {
+
+    private String error;
+    private int row;
+    private List<UUID> ids;
+
+    public BatchRejectionDto() {
+    }
+
+    public BatchRejectionDto(String error, int row, List<UUID> ids) {
+        this.error = error;
+        this.row = row;
+        this.ids = ids;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    /**
+     * @return index of the transfer at which the batch was rejected
+     */
+    public int getRow() {
+        return row;
+    }
+
+    public void setRow(int row) {
+        this.row = row;
+    }
+
+    public List<UUID> getIds() {
+        return ids;
+    }
+
+    public void setIds(List<UUID> ids) {
+        this.ids = ids;
+    }
+}
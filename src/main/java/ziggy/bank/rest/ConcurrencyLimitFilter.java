@@ -0,0 +1,84 @@
+package ziggy.bank.rest;
+
+import org.glassfish.jersey.server.CloseableService;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import java.io.Closeable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounds the number of requests running at the same time, so that a large number of connections, e.g. on virtual
+ * threads, does not turn into the same number of concurrent Ignite calls. A request waits up to {@code timeout} ms
+ * for a permit and is rejected with 503 otherwise. The permit is released when the request is completed, including
+ * streamed responses and failed requests, or earlier by {@link #release} when the request is suspended.
+ */
+@PreMatching
+@Priority(Priorities.USER - 1000)
+public class ConcurrencyLimitFilter implements ContainerRequestFilter {
+
+    private static final String PERMIT = ConcurrencyLimitFilter.class.getName() + ".permit";
+
+    private final Semaphore permits;
+    private final long timeout;
+
+    @Context
+    private CloseableService closeableService;
+
+    public ConcurrencyLimitFilter(int maxConcurrentRequests, long timeout) {
+        if (maxConcurrentRequests <= 0) {
+            throw new IllegalArgumentException("maxConcurrentRequests must be positive: " + maxConcurrentRequests);
+        }
+        this.permits = new Semaphore(maxConcurrentRequests);
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (acquired) {
+            final Permit permit = new Permit();
+            request.setProperty(PERMIT, permit);
+            closeableService.add(permit);
+        } else {
+            request.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
+        }
+    }
+
+    /**
+     * Releases the permit of a request which is about to be suspended, so that waiting requests do not hold permits
+     * while they are idle. Does nothing if the request got no permit.
+     */
+    static void release(ContainerRequestContext request) {
+        final Object permit = request.getProperty(PERMIT);
+        if (permit instanceof Permit) {
+            ((Permit) permit).close();
+        }
+    }
+
+    private class Permit implements Closeable {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package ziggy.bank.rest;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+import ziggy.bank.utils.VirtualThreads;
+
+import java.io.IOException;
+import java.net.URI;
+
+class GrizzlyHttpTransport extends HttpTransport {
+
+    private HttpServer httpServer;
+
+    GrizzlyHttpTransport(int port) {
+        super(port);
+    }
+
+    @Override
+    public void start(ResourceConfig context) throws IOException {
+        httpServer = GrizzlyHttpServerFactory.createHttpServer(URI.create("http://0.0.0.0:" + port + CONTEXT_PATH),
+                context, false);
+
+        final NetworkListener listener = httpServer.getListeners().iterator().next();
+        listener.getKeepAlive().setIdleTimeoutInSeconds(keepAliveTimeout);
+
+        final TCPNIOTransport transport = listener.getTransport();
+        transport.setServerConnectionBackLog(backlog);
+        transport.setSelectorRunnersCount(selectorThreads);
+        if (virtualThreads) {
+            transport.setWorkerThreadPool(VirtualThreads.newExecutor("http-worker-"));
+        } else {
+            transport.setWorkerThreadPoolConfig(ThreadPoolConfig.defaultConfig()
+                    .setPoolName("http-worker")
+                    .setCorePoolSize(workerThreads)
+                    .setMaxPoolSize(workerThreads));
+        }
+
+        httpServer.start();
+    }
+
+    @Override
+    public void stop() {
+        httpServer.shutdownNow();
+    }
+
+}
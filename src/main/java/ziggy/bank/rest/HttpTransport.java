@@ -0,0 +1,98 @@
+package ziggy.bank.rest;
+
+import org.glassfish.jersey.server.ResourceConfig;
+
+import java.io.IOException;
+
+/**
+ * HTTP server which serves the resources of a {@link ResourceConfig} under {@link #CONTEXT_PATH}.
+ */
+public abstract class HttpTransport {
+
+    public static final String CONTEXT_PATH = "/api";
+    public static final int DEFAULT_BACKLOG = 1024;
+    public static final int DEFAULT_SELECTOR_THREADS = Runtime.getRuntime().availableProcessors();
+    /**
+     * Resources block on Ignite calls, so there are several worker threads per core.
+     */
+    public static final int DEFAULT_WORKER_THREADS = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+    public static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 30;
+
+    /**
+     * Property of the started {@link ResourceConfig}, {@code false} if the transport can't suspend requests.
+     */
+    public static final String SUSPEND_SUPPORTED = "ziggy.bank.http.suspendSupported";
+
+    public enum Type {
+        /**
+         * Non-blocking Grizzly NIO server with separate selector and worker pools.
+         */
+        GRIZZLY,
+        /**
+         * {@code com.sun.net.httpserver.HttpServer} of the JDK.
+         */
+        JDK
+    }
+
+    protected final int port;
+    protected int backlog = DEFAULT_BACKLOG;
+    protected int selectorThreads = DEFAULT_SELECTOR_THREADS;
+    protected int workerThreads = DEFAULT_WORKER_THREADS;
+    protected int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    protected boolean virtualThreads;
+
+    protected HttpTransport(int port) {
+        this.port = port;
+    }
+
+    public static HttpTransport create(Type type, int port) {
+        switch (type) {
+            case GRIZZLY:
+                return new GrizzlyHttpTransport(port);
+            case JDK:
+                return new JdkHttpTransport(port);
+            default:
+                throw new IllegalArgumentException("Unknown transport " + type);
+        }
+    }
+
+    /**
+     * Max number of connections waiting to be accepted.
+     */
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Threads accepting connections and reading requests, not used by {@link Type#JDK}.
+     */
+    public void setSelectorThreads(int selectorThreads) {
+        this.selectorThreads = selectorThreads;
+    }
+
+    /**
+     * Threads running the resources.
+     */
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * Seconds an idle keep-alive connection is kept open, not used by {@link Type#JDK}.
+     */
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    /**
+     * Runs every request on its own virtual thread instead of {@code workerThreads} pooled threads, requires JDK 21+.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public abstract void start(ResourceConfig context) throws IOException;
+
+    public abstract void stop();
+
+}
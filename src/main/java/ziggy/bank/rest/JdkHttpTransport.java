@@ -0,0 +1,48 @@
+package ziggy.bank.rest;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.glassfish.jersey.server.ResourceConfig;
+import ziggy.bank.utils.VirtualThreads;
+
+import javax.ws.rs.ext.RuntimeDelegate;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class JdkHttpTransport extends HttpTransport {
+
+    private HttpServer httpServer;
+    private ExecutorService executor;
+
+    JdkHttpTransport(int port) {
+        super(port);
+    }
+
+    @Override
+    public void start(ResourceConfig context) throws IOException {
+        if (virtualThreads) {
+            executor = VirtualThreads.newExecutor("http-worker-");
+        } else {
+            final AtomicInteger threads = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(workerThreads,
+                    runnable -> new Thread(runnable, "http-worker-" + threads.incrementAndGet()));
+        }
+
+        // the JDK container of Jersey does not support async responses
+        context.property(SUSPEND_SUPPORTED, false);
+        httpServer = HttpServer.create(new InetSocketAddress(port), backlog);
+        httpServer.createContext(CONTEXT_PATH, RuntimeDelegate.getInstance().createEndpoint(context, HttpHandler.class));
+        httpServer.setExecutor(executor);
+        httpServer.start();
+    }
+
+    @Override
+    public void stop() {
+        httpServer.stop(0);
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,28 @@
+package ziggy.bank.rest;
+
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+/**
+ * Meters of the node in the Prometheus text format.
+ */
+@Path("/metrics")
+public class MetricsResource {
+
+    private final PrometheusMeterRegistry registry;
+
+    public MetricsResource(PrometheusMeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @GET
+    @Produces(TextFormat.CONTENT_TYPE_004)
+    public String scrape() {
+        return registry.scrape();
+    }
+
+}
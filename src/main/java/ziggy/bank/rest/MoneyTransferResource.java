@@ -1,22 +1,47 @@
 package ziggy.bank.rest;
 
 import ziggy.bank.model.Transfer;
+import ziggy.bank.service.AdmissionControl;
 import ziggy.bank.service.MoneyTransferService;
-import ziggy.bank.utils.Constants;
+import ziggy.bank.service.PendingTransfersStats;
+import ziggy.bank.service.TransferCompletionListener;
+import ziggy.bank.utils.Money;
 
 import javax.inject.Inject;
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Configuration;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 
 /**
@@ -25,49 +50,308 @@ import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 @Path("/transfers")
 public class MoneyTransferResource {
 
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    /**
+     * Max length of an {@link #IDEMPOTENCY_KEY}.
+     */
+    public static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+
+    /**
+     * Max time a request waits for a transfer to be processed.
+     */
+    public static final long MAX_WAIT = 30_000;
+
+    /**
+     * Transfers of a batch are validated, admitted and submitted in chunks of this size while the body is read.
+     */
+    public static final int BATCH_CHUNK_SIZE = 1000;
+
+    /**
+     * Max size in bytes of a batch body, larger ones are rejected with 413.
+     */
+    public static final long MAX_BATCH_BYTES = 16 * 1024 * 1024;
+
+    private static final Jsonb JSONB = JsonbBuilder.create();
+
     private final MoneyTransferService moneyTransferService;
+    private final TransferCompletionListener completionListener;
+    private final AdmissionControl admissionControl;
+
+    @Context
+    private ContainerRequestContext request;
+
+    @Context
+    private Configuration configuration;
 
     @Inject
-    public MoneyTransferResource(MoneyTransferService moneyTransferService) {
+    public MoneyTransferResource(MoneyTransferService moneyTransferService, TransferCompletionListener completionListener,
+                                 AdmissionControl admissionControl) {
         this.moneyTransferService = moneyTransferService;
+        this.completionListener = completionListener;
+        this.admissionControl = admissionControl;
     }
 
+    /**
+     * With {@code waitMs} the response is sent as soon as the transfer is processed, or with the pending transfer
+     * after {@code waitMs}. Rejected with 429 and a {@code Retry-After} header while too many transfers are pending.
+     * <p>
+     * A retried request with the same {@code Idempotency-Key} gets the transfer submitted by the first one, and is
+     * rejected with 422 if it is a different transfer, or with 409 while the first request is still storing it.
+     *
+     * @return {@link TransferDto}, or its {@link CompletionStage} when waiting, see {@link #awaitProcessed}
+     */
     @POST
     @Consumes(APPLICATION_JSON)
     @Produces(APPLICATION_JSON)
-    public Transfer submitTransfer(Transfer transfer) {
+    public Object submitTransfer(TransferDto transfer, @QueryParam("waitMs") @DefaultValue("0") long waitMs,
+                                 @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey) {
         validate(transfer);
-        final UUID id = moneyTransferService.submitTransfer(transfer);
-        return moneyTransferService.getTransfer(id);
+        validateIdempotencyKey(idempotencyKey);
+        Transfer submitted = transfer.toTransfer();
+        if (idempotencyKey == null) {
+            admit(1);
+            moneyTransferService.submitTransfer(submitted);
+        } else {
+            submitted = submitOnce(submitted, idempotencyKey);
+        }
+        return waitMs > 0 ? awaitProcessed(submitted, waitMs) : TransferDto.of(submitted);
+    }
+
+    /**
+     * The batch is submitted in chunks of {@link #BATCH_CHUNK_SIZE} transfers as it is read, so when a transfer is
+     * invalid or a chunk is not admitted, the chunks before it stay submitted: the error body is a
+     * {@link BatchRejectionDto} with their ids. A retried batch with the same {@code Idempotency-Key} gets the ids of
+     * the transfers submitted before and only submits the rest.
+     */
+    @POST
+    @Path("/batch")
+    @Consumes(APPLICATION_JSON)
+    @Produces(APPLICATION_JSON)
+    public List<UUID> submitTransfers(InputStream body, @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey) {
+        final BatchSubmission submission = new BatchSubmission(idempotencyKey);
+        try {
+            TransferBatchReader.readArray(TransferBatchReader.limit(body, MAX_BATCH_BYTES), submission);
+            return submission.finish();
+        } catch (WebApplicationException e) {
+            throw submission.rejected(e);
+        }
+    }
+
+    @POST
+    @Path("/batch")
+    @Consumes(APPLICATION_NDJSON)
+    @Produces(APPLICATION_JSON)
+    public List<UUID> submitTransferLines(InputStream body, @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey) {
+        final BatchSubmission submission = new BatchSubmission(idempotencyKey);
+        try {
+            TransferBatchReader.readLines(TransferBatchReader.limit(body, MAX_BATCH_BYTES), submission);
+            return submission.finish();
+        } catch (WebApplicationException e) {
+            throw submission.rejected(e);
+        }
+    }
+
+    /**
+     * Retries of a submission are answered also while new transfers are rejected, only new keys are admitted.
+     */
+    private Transfer submitOnce(Transfer transfer, String idempotencyKey) {
+        if (!moneyTransferService.hasIdempotencyKey(idempotencyKey)) {
+            admit(1);
+        }
+        final Transfer submitted = moneyTransferService.submitTransfer(transfer, idempotencyKey);
+        if (submitted == null) {
+            throw new WebApplicationException(Response.Status.CONFLICT);
+        }
+        if (submitted != transfer && (!Objects.equals(submitted.getAccountFrom(), transfer.getAccountFrom())
+                || !Objects.equals(submitted.getAccountTo(), transfer.getAccountTo())
+                || submitted.getAmount() != transfer.getAmount())) {
+            throw new WebApplicationException(IDEMPOTENCY_KEY + " was used for another transfer", 422);
+        }
+        return submitted;
+    }
+
+    @GET
+    @Path("/pending")
+    @Produces(APPLICATION_JSON)
+    public PendingTransfersStats getPendingTransfersStats() {
+        return admissionControl.getStats();
+    }
+
+    private void admit(int count) {
+        if (count > admissionControl.getMaxAdmission()) {
+            throw new WebApplicationException("At most " + admissionControl.getMaxAdmission()
+                    + " transfers are admitted together", Response.Status.REQUEST_ENTITY_TOO_LARGE);
+        }
+        if (!admissionControl.tryAdmit(count)) {
+            throw new WebApplicationException(Response.status(Response.Status.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, admissionControl.getRetryAfter())
+                    .build());
+        }
+    }
+
+    private void validateIdempotencyKey(String idempotencyKey) {
+        if (idempotencyKey != null && (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH)) {
+            throw new BadRequestException(IDEMPOTENCY_KEY + " must have 1 to " + MAX_IDEMPOTENCY_KEY_LENGTH + " characters");
+        }
     }
 
-    private void validate(Transfer transfer) {
+    private void validate(TransferDto transfer) {
         final BigDecimal amount = transfer.getAmount();
-        if (amount == null || amount.scale() > Constants.SCALE || amount.compareTo(BigDecimal.ZERO) <= 0
+        if (amount == null || !Money.isRepresentable(amount) || amount.compareTo(BigDecimal.ZERO) <= 0
                 || transfer.getAccountFrom() == null || transfer.getAccountTo() == null) {
             throw new WebApplicationException(422);
         }
+    }
 
+    /**
+     * Collects the transfers of a batch and submits every full chunk, so at most one chunk is held in memory.
+     * With an idempotency key, the transfer at index {@code i} of the batch gets the key {@code <key>#<i>}.
+     */
+    private class BatchSubmission implements Consumer<TransferDto> {
 
-    }
+        private final String idempotencyKey;
+        private final List<Transfer> chunk = new ArrayList<>(BATCH_CHUNK_SIZE);
+        private final List<UUID> ids = new ArrayList<>();
+        private int row;
+
+        BatchSubmission(String idempotencyKey) {
+            validateIdempotencyKey(idempotencyKey);
+            this.idempotencyKey = idempotencyKey;
+        }
+
+        @Override
+        public void accept(TransferDto transfer) {
+            validate(transfer);
+            chunk.add(transfer.toTransfer());
+            row++;
+            if (chunk.size() == BATCH_CHUNK_SIZE) {
+                submit();
+            }
+        }
+
+        List<UUID> finish() {
+            if (!chunk.isEmpty()) {
+                submit();
+            }
+            return ids;
+        }
+
+        /**
+         * @return {@code e} with a {@link BatchRejectionDto} body
+         */
+        WebApplicationException rejected(WebApplicationException e) {
+            return new WebApplicationException(e.getMessage(), e, Response.fromResponse(e.getResponse())
+                    .type(APPLICATION_JSON)
+                    .entity(new BatchRejectionDto(e.getMessage(), row, ids))
+                    .build());
+        }
 
+        /**
+         * A chunk is stored in full or not at all, so a retried chunk is only admitted again if its first transfer
+         * was not submitted before.
+         */
+        private void submit() {
+            final int first = ids.size();
+            try {
+                if (idempotencyKey == null) {
+                    admit(chunk.size());
+                    ids.addAll(moneyTransferService.submitTransfers(chunk));
+                } else {
+                    if (!moneyTransferService.hasIdempotencyKey(idempotencyKey + '#' + first)) {
+                        admit(chunk.size());
+                    }
+                    final List<String> keys = new ArrayList<>(chunk.size());
+                    for (int i = first; i < first + chunk.size(); i++) {
+                        keys.add(idempotencyKey + '#' + i);
+                    }
+                    ids.addAll(moneyTransferService.submitTransfers(chunk, keys));
+                }
+            } catch (WebApplicationException e) {
+                // the whole chunk is rejected
+                row = first;
+                throw e;
+            }
+            chunk.clear();
+        }
+    }
 
+    /**
+     * With {@code waitMs} a pending transfer is sent as soon as it is processed, or as is after {@code waitMs}.
+     *
+     * @return {@link TransferDto}, or its {@link CompletionStage} when waiting
+     */
     @GET
     @Path("/{id}")
     @Produces(APPLICATION_JSON)
-    public Transfer getTransfer(@PathParam("id") UUID id) {
+    public Object getTransfer(@PathParam("id") UUID id, @QueryParam("waitMs") @DefaultValue("0") long waitMs) {
         final Transfer transfer = moneyTransferService.getTransfer(id);
         if (transfer == null) {
             throw new WebApplicationException(Response.Status.NOT_FOUND);
         }
-        return transfer;
+        return waitMs > 0 && transfer.getStatus() == Transfer.Status.PENDING
+                ? awaitProcessed(transfer, waitMs) : TransferDto.of(transfer);
     }
 
+    /**
+     * Suspends the request until the transfer is processed, without holding its {@link ConcurrencyLimitFilter}
+     * permit. A transport which can't suspend requests gets the transfer as is.
+     *
+     * @return {@link TransferDto}, or its {@link CompletionStage} when the request is suspended
+     */
+    private Object awaitProcessed(Transfer transfer, long waitMs) {
+        if (Boolean.FALSE.equals(configuration.getProperty(HttpTransport.SUSPEND_SUPPORTED))) {
+            return TransferDto.of(transfer);
+        }
+        ConcurrencyLimitFilter.release(request);
+        return completionListener.awaitProcessed(transfer.getId(), Math.min(waitMs, MAX_WAIT))
+                .thenApply(processed -> TransferDto.of(processed != null ? processed : transfer));
+    }
+
+    /**
+     * Transfers of the account ordered by date, written to the response as they are read. Pages are requested with
+     * {@code after} or {@code before} set to the id of the last or the first transfer of the previous page.
+     */
     @GET
     @Path("/by-account/{id}")
     @Produces(APPLICATION_JSON)
-    public List<Transfer> getTransfers(@PathParam("id") UUID id) {
-        return moneyTransferService.getTransfersByAccount(id);
+    public StreamingOutput getTransfers(@PathParam("id") UUID id, @QueryParam("after") UUID after,
+                                        @QueryParam("before") UUID before, @QueryParam("limit") @DefaultValue("0") int limit) {
+        if (limit < 0) {
+            throw new BadRequestException("limit must not be negative");
+        }
+        final Transfer afterTransfer = cursor(after);
+        final Transfer beforeTransfer = cursor(before);
+        return output -> {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(output, UTF_8));
+            writer.write('[');
+            final boolean[] first = {true};
+            moneyTransferService.getTransfersByAccount(id, afterTransfer, beforeTransfer, limit, transfer -> {
+                try {
+                    if (!first[0]) {
+                        writer.write(',');
+                    }
+                    first[0] = false;
+                    writer.write(JSONB.toJson(TransferDto.of(transfer)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            writer.write(']');
+            writer.flush();
+        };
+    }
+
+    private Transfer cursor(UUID id) {
+        if (id == null) {
+            return null;
+        }
+        final Transfer transfer = moneyTransferService.getTransfer(id);
+        if (transfer == null) {
+            throw new BadRequestException("Unknown transfer " + id);
+        }
+        return transfer;
     }
 
 }
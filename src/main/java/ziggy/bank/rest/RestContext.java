@@ -1,9 +1,12 @@
 package ziggy.bank.rest;
 
+import io.micrometer.prometheus.PrometheusMeterRegistry;
 import org.glassfish.jersey.internal.inject.AbstractBinder;
 import org.glassfish.jersey.server.ResourceConfig;
 import ziggy.bank.service.AccountService;
+import ziggy.bank.service.AdmissionControl;
 import ziggy.bank.service.MoneyTransferService;
+import ziggy.bank.service.TransferCompletionListener;
 
 /**
  * Created by Dmitry Tsigelnik on 3/8/19.
@@ -12,7 +15,9 @@ public class RestContext extends ResourceConfig {
 
 
     public RestContext(MoneyTransferService moneyTransferService,
-                       AccountService accountService) {
+                       AccountService accountService,
+                       TransferCompletionListener completionListener,
+                       AdmissionControl admissionControl) {
 
         register(MoneyTransferResource.class);
         register(AccountResource.class);
@@ -21,8 +26,26 @@ public class RestContext extends ResourceConfig {
             protected void configure() {
                 bind(moneyTransferService).to(MoneyTransferService.class);
                 bind(accountService).to(AccountService.class);
+                bind(completionListener).to(TransferCompletionListener.class);
+                bind(admissionControl).to(AdmissionControl.class);
             }
         });
     }
 
+    /**
+     * Lets at most {@code maxConcurrentRequests} requests run at the same time, see {@link ConcurrencyLimitFilter}.
+     */
+    public RestContext limitConcurrentRequests(int maxConcurrentRequests, long timeout) {
+        register(new ConcurrencyLimitFilter(maxConcurrentRequests, timeout));
+        return this;
+    }
+
+    /**
+     * Serves the meters of {@code registry} at {@code /metrics}, see {@link MetricsResource}.
+     */
+    public RestContext exposeMetrics(PrometheusMeterRegistry registry) {
+        register(new MetricsResource(registry));
+        return this;
+    }
+
 }
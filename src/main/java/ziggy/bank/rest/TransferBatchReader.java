@@ -0,0 +1,138 @@
+package ziggy.bank.rest;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.json.stream.JsonParser;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads transfers of a batch one by one from a JSON array or from NDJSON (one JSON object per line) without
+ * materializing the whole document.
+ */
+class TransferBatchReader {
+
+    private TransferBatchReader() {
+    }
+
+    static void readArray(InputStream body, Consumer<TransferDto> consumer) {
+        try (JsonParser parser = Json.createParser(body)) {
+            if (!parser.hasNext() || parser.next() != JsonParser.Event.START_ARRAY) {
+                throw new BadRequestException("JSON array of transfers expected");
+            }
+            while (parser.hasNext()) {
+                final JsonParser.Event event = parser.next();
+                if (event == JsonParser.Event.END_ARRAY) {
+                    return;
+                }
+                if (event != JsonParser.Event.START_OBJECT) {
+                    throw new BadRequestException("JSON object expected: " + event);
+                }
+                consumer.accept(toDto(parser.getObject()));
+            }
+        } catch (JsonException | IllegalStateException e) {
+            throw new BadRequestException(e.getMessage(), e);
+        }
+    }
+
+    static void readLines(InputStream body, Consumer<TransferDto> consumer) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    consumer.accept(toDto(Json.createReader(new StringReader(line)).readObject()));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (JsonException e) {
+            throw new BadRequestException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return {@code body} which fails with 413 once more than {@code maxBytes} are read from it
+     */
+    static InputStream limit(InputStream body, long maxBytes) {
+        return new FilterInputStream(body) {
+
+            private long remaining = maxBytes;
+
+            @Override
+            public int read() throws IOException {
+                final int read = super.read();
+                if (read >= 0) {
+                    consume(1);
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                final int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    consume(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long bytes) throws IOException {
+                final long skipped = super.skip(bytes);
+                consume(skipped);
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            private void consume(long bytes) {
+                remaining -= bytes;
+                if (remaining < 0) {
+                    throw new WebApplicationException("Batch is larger than " + maxBytes + " bytes",
+                            Response.Status.REQUEST_ENTITY_TOO_LARGE);
+                }
+            }
+        };
+    }
+
+    private static TransferDto toDto(JsonObject object) {
+        try {
+            final TransferDto transfer = new TransferDto();
+            transfer.setAccountFrom(uuid(object, "accountFrom"));
+            transfer.setAccountTo(uuid(object, "accountTo"));
+            final JsonNumber amount = isNull(object, "amount") ? null : object.getJsonNumber("amount");
+            transfer.setAmount(amount == null ? null : amount.bigDecimalValue());
+            return transfer;
+        } catch (ClassCastException | IllegalArgumentException e) {
+            throw new BadRequestException("Malformed transfer: " + object, e);
+        }
+    }
+
+    private static UUID uuid(JsonObject object, String name) {
+        return isNull(object, name) ? null : UUID.fromString(object.getString(name));
+    }
+
+    private static boolean isNull(JsonObject object, String name) {
+        final JsonValue value = object.get(name);
+        return value == null || value == JsonValue.NULL;
+    }
+
+}
@@ -0,0 +1,104 @@
+package ziggy.bank.rest;
+
+import ziggy.bank.model.Transfer;
+import ziggy.bank.utils.Money;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * JSON representation of {@link Transfer} with the amount as a decimal amount.
+ */
+public class TransferDto {
+
+    private UUID id;
+    private UUID accountFrom;
+    private UUID accountTo;
+    private BigDecimal amount;
+    private Date date;
+    private Transfer.Status status = Transfer.Status.PENDING;
+    private List<Transfer.FailReason> failReasons = new ArrayList<>();
+
+    public static TransferDto of(Transfer transfer) {
+        final TransferDto dto = new TransferDto();
+        dto.setId(transfer.getId());
+        dto.setAccountFrom(transfer.getAccountFrom());
+        dto.setAccountTo(transfer.getAccountTo());
+        dto.setAmount(Money.toDecimal(transfer.getAmount()));
+        dto.setDate(transfer.getDate());
+        dto.setStatus(transfer.getStatus());
+        dto.setFailReasons(transfer.getFailReasons());
+        return dto;
+    }
+
+    /**
+     * Fields a client may set when submitting a transfer, the rest is assigned by the service.
+     */
+    public Transfer toTransfer() {
+        final Transfer transfer = new Transfer();
+        transfer.setAccountFrom(accountFrom);
+        transfer.setAccountTo(accountTo);
+        transfer.setAmount(Money.toMinor(amount));
+        return transfer;
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public void setId(UUID id) {
+        this.id = id;
+    }
+
+    public UUID getAccountFrom() {
+        return accountFrom;
+    }
+
+    public void setAccountFrom(UUID accountFrom) {
+        this.accountFrom = accountFrom;
+    }
+
+    public UUID getAccountTo() {
+        return accountTo;
+    }
+
+    public void setAccountTo(UUID accountTo) {
+        this.accountTo = accountTo;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public void setAmount(BigDecimal amount) {
+        this.amount = amount;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public void setDate(Date date) {
+        this.date = date;
+    }
+
+    public Transfer.Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Transfer.Status status) {
+        this.status = status;
+    }
+
+    public List<Transfer.FailReason> getFailReasons() {
+        return failReasons;
+    }
+
+    public void setFailReasons(List<Transfer.FailReason> failReasons) {
+        this.failReasons = failReasons;
+    }
+
+}
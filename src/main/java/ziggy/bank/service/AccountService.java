@@ -1,30 +1,97 @@
 package ziggy.bank.service;
 
 import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteCache;
+import org.apache.ignite.cache.CacheMetrics;
+import org.apache.ignite.cache.CachePeekMode;
+import org.apache.ignite.configuration.CacheConfiguration;
+import org.apache.ignite.transactions.Transaction;
+import org.apache.ignite.transactions.TransactionOptimisticException;
+import ziggy.bank.ignite.IgniteInitializer;
 import ziggy.bank.model.Account;
+import ziggy.bank.utils.IdGenerator;
 
 import java.util.UUID;
 
-import static ziggy.bank.utils.Constants.ACCOUNTS;
+import static org.apache.ignite.transactions.TransactionConcurrency.OPTIMISTIC;
+import static org.apache.ignite.transactions.TransactionIsolation.SERIALIZABLE;
 
 /**
  * Created by Dmitry Tsigelnik on 5/8/19.
  */
 public class AccountService {
+
+    /**
+     * Reads of an account whose ledger is folded meanwhile are retried up to this many times.
+     */
+    static final int MAX_READ_ATTEMPTS = 10;
+
     private final Ignite ignite;
+    private final IgniteCache<UUID, Account> accounts;
+    private final Ledger ledger;
+    private IdGenerator idGenerator = IdGenerator.create(IdGenerator.Type.RANDOM);
+    private ProcessingMode processingMode = ProcessingMode.OBJECT;
 
     public AccountService(Ignite ignite) {
         this.ignite = ignite;
+        this.accounts = IgniteInitializer.accounts(ignite);
+        this.ledger = new Ledger(ignite);
+    }
+
+    public void setIdGenerator(IdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
     }
 
+    /**
+     * Mode the transfers are processed in, see {@link MoneyTransferService#setProcessingMode}.
+     */
+    public void setProcessingMode(ProcessingMode processingMode) {
+        this.processingMode = processingMode;
+    }
+
+    /**
+     * In {@link ProcessingMode#LEDGER} the balance of the account is its snapshot plus its credits still in the
+     * ledger, which are read by key. Both are read in one optimistic serializable transaction, which takes no lock and
+     * is retried if a transfer folds the ledger of the account meanwhile. In the other modes the ledger is folded on
+     * startup, so the account is a single read, which may be served by the near cache.
+     */
     public Account getAccount(UUID id) {
-        return (Account) ignite.getOrCreateCache(ACCOUNTS).get(id);
+        if (processingMode != ProcessingMode.LEDGER) {
+            return accounts.get(id);
+        }
+        for (int attempt = 1; ; attempt++) {
+            try (final Transaction transaction = ignite.transactions().txStart(OPTIMISTIC, SERIALIZABLE)) {
+                final Account account = accounts.get(id);
+                if (account != null) {
+                    account.setBalance(Math.addExact(account.getBalance(), Ledger.delta(ledger.entries(id).values())));
+                }
+                transaction.commit();
+                return account;
+            } catch (TransactionOptimisticException e) {
+                if (attempt == MAX_READ_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
     }
 
     public UUID createAccount(Account account) {
-        UUID id = UUID.randomUUID();
+        UUID id = idGenerator.next();
         account.setId(id);
-        ignite.getOrCreateCache(ACCOUNTS).put(id, account);
+        accounts.put(id, account);
         return id;
     }
+
+    /**
+     * Size and hit/miss counters of the accounts near cache on this node, all zero if the near cache is disabled.
+     */
+    public NearCacheStats getNearCacheStats() {
+        final CacheConfiguration cfg = accounts.getConfiguration(CacheConfiguration.class);
+        if (cfg.getNearConfiguration() == null) {
+            return new NearCacheStats(false, 0, 0, 0);
+        }
+        final CacheMetrics metrics = accounts.localMetrics();
+        return new NearCacheStats(true, accounts.localSize(CachePeekMode.NEAR), metrics.getCacheHits(),
+                metrics.getCacheMisses());
+    }
 }
@@ -0,0 +1,209 @@
+package ziggy.bank.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteCache;
+import org.apache.ignite.cache.CachePeekMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ziggy.bank.ignite.IgniteInitializer;
+import ziggy.bank.model.PendingTransferKey;
+import ziggy.bank.model.Transfer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the number of pending transfers, so that submissions faster than processing are rejected instead of growing
+ * {@code PENDING_TRANSFERS} until the node runs out of memory.
+ * <p>
+ * The depth of the primary partitions of {@code PENDING_TRANSFERS} on this node is sampled every {@code sampleInterval}
+ * ms, plus the transfers admitted since the last sample. Submissions which would take the depth above the high
+ * watermark are rejected, and once it is reached all of them are rejected until the depth falls to the low watermark,
+ * so that the service does not flap around a single limit. The drain rate is the rate at
+ * which the local {@link MoneyTransferService} processes transfers, and is used to tell rejected clients when to
+ * retry.
+ */
+public class AdmissionControl implements MeterBinder {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(AdmissionControl.class);
+
+    public static final long DEFAULT_HIGH_WATERMARK = 100_000;
+    public static final long DEFAULT_LOW_WATERMARK = 50_000;
+    public static final long DEFAULT_SAMPLE_INTERVAL = 100;
+
+    /**
+     * Max delay in seconds suggested to rejected clients.
+     */
+    static final long MAX_RETRY_AFTER = 30;
+
+    // weight of the last sample in the drain rate
+    private static final double RATE_SMOOTHING = 0.2;
+
+    private final IgniteCache<PendingTransferKey, Transfer> pendingTransfers;
+    private final MoneyTransferService moneyTransferService;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final AtomicLong admittedSinceSample = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+    private long sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+    private volatile long depth;
+    private volatile double drainRate;
+    private volatile boolean overloaded;
+    private long lastSampleTime;
+    private long lastProcessed;
+    private ScheduledExecutorService sampler;
+
+    public AdmissionControl(Ignite ignite, MoneyTransferService moneyTransferService,
+                            long highWatermark, long lowWatermark) {
+        if (highWatermark <= 0) {
+            throw new IllegalArgumentException("highWatermark must be positive: " + highWatermark);
+        }
+        if (lowWatermark < 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("lowWatermark must be between 0 and " + highWatermark + ": " + lowWatermark);
+        }
+        this.pendingTransfers = IgniteInitializer.pendingTransfers(ignite);
+        this.moneyTransferService = moneyTransferService;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    public void setSampleInterval(long sampleInterval) {
+        if (sampleInterval <= 0) {
+            throw new IllegalArgumentException("sampleInterval must be positive: " + sampleInterval);
+        }
+        this.sampleInterval = sampleInterval;
+    }
+
+    public void start() {
+        lastSampleTime = System.nanoTime();
+        lastProcessed = moneyTransferService.getProcessedCount();
+        sample();
+        sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "pending-transfers-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleWithFixedDelay(this::sample, sampleInterval, sampleInterval, TimeUnit.MILLISECONDS);
+        LOGGER.info("Admitting transfers up to {} pending, again below {}", highWatermark, lowWatermark);
+    }
+
+    public void stop() {
+        sampler.shutdownNow();
+        LOGGER.info("AdmissionControl stopped, {}", getStats());
+    }
+
+    /**
+     * Admits {@code count} transfers unless they would take the pending transfers above the high watermark.
+     * Transfers of a batch are admitted or rejected together, so batches larger than {@link #getMaxAdmission()} must
+     * not be submitted at all.
+     *
+     * @return {@code false} if the transfers must not be submitted
+     */
+    public boolean tryAdmit(int count) {
+        if (!overloaded) {
+            long admitted;
+            do {
+                admitted = admittedSinceSample.get();
+                if (depth + admitted + count > highWatermark) {
+                    rejected.add(count);
+                    return false;
+                }
+            } while (!admittedSinceSample.compareAndSet(admitted, admitted + count));
+            if (depth + admitted + count == highWatermark) {
+                overloaded = true;
+            }
+            return true;
+        }
+        rejected.add(count);
+        return false;
+    }
+
+    /**
+     * @return max number of transfers admitted together: the headroom between the watermarks, which is all that
+     * is left for submissions once the pending transfers have fallen to the low watermark
+     */
+    public long getMaxAdmission() {
+        return Math.max(1, highWatermark - lowWatermark);
+    }
+
+    /**
+     * @return seconds after which a rejected client should retry: the time to drain the pending transfers down to the
+     * low watermark at the current drain rate, at least 1 and at most {@link #MAX_RETRY_AFTER}
+     */
+    public long getRetryAfter() {
+        final double rate = drainRate;
+        if (rate <= 0) {
+            return MAX_RETRY_AFTER;
+        }
+        final long seconds = (long) Math.ceil((depth - lowWatermark) / rate);
+        return Math.max(1, Math.min(MAX_RETRY_AFTER, seconds));
+    }
+
+    /**
+     * Seconds the processing of this node needs for the pending transfers at the current drain rate, {@code NaN}
+     * while nothing is processed.
+     */
+    public double getLag() {
+        final long pending = depth;
+        final double rate = drainRate;
+        if (pending == 0) {
+            return 0;
+        }
+        return rate > 0 ? pending / rate : Double.NaN;
+    }
+
+    /**
+     * Registers gauges of the depth, the drain rate and the lag, and a counter of rejected transfers.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("bank.transfers.pending", this, control -> control.depth)
+                .description("Pending transfers at the last sample")
+                .register(registry);
+        Gauge.builder("bank.transfers.drain.rate", this, control -> control.drainRate)
+                .description("Transfers processed by this node per second")
+                .register(registry);
+        Gauge.builder("bank.transfers.lag", this, AdmissionControl::getLag)
+                .description("Seconds needed to process the pending transfers at the current drain rate")
+                .baseUnit("seconds")
+                .register(registry);
+        FunctionCounter.builder("bank.transfers.rejected", rejected, LongAdder::sum)
+                .register(registry);
+    }
+
+    public PendingTransfersStats getStats() {
+        return new PendingTransfersStats(depth, drainRate, highWatermark, lowWatermark, overloaded, rejected.sum());
+    }
+
+    void sample() {
+        try {
+            final long size = pendingTransfers.localSizeLong(CachePeekMode.PRIMARY);
+            admittedSinceSample.set(0);
+            final long now = System.nanoTime();
+            final long processed = moneyTransferService.getProcessedCount();
+            if (now > lastSampleTime) {
+                final double rate = (processed - lastProcessed) * (double) TimeUnit.SECONDS.toNanos(1) / (now - lastSampleTime);
+                drainRate = drainRate == 0 ? rate : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * drainRate;
+            }
+            lastSampleTime = now;
+            lastProcessed = processed;
+            depth = size;
+
+            if (size >= highWatermark) {
+                overloaded = true;
+            } else if (size <= lowWatermark) {
+                overloaded = false;
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Error sampling pending transfers: " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package ziggy.bank.service;
+
+import org.apache.ignite.cache.CacheEntryProcessor;
+import ziggy.bank.model.Account;
+
+import javax.cache.processor.MutableEntry;
+import java.util.UUID;
+
+/**
+ * Credits an account by {@code amounts} in order, on the node that owns the account. A credit which would overflow
+ * the balance left by the previous ones is skipped. A zero amount only checks that the account exists.
+ * <p>
+ * Returns one of {@link #APPLIED} or {@link #BALANCE_OVERFLOW} per amount, or {@code null} if the account does not
+ * exist.
+ */
+class CreditProcessor implements CacheEntryProcessor<UUID, Account, byte[]> {
+
+    static final byte APPLIED = 0;
+    static final byte BALANCE_OVERFLOW = 1;
+
+    private final long[] amounts;
+
+    CreditProcessor(long[] amounts) {
+        this.amounts = amounts;
+    }
+
+    @Override
+    public byte[] process(MutableEntry<UUID, Account> entry, Object... arguments) {
+        if (!entry.exists()) {
+            return null;
+        }
+        final Account account = entry.getValue();
+        long balance = account.getBalance();
+        final byte[] results = new byte[amounts.length];
+        for (int i = 0; i < amounts.length; i++) {
+            final long amount = amounts[i];
+            if (balance > Long.MAX_VALUE - amount) {
+                results[i] = BALANCE_OVERFLOW;
+            } else {
+                balance += amount;
+                results[i] = APPLIED;
+            }
+        }
+        if (balance != account.getBalance()) {
+            account.setBalance(balance);
+            entry.setValue(account);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,53 @@
+package ziggy.bank.service;
+
+import org.apache.ignite.cache.CacheEntryProcessor;
+import ziggy.bank.model.Account;
+
+import javax.cache.processor.MutableEntry;
+import java.util.UUID;
+
+/**
+ * Debits an account by {@code amounts} in order, on the node that owns the account. A debit which exceeds the balance
+ * left by the previous ones is skipped, so the funds check and the update are atomic.
+ * <p>
+ * Returns one of {@link #APPLIED}, {@link #INCORRECT_AMOUNT} or {@link #INSUFFICIENT_FUNDS} per amount, or
+ * {@code null} if the account does not exist.
+ */
+class DebitProcessor implements CacheEntryProcessor<UUID, Account, byte[]> {
+
+    static final byte APPLIED = 0;
+    static final byte INCORRECT_AMOUNT = 1;
+    static final byte INSUFFICIENT_FUNDS = 2;
+
+    private final long[] amounts;
+
+    DebitProcessor(long[] amounts) {
+        this.amounts = amounts;
+    }
+
+    @Override
+    public byte[] process(MutableEntry<UUID, Account> entry, Object... arguments) {
+        if (!entry.exists()) {
+            return null;
+        }
+        final Account account = entry.getValue();
+        long balance = account.getBalance();
+        final byte[] results = new byte[amounts.length];
+        for (int i = 0; i < amounts.length; i++) {
+            final long amount = amounts[i];
+            if (amount <= 0) {
+                results[i] = INCORRECT_AMOUNT;
+            } else if (amount > balance) {
+                results[i] = INSUFFICIENT_FUNDS;
+            } else {
+                balance -= amount;
+                results[i] = APPLIED;
+            }
+        }
+        if (balance != account.getBalance()) {
+            account.setBalance(balance);
+            entry.setValue(account);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,28 @@
+package ziggy.bank.service;
+
+import org.apache.ignite.cache.CacheEntryProcessor;
+import ziggy.bank.model.PendingTransferKey;
+
+import javax.cache.processor.MutableEntry;
+
+/**
+ * Claims an idempotency key for {@code transfer}, on the node that owns the key. Returns {@code null} if the key was
+ * claimed, otherwise the transfer it was claimed for before.
+ */
+class IdempotencyKeyProcessor implements CacheEntryProcessor<String, PendingTransferKey, PendingTransferKey> {
+
+    private final PendingTransferKey transfer;
+
+    IdempotencyKeyProcessor(PendingTransferKey transfer) {
+        this.transfer = transfer;
+    }
+
+    @Override
+    public PendingTransferKey process(MutableEntry<String, PendingTransferKey> entry, Object... arguments) {
+        if (entry.exists()) {
+            return entry.getValue();
+        }
+        entry.setValue(transfer);
+        return null;
+    }
+}
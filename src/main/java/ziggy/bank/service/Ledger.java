@@ -0,0 +1,98 @@
+package ziggy.bank.service;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteCache;
+import org.apache.ignite.cache.affinity.Affinity;
+import org.apache.ignite.cache.query.QueryCursor;
+import org.apache.ignite.cache.query.ScanQuery;
+import ziggy.bank.ignite.IgniteInitializer;
+import ziggy.bank.model.LedgerEntry;
+import ziggy.bank.model.LedgerEntryKey;
+
+import javax.cache.Cache;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import static ziggy.bank.utils.Constants.LEDGER;
+
+/**
+ * Journal of credits not yet folded into the balances of their accounts, see {@link ProcessingMode#LEDGER}.
+ * <p>
+ * The outstanding entries of an account fill its slots from 1 without gaps: a credit is appended to the slot after the
+ * last entry and folding removes all entries of the account. Entries are thus read by key, {@link #SLOTS_PER_READ}
+ * slots at a time until a slot is empty. Within a transaction the empty slot is read too, so transactions appending to
+ * the same account conflict on it instead of writing the same slot, and a folded entry is either not read or
+ * conflicts with the fold, so no entry is counted twice.
+ */
+class Ledger {
+
+    /**
+     * Slots read with one {@code getAll}, enough for the entries of most accounts.
+     */
+    static final int SLOTS_PER_READ = 16;
+
+    private final Ignite ignite;
+    private final IgniteCache<LedgerEntryKey, LedgerEntry> journal;
+
+    Ledger(Ignite ignite) {
+        this.ignite = ignite;
+        this.journal = IgniteInitializer.ledger(ignite);
+    }
+
+    /**
+     * Outstanding entries of the account, by slot.
+     */
+    Map<LedgerEntryKey, LedgerEntry> entries(UUID accountId) {
+        final Map<LedgerEntryKey, LedgerEntry> entries = new TreeMap<>();
+        for (long first = 1; ; first += SLOTS_PER_READ) {
+            final Set<LedgerEntryKey> slots = new TreeSet<>();
+            for (long slot = first; slot < first + SLOTS_PER_READ; slot++) {
+                slots.add(new LedgerEntryKey(accountId, slot));
+            }
+            final Map<LedgerEntryKey, LedgerEntry> read = journal.getAll(slots);
+            entries.putAll(read);
+            if (read.size() < SLOTS_PER_READ) {
+                return entries;
+            }
+        }
+    }
+
+    /**
+     * Accounts which have outstanding entries in the partitions this node is the primary node of, found by scanning
+     * these partitions locally.
+     */
+    Set<UUID> primaryAccounts() {
+        final Set<UUID> accounts = new TreeSet<>();
+        final Affinity<LedgerEntryKey> affinity = ignite.affinity(LEDGER);
+        for (int partition : affinity.primaryPartitions(ignite.cluster().localNode())) {
+            final ScanQuery<LedgerEntryKey, LedgerEntry> query = new ScanQuery<>(partition);
+            query.setLocal(true);
+            try (QueryCursor<Cache.Entry<LedgerEntryKey, LedgerEntry>> cursor = journal.query(query)) {
+                for (Cache.Entry<LedgerEntryKey, LedgerEntry> entry : cursor) {
+                    accounts.add(entry.getKey().getAccountId());
+                }
+            }
+        }
+        return accounts;
+    }
+
+    void append(Map<LedgerEntryKey, LedgerEntry> entries) {
+        journal.putAll(entries);
+    }
+
+    void remove(Set<LedgerEntryKey> keys) {
+        journal.removeAll(keys);
+    }
+
+    static long delta(Collection<LedgerEntry> entries) {
+        long delta = 0;
+        for (LedgerEntry entry : entries) {
+            delta = Math.addExact(delta, entry.getAmount());
+        }
+        return delta;
+    }
+}
@@ -1,57 +1,190 @@
 package ziggy.bank.service;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
+import ziggy.bank.model.PendingTransferKey;
+import ziggy.bank.utils.VirtualThreads;
 
 import java.time.Duration;
-import java.time.temporal.ChronoUnit;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Dmitry Tsigelnik on 5/8/19.
+ * <p>
+ * Pending transfers are pushed by {@link MoneyTransferService#listenPendingTransfers} and sharded by
+ * {@code accountFrom} into a fixed number of lanes. Every lane is served by its own single thread, so all debits of
+ * one account are applied by one writer and never race each other. A transfer that is already queued in a lane is not
+ * dispatched again. Lanes commit transfers in batches of up to {@code batchSize}; transfers of a batch that failed to
+ * commit are dispatched again after a delay which doubles with every attempt. A transfer which failed
+ * {@code maxAttempts} times is parked: it stays pending and is dispatched again only by a rescan of pending transfers
+ * or a restart.
  */
-public class MoneyTransferProcessor {
+public class MoneyTransferProcessor implements MeterBinder {
 
     private final static Logger LOGGER = LoggerFactory.getLogger(MoneyTransferProcessor.class);
 
+    private static final Duration BATCH_WINDOW = Duration.ofMillis(50);
+    private static final Duration RETRY_DELAY = Duration.ofMillis(50);
+    private static final Duration MAX_RETRY_DELAY = Duration.ofSeconds(2);
+    private static final int DEFAULT_MAX_ATTEMPTS = 10;
+
     private final MoneyTransferService moneyTransferService;
+    private final int laneCount;
+    private final int batchSize;
+    private final Set<PendingTransferKey> inFlight = ConcurrentHashMap.newKeySet();
+    private final Map<PendingTransferKey, Integer> attempts = new ConcurrentHashMap<>();
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private boolean virtualThreads;
+    private Scheduler listener;
+    private Scheduler[] lanes;
+    private volatile FluxSink<PendingTransferKey> sink;
     private Disposable flux;
 
 
     public MoneyTransferProcessor(MoneyTransferService moneyTransferService) {
-        this.moneyTransferService = moneyTransferService;
+        this(moneyTransferService, Runtime.getRuntime().availableProcessors(), MoneyTransferService.DEFAULT_BATCH_SIZE);
     }
 
+    public MoneyTransferProcessor(MoneyTransferService moneyTransferService, int laneCount, int batchSize) {
+        if (laneCount <= 0) {
+            throw new IllegalArgumentException("laneCount must be positive: " + laneCount);
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        this.moneyTransferService = moneyTransferService;
+        this.laneCount = laneCount;
+        this.batchSize = batchSize;
+    }
 
-    public void start() {
-        flux = Flux.create(sink -> sink.onRequest((n) -> {
 
-            LOGGER.info("Requested {} elements", n);
-            try {
-                moneyTransferService.selectAndConsumePendingTransfers((int) Long.min(Integer.MAX_VALUE, n), (id) -> {
-                    sink.next(id);
-                });
+    /**
+     * Runs lanes on virtual threads instead of platform threads, requires JDK 21+.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
 
-            } catch (Exception e) {
-                LOGGER.error("Error fetching Transfers: {} ", e.getMessage(), e);
-                sink.error(e);
-            }
+    /**
+     * Number of failed commits after which a transfer is parked, {@value #DEFAULT_MAX_ATTEMPTS} by default.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+    }
 
+    public void start() {
+        listener = virtualThreads
+                ? Schedulers.fromExecutorService(VirtualThreads.newSingleThreadExecutor("transfer-listener-"))
+                : Schedulers.newSingle("transfer-listener");
+        lanes = new Scheduler[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = virtualThreads
+                    ? Schedulers.fromExecutorService(VirtualThreads.newSingleThreadExecutor("transfer-lane-" + i + "-"))
+                    : Schedulers.newSingle("transfer-lane-" + i);
+        }
 
-        }))
-                .publishOn(Schedulers.elastic())
-                .timeout(Duration.of(2, ChronoUnit.SECONDS), Schedulers.elastic())
-                .retry()
-                .subscribeOn(Schedulers.elastic())
-                .subscribe(id -> moneyTransferService.processTransfer((UUID) id));
+        flux = Flux.<PendingTransferKey>create(sink -> {
+            this.sink = sink;
+            final AutoCloseable subscription = moneyTransferService.listenPendingTransfers(key -> {
+                if (inFlight.add(key)) {
+                    sink.next(key);
+                }
+            });
+            LOGGER.info("Listening for pending transfers");
+            sink.onDispose(() -> close(subscription));
+        })
+                .doOnError(e -> LOGGER.error("Error fetching Transfers: {} ", e.getMessage(), e))
+                .retryBackoff(Long.MAX_VALUE, RETRY_DELAY, MAX_RETRY_DELAY)
+                .subscribeOn(listener)
+                .groupBy(key -> lane(key.getAccountFrom()))
+                .flatMap(lane -> lane.bufferTimeout(batchSize, BATCH_WINDOW)
+                        .publishOn(lanes[lane.key()])
+                        .doOnNext(this::process), laneCount)
+                .subscribe();
     }
 
     public void stop() {
         flux.dispose();
-        LOGGER.info("MoneyTransferProcessor stopped");
+        listener.dispose();
+        for (Scheduler lane : lanes) {
+            lane.dispose();
+        }
+        inFlight.clear();
+        attempts.clear();
+        LOGGER.info("MoneyTransferProcessor stopped, {}, {}", moneyTransferService.getTransactionStats(),
+                moneyTransferService.getQueryStats());
+    }
+
+    /**
+     * Registers a gauge of the transfers dispatched to lanes and not yet committed.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("bank.transfers.inflight", inFlight, Set::size)
+                .register(registry);
+    }
+
+    int lane(UUID accountFrom) {
+        return accountFrom == null ? 0 : Math.floorMod(accountFrom.hashCode(), laneCount);
+    }
+
+    private void process(List<PendingTransferKey> batch) {
+        Set<PendingTransferKey> notCommitted;
+        try {
+            notCommitted = new HashSet<>(moneyTransferService.processTransfers(batch));
+        } catch (Exception e) {
+            LOGGER.error("Error processing Transfers: {} ", e.getMessage(), e);
+            notCommitted = new HashSet<>(batch);
+        }
+
+        for (PendingTransferKey key : batch) {
+            if (!notCommitted.contains(key)) {
+                attempts.remove(key);
+                inFlight.remove(key);
+                continue;
+            }
+            final int attempt = attempts.merge(key, 1, Integer::sum);
+            if (attempt >= maxAttempts) {
+                LOGGER.error("Parked transfer {} after {} failed attempts", key.getId(), attempt);
+                attempts.remove(key);
+                inFlight.remove(key);
+            } else {
+                Schedulers.parallel().schedule(() -> sink.next(key), retryDelay(attempt), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds to wait before the next attempt after {@code attempt} failed ones
+     */
+    static long retryDelay(int attempt) {
+        final long delay = RETRY_DELAY.toMillis() << Math.min(attempt - 1, 16);
+        return Math.min(delay, MAX_RETRY_DELAY.toMillis());
+    }
+
+    private static void close(AutoCloseable subscription) {
+        try {
+            subscription.close();
+        } catch (Exception e) {
+            LOGGER.warn("Error closing pending transfers subscription: " + e.getMessage());
+        }
     }
 
 }
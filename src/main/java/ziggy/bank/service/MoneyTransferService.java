@@ -1,64 +1,270 @@
 package ziggy.bank.service;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import org.apache.ignite.Ignite;
 import org.apache.ignite.IgniteCache;
-import org.apache.ignite.cache.query.FieldsQueryCursor;
+import org.apache.ignite.IgniteDataStreamer;
+import org.apache.ignite.IgniteException;
+import org.apache.ignite.binary.BinaryObject;
+import org.apache.ignite.cache.CacheEntryEventSerializableFilter;
+import org.apache.ignite.cache.affinity.Affinity;
+import org.apache.ignite.cache.query.ContinuousQuery;
+import org.apache.ignite.cache.query.QueryCursor;
+import org.apache.ignite.cache.query.ScanQuery;
 import org.apache.ignite.cache.query.SqlFieldsQuery;
 import org.apache.ignite.cache.query.SqlQuery;
+import org.apache.ignite.cluster.ClusterNode;
+import org.apache.ignite.events.CacheRebalancingEvent;
+import org.apache.ignite.events.Event;
+import org.apache.ignite.lang.IgniteCallable;
+import org.apache.ignite.lang.IgniteFuture;
+import org.apache.ignite.lang.IgnitePredicate;
+import org.apache.ignite.lang.IgniteRunnable;
+import org.apache.ignite.resources.IgniteInstanceResource;
 import org.apache.ignite.transactions.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ziggy.bank.ignite.IgniteInitializer;
+import ziggy.bank.ignite.TransactionMode;
 import ziggy.bank.model.Account;
+import ziggy.bank.model.LedgerEntry;
+import ziggy.bank.model.LedgerEntryKey;
+import ziggy.bank.model.PendingTransferKey;
 import ziggy.bank.model.Transfer;
-import ziggy.bank.utils.Constants;
+import ziggy.bank.utils.IdGenerator;
 
 import javax.cache.Cache;
-import java.math.BigDecimal;
+import javax.cache.configuration.FactoryBuilder;
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.EventType;
+import javax.cache.processor.EntryProcessor;
+import javax.cache.processor.EntryProcessorResult;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static java.lang.String.format;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.apache.ignite.events.EventType.EVT_CACHE_REBALANCE_STOPPED;
+import static ziggy.bank.utils.Constants.ACCOUNTS;
 import static ziggy.bank.utils.Constants.PENDING_TRANSFERS;
-import static ziggy.bank.utils.Constants.TRANSFERS;
 
 /**
  * Created by Dmitry Tsigelnik on 4/8/19.
+ * <p>
+ * Pending transfers are stored in the partition of their {@code accountFrom}, see {@link PendingTransferKey}, and are
+ * processed by compute jobs on the primary node of that partition. Reading the transfer and the debited account,
+ * removing the transfer from {@code PENDING_TRANSFERS} and the debit are local to that node, only the credited account
+ * may be remote. Every node runs its own service, which the jobs find in the node local map.
  */
-public class MoneyTransferService {
+public class MoneyTransferService implements MeterBinder {
 
     private final static Logger LOGGER = LoggerFactory.getLogger(MoneyTransferService.class);
 
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final int DEFAULT_LEDGER_FOLD_THRESHOLD = 64;
+
+    public static final String TRANSFERS_BY_ACCOUNT_QUERY = "transfersByAccount";
+    public static final String PENDING_TRANSFERS_QUERY = "pendingTransfers";
+
+    static final String NODE_LOCAL_KEY = MoneyTransferService.class.getName();
+
+    private static final String PENDING_TRANSFERS_SQL = "order by date, sequence";
+    private static final String PENDING_TRANSFERS_BY_ID_SQL = "order by id";
+    private static final String PENDING_TRANSFER_SQL = format("select _val from %s where id = ?",
+            Transfer.class.getSimpleName());
+
+    // options of the transfers by account statement
+    private static final int FROM = 0;
+    private static final int TO = 1;
+    private static final int AFTER = 2;
+    private static final int BEFORE = 4;
+    private static final int DESCENDING = 8;
+    private static final int LIMIT = 16;
+
+    /**
+     * Statement templates for every combination of options, built once so that every call with the same options
+     * runs the same statement text with bound parameters and the parsed plan is reused.
+     */
+    private static final String[] TRANSFERS_BY_ACCOUNT_SQL = new String[LIMIT * 2];
+
+    static {
+        for (int options = 0; options < TRANSFERS_BY_ACCOUNT_SQL.length; options++) {
+            TRANSFERS_BY_ACCOUNT_SQL[options] = transfersByAccountSql(options);
+        }
+    }
+
+    private static final Comparator<Transfer> BY_DATE_AND_ID = Comparator.comparing(Transfer::getDate)
+            .thenComparing(Transfer::getId);
+
     private final Ignite ignite;
+    private final IgniteCache<UUID, Account> accountsCache;
+    private final IgniteCache<PendingTransferKey, Transfer> pendingTransfers;
+    private final IgniteCache<UUID, Transfer> transfersCache;
+    private final IgniteCache<String, PendingTransferKey> idempotencyKeys;
+    private final Ledger ledger;
+    private final IgniteCache<UUID, BinaryObject> binaryAccounts;
+    private final IgniteCache<PendingTransferKey, BinaryObject> binaryPendingTransfers;
+    private final IgniteCache<UUID, BinaryObject> binaryTransfers;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int ledgerFoldThreshold = DEFAULT_LEDGER_FOLD_THRESHOLD;
+    private IdGenerator idGenerator = IdGenerator.create(IdGenerator.Type.RANDOM);
+    private ProcessingMode processingMode = ProcessingMode.OBJECT;
+    private TransactionMode transactionMode = TransactionMode.OPTIMISTIC;
+    private TransactionStats transactionStats = new TransactionStats(transactionMode);
+    private final QueryStats queryStats = new QueryStats();
+    private final LongAdder processed = new LongAdder();
+    private final AtomicLong submissions = new AtomicLong();
+    private TransferMetrics metrics = TransferMetrics.NOOP;
 
     public MoneyTransferService(Ignite ignite) {
         this.ignite = ignite;
+        this.accountsCache = IgniteInitializer.accounts(ignite);
+        this.pendingTransfers = IgniteInitializer.pendingTransfers(ignite);
+        this.transfersCache = IgniteInitializer.transfers(ignite);
+        this.idempotencyKeys = IgniteInitializer.idempotencyKeys(ignite);
+        this.ledger = new Ledger(ignite);
+        this.binaryAccounts = accountsCache.withKeepBinary();
+        this.binaryPendingTransfers = pendingTransfers.withKeepBinary();
+        this.binaryTransfers = transfersCache.withKeepBinary();
+        ignite.cluster().nodeLocalMap().put(NODE_LOCAL_KEY, this);
+    }
+
+    public TransactionMode getTransactionMode() {
+        return transactionMode;
+    }
+
+    public void setTransactionMode(TransactionMode transactionMode) {
+        this.transactionMode = transactionMode;
+        this.transactionStats = new TransactionStats(transactionMode);
+    }
+
+    public ProcessingMode getProcessingMode() {
+        return processingMode;
+    }
+
+    public void setProcessingMode(ProcessingMode processingMode) {
+        this.processingMode = processingMode;
+    }
+
+    public TransactionStats getTransactionStats() {
+        return transactionStats;
+    }
+
+    /**
+     * Registers timers of submission, processing and commit, and counters of processed transfers by status, of failed
+     * transfers by reason and of rolled back transactions.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        metrics = new TransferMetrics(registry);
+    }
+
+    /**
+     * Transfers moved out of {@code PENDING_TRANSFERS} by this node since it started.
+     */
+    public long getProcessedCount() {
+        return processed.sum();
+    }
+
+    public QueryStats getQueryStats() {
+        return queryStats;
+    }
+
+    public IdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
+    /**
+     * Generator of transfer ids. With {@link IdGenerator#isTimeOrdered() time ordered} ids pending transfers are
+     * ordered by their keys instead of their dates.
+     */
+    public void setIdGenerator(IdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Number of ledger entries of an account at which a chunk crediting it folds them into the account, so that the
+     * journal of an account which is only credited stays bounded, see {@link ProcessingMode#LEDGER}.
+     */
+    public void setLedgerFoldThreshold(int ledgerFoldThreshold) {
+        if (ledgerFoldThreshold <= 0) {
+            throw new IllegalArgumentException("ledgerFoldThreshold must be positive: " + ledgerFoldThreshold);
+        }
+        this.ledgerFoldThreshold = ledgerFoldThreshold;
     }
 
-    public void processTransfer(UUID transferId) {
+    /**
+     * Processes the transfer on the primary node of its {@code accountFrom}. The partition is kept on that node until
+     * the transfer is processed.
+     */
+    public void processTransfer(PendingTransferKey key) {
+        try {
+            ignite.compute().affinityRun(asList(ACCOUNTS, PENDING_TRANSFERS), key.getAccountFrom(),
+                    new ProcessTransferJob(key));
+        } catch (IgniteException e) {
+            LOGGER.warn("Transfer {} not processed: {}", key.getId(), e.getMessage());
+        }
+    }
 
-        try (final Transaction transaction = ignite.transactions().txStart()) {
-            final IgniteCache<UUID, Account> accountsCache = ignite.getOrCreateCache(Constants.ACCOUNTS);
-            final IgniteCache<UUID, Transfer> transfersCache = ignite.getOrCreateCache(TRANSFERS);
-            final IgniteCache<UUID, Transfer> pendingTransfers = ignite.getOrCreateCache(PENDING_TRANSFERS);
+    void processLocal(PendingTransferKey key) {
+        if (processingMode == ProcessingMode.LEDGER) {
+            // balances of the ledger are only folded by chunks
+            processBatch(singletonList(key));
+            return;
+        }
+        final UUID transferId = key.getId();
+        final long start = System.nanoTime();
 
-            final Transfer transfer = pendingTransfers.getAndRemove(transferId);
+        try (final Transaction transaction = txStart()) {
+            final Transfer transfer = pendingTransfers.getAndRemove(key);
             if (transfer == null) {
                 LOGGER.debug("No Pending Transaction found, Possible duplicate: " + transferId);
                 return;
             }
 
-            Account from = accountsCache.get(transfer.getAccountFrom());
-            Account to = accountsCache.get(transfer.getAccountTo());
+            final Map<UUID, Account> accounts = new HashMap<>();
+            for (UUID accountId : accountIds(singletonList(transfer))) {
+                accounts.put(accountId, accountsCache.get(accountId));
+            }
+            Account from = accounts.get(transfer.getAccountFrom());
+            Account to = accounts.get(transfer.getAccountTo());
             if (validate(transfer, from, to)) {
-                final BigDecimal amount = transfer.getAmount();
+                final long amount = transfer.getAmount();
 
 
-                from.setBalance(from.getBalance().subtract(amount));
-                to.setBalance(to.getBalance().add(amount));
+                from.setBalance(Math.subtractExact(from.getBalance(), amount));
+                to.setBalance(Math.addExact(to.getBalance(), amount));
 
                 accountsCache.put(from.getId(), from);
                 accountsCache.put(to.getId(), to);
@@ -71,77 +277,1085 @@ public class MoneyTransferService {
             transfersCache.put(transferId, transfer);
 
 
-            transaction.commit();
+            commit(transaction);
+            processed(transfer);
             LOGGER.info("Transfer {} {}", transferId, transfer.getStatus());
         } catch (Exception e) {
+            abort(e);
             LOGGER.warn("Transaction failed: " + e.getMessage());
+        } finally {
+            metrics.processed(System.nanoTime() - start);
         }
     }
 
-    private boolean validate(Transfer transfer, Account from, Account to) {
-        if (from == null) {
-            transfer.getFailReasons().add(Transfer.FailReason.FROM_ACCOUNT_NOT_FOUND);
+    /**
+     * Processes transfers in chunks of {@link #getBatchSize()}, one transaction per chunk. Accounts are loaded and
+     * stored with a single {@code getAll}/{@code putAll} per chunk and transfers are applied in date order. A transfer
+     * failing validation is stored as {@link Transfer.Status#FAILED} and does not affect the rest of the chunk.
+     * <p>
+     * Transfers are grouped by the primary node of their {@code accountFrom} and every group is processed by one job
+     * on that node, rather than one affinity job per transfer, so that chunks still commit many transfers at once.
+     *
+     * @return keys of transfers whose chunk failed to commit and which are still pending
+     */
+    public List<PendingTransferKey> processTransfers(Collection<PendingTransferKey> keys) {
+        final ClusterNode localNode = ignite.cluster().localNode();
+        final Map<ClusterNode, Collection<PendingTransferKey>> byNode =
+                ignite.<PendingTransferKey>affinity(PENDING_TRANSFERS).mapKeysToNodes(keys);
+
+        final Map<ClusterNode, IgniteFuture<List<PendingTransferKey>>> remote = new HashMap<>();
+        for (Map.Entry<ClusterNode, Collection<PendingTransferKey>> entry : byNode.entrySet()) {
+            if (!entry.getKey().equals(localNode)) {
+                remote.put(entry.getKey(), ignite.compute(ignite.cluster().forNode(entry.getKey()))
+                        .callAsync(new ProcessTransfersJob(entry.getValue())));
+            }
         }
-        if (to == null) {
-            transfer.getFailReasons().add(Transfer.FailReason.TO_ACCOUNT_NOT_FOUND);
+
+        final List<PendingTransferKey> notCommitted = new ArrayList<>();
+        final Collection<PendingTransferKey> local = byNode.get(localNode);
+        if (local != null) {
+            notCommitted.addAll(processLocal(local));
         }
+        for (Map.Entry<ClusterNode, IgniteFuture<List<PendingTransferKey>>> entry : remote.entrySet()) {
+            try {
+                notCommitted.addAll(entry.getValue().get());
+            } catch (IgniteException e) {
+                LOGGER.warn("Batch failed on node {}: {}", entry.getKey().id(), e.getMessage());
+                notCommitted.addAll(byNode.get(entry.getKey()));
+            }
+        }
+        return notCommitted;
+    }
 
-        if (!transfer.getFailReasons().isEmpty()) {
+    List<PendingTransferKey> processLocal(Collection<PendingTransferKey> keys) {
+        final List<PendingTransferKey> notCommitted = new ArrayList<>();
+        final List<PendingTransferKey> batch = new ArrayList<>(Integer.min(batchSize, keys.size()));
+        for (PendingTransferKey key : keys) {
+            batch.add(key);
+            if (batch.size() == batchSize) {
+                notCommitted.addAll(processBatch(batch));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            notCommitted.addAll(processBatch(batch));
+        }
+        return notCommitted;
+    }
+
+    /**
+     * @return keys of the chunk which are still pending
+     */
+    private List<PendingTransferKey> processBatch(List<PendingTransferKey> keys) {
+        final long start = System.nanoTime();
+        try {
+            switch (processingMode) {
+                case BINARY:
+                    return processBinaryBatch(keys) ? Collections.emptyList() : new ArrayList<>(keys);
+                case ENTRY_PROCESSOR:
+                    return processEntryProcessorBatch(keys);
+                case LEDGER:
+                    return processLedgerBatch(keys) ? Collections.emptyList() : new ArrayList<>(keys);
+                default:
+                    return processObjectBatch(keys) ? Collections.emptyList() : new ArrayList<>(keys);
+            }
+        } finally {
+            metrics.processed(System.nanoTime() - start);
+        }
+    }
+
+    private boolean processObjectBatch(Collection<PendingTransferKey> keys) {
+
+        try (final Transaction transaction = txStart()) {
+            final Map<PendingTransferKey, Transfer> pending = pendingTransfers.getAll(new TreeSet<>(keys));
+            if (pending.size() < keys.size()) {
+                LOGGER.debug("{} of {} Pending Transactions not found, Possible duplicates", keys.size() - pending.size(), keys.size());
+            }
+            if (pending.isEmpty()) {
+                return true;
+            }
+
+            final List<Transfer> transfers = inSubmissionOrder(pending);
+
+            final Map<UUID, Account> accounts = accountsCache.getAll(accountIds(transfers));
+
+            final Map<UUID, Account> updatedAccounts = new TreeMap<>();
+            final Map<UUID, Transfer> processedTransfers = new HashMap<>();
+            for (Transfer transfer : transfers) {
+                final Account from = transfer.getAccountFrom() == null ? null : accounts.get(transfer.getAccountFrom());
+                final Account to = transfer.getAccountTo() == null ? null : accounts.get(transfer.getAccountTo());
+                if (validate(transfer, from, to)) {
+                    final long amount = transfer.getAmount();
+
+                    from.setBalance(Math.subtractExact(from.getBalance(), amount));
+                    to.setBalance(Math.addExact(to.getBalance(), amount));
+
+                    updatedAccounts.put(from.getId(), from);
+                    updatedAccounts.put(to.getId(), to);
+
+                    transfer.setStatus(Transfer.Status.DONE);
+                } else {
+                    transfer.setStatus(Transfer.Status.FAILED);
+                }
+                processedTransfers.put(transfer.getId(), transfer);
+            }
+
+            if (!updatedAccounts.isEmpty()) {
+                accountsCache.putAll(updatedAccounts);
+            }
+            transfersCache.putAll(processedTransfers);
+            pendingTransfers.removeAll(pending.keySet());
+
+            commit(transaction);
+            for (Transfer transfer : transfers) {
+                processed(transfer);
+                LOGGER.info("Transfer {} {}", transfer.getId(), transfer.getStatus());
+            }
+            return true;
+        } catch (Exception e) {
+            abort(e);
+            LOGGER.warn("Batch transaction failed: " + e.getMessage());
             return false;
         }
+    }
+
+    /**
+     * Same as {@link #processObjectBatch} on binary objects: only {@code id}, {@code accountFrom}, {@code accountTo},
+     * {@code amount} and {@code date} of a transfer and {@code balance} of an account are read, and every updated
+     * account is rebuilt once per chunk.
+     */
+    private boolean processBinaryBatch(Collection<PendingTransferKey> keys) {
+
+        try (final Transaction transaction = txStart()) {
+            final Collection<BinaryObject> pending = binaryPendingTransfers.getAll(new TreeSet<>(keys)).values();
+            if (pending.size() < keys.size()) {
+                LOGGER.debug("{} of {} Pending Transactions not found, Possible duplicates", keys.size() - pending.size(), keys.size());
+            }
+            if (pending.isEmpty()) {
+                return true;
+            }
 
+            final List<BinaryObject> transfers = new ArrayList<>(pending);
+            if (idGenerator.isTimeOrdered()) {
+                transfers.sort(Comparator.comparing(transfer -> transfer.<UUID>field("id"),
+                        Comparator.nullsFirst(Comparator.naturalOrder())));
+            } else {
+                transfers.sort(Comparator.comparing((BinaryObject transfer) -> transfer.<Date>field("date"),
+                        Comparator.nullsFirst(Comparator.naturalOrder()))
+                        .thenComparing(transfer -> transfer.<Long>field("sequence"),
+                                Comparator.nullsFirst(Comparator.naturalOrder())));
+            }
+
+            final SortedSet<UUID> accountIds = new TreeSet<>();
+            for (BinaryObject transfer : transfers) {
+                if (transfer.field("accountFrom") != null) {
+                    accountIds.add(transfer.field("accountFrom"));
+                }
+                if (transfer.field("accountTo") != null) {
+                    accountIds.add(transfer.field("accountTo"));
+                }
+            }
+            final Map<UUID, BinaryObject> accounts = binaryAccounts.getAll(accountIds);
+            final Map<UUID, Long> balances = new HashMap<>();
+            for (Map.Entry<UUID, BinaryObject> account : accounts.entrySet()) {
+                balances.put(account.getKey(), account.getValue().field("balance"));
+            }
 
-        final BigDecimal amount = transfer.getAmount();
+            final SortedSet<UUID> updatedIds = new TreeSet<>();
+            final Map<UUID, BinaryObject> processedTransfers = new HashMap<>();
+            final Map<UUID, Transfer.Status> statuses = new LinkedHashMap<>();
+            final List<Transfer.FailReason> chunkFailReasons = new ArrayList<>();
+            for (BinaryObject transfer : transfers) {
+                final UUID fromId = transfer.field("accountFrom");
+                final UUID toId = transfer.field("accountTo");
+                final long amount = transfer.<Long>field("amount");
+                final List<Transfer.FailReason> failReasons = failReasons(amount,
+                        fromId == null ? null : balances.get(fromId), toId == null ? null : balances.get(toId));
+                final Transfer.Status status;
+                if (failReasons.isEmpty()) {
+                    balances.put(fromId, Math.subtractExact(balances.get(fromId), amount));
+                    balances.put(toId, Math.addExact(balances.get(toId), amount));
+                    updatedIds.add(fromId);
+                    updatedIds.add(toId);
+                    status = Transfer.Status.DONE;
+                } else {
+                    status = Transfer.Status.FAILED;
+                    chunkFailReasons.addAll(failReasons);
+                }
 
-        if (amount == null || BigDecimal.ZERO.compareTo(amount) >= 0 || amount.scale() > Constants.SCALE) {
-            transfer.getFailReasons().add(Transfer.FailReason.INCORRECT_AMOUNT);
+                final UUID id = transfer.field("id");
+                processedTransfers.put(id, withStatus(transfer, status, failReasons));
+                statuses.put(id, status);
+            }
+
+            final Map<UUID, BinaryObject> updatedAccounts = new TreeMap<>();
+            for (UUID accountId : updatedIds) {
+                updatedAccounts.put(accountId, accounts.get(accountId).toBuilder()
+                        .setField("balance", balances.get(accountId))
+                        .build());
+            }
+
+            if (!updatedAccounts.isEmpty()) {
+                binaryAccounts.putAll(updatedAccounts);
+            }
+            binaryTransfers.putAll(processedTransfers);
+            binaryPendingTransfers.removeAll(new TreeSet<>(keys));
+
+            commit(transaction);
+            processed.add(statuses.size());
+            chunkFailReasons.forEach(metrics::failed);
+            statuses.forEach((id, status) -> {
+                metrics.processed(status);
+                LOGGER.info("Transfer {} {}", id, status);
+            });
+            return true;
+        } catch (Exception e) {
+            abort(e);
+            LOGGER.warn("Batch transaction failed: " + e.getMessage());
             return false;
+        }
+    }
+
+    /**
+     * Applies the chunk with {@link DebitProcessor} and {@link CreditProcessor} invoked with {@code invokeAll} on the
+     * accounts, one processor per account, so the funds check and the update of a balance are a single operation
+     * instead of a read and a write of the account, and only the outcome of every amount comes back. Inside the
+     * transaction a processor is evaluated where the account is read and applied again on the primary node at commit,
+     * so accounts still travel as in the other modes.
+     * <p>
+     * All debits of the chunk run in one {@code invokeAll}, then all its credits in another one. A transfer debiting an
+     * account credited earlier in the chunk is processed by a following transaction, once the credit is committed,
+     * and so are the later transfers of its accounts. The debit of a transfer whose credited account does not exist or
+     * would overflow is refunded, so that these rare transfers fail with the same reasons as in the other modes.
+     *
+     * @return keys of the chunk which are still pending
+     */
+    private List<PendingTransferKey> processEntryProcessorBatch(List<PendingTransferKey> keys) {
+        final List<PendingTransferKey> deferred = new ArrayList<>();
+        try (final Transaction transaction = txStart()) {
+            final Map<PendingTransferKey, Transfer> pending = pendingTransfers.getAll(new TreeSet<>(keys));
+            if (pending.size() < keys.size()) {
+                LOGGER.debug("{} of {} Pending Transactions not found, Possible duplicates", keys.size() - pending.size(), keys.size());
+            }
+            if (pending.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            final List<Transfer> transfers = new ArrayList<>(pending.size());
+            final Set<UUID> credited = new HashSet<>();
+            final Set<UUID> deferredAccounts = new HashSet<>();
+            for (Transfer transfer : inSubmissionOrder(pending)) {
+                final UUID from = transfer.getAccountFrom();
+                final UUID to = transfer.getAccountTo();
+                if (from != null && (credited.contains(from) || deferredAccounts.contains(from))
+                        || to != null && deferredAccounts.contains(to)) {
+                    deferred.add(PendingTransferKey.of(transfer));
+                    deferredAccounts.add(from);
+                    deferredAccounts.add(to);
+                } else {
+                    transfers.add(transfer);
+                }
+                credited.add(to);
+            }
+
+            final Map<UUID, List<Transfer>> debitsByAccount = new TreeMap<>();
+            final Map<UUID, List<Transfer>> creditsByAccount = new TreeMap<>();
+            for (Transfer transfer : transfers) {
+                if (transfer.getAccountFrom() == null) {
+                    transfer.getFailReasons().add(Transfer.FailReason.FROM_ACCOUNT_NOT_FOUND);
+                    transfer.setStatus(Transfer.Status.FAILED);
+                    addCredit(creditsByAccount, transfer);
+                } else {
+                    debitsByAccount.computeIfAbsent(transfer.getAccountFrom(), id -> new ArrayList<>()).add(transfer);
+                }
+            }
+            debit(debitsByAccount, creditsByAccount);
+            final Map<UUID, List<Transfer>> refunds = new TreeMap<>();
+            credit(creditsByAccount, refunds);
+            refund(refunds);
+
+            final Map<UUID, Transfer> processedTransfers = new HashMap<>();
+            final Set<PendingTransferKey> processedKeys = new TreeSet<>();
+            for (Transfer transfer : transfers) {
+                processedTransfers.put(transfer.getId(), transfer);
+                processedKeys.add(PendingTransferKey.of(transfer));
+            }
+            transfersCache.putAll(processedTransfers);
+            pendingTransfers.removeAll(processedKeys);
 
+            commit(transaction);
+            for (Transfer transfer : transfers) {
+                processed(transfer);
+                LOGGER.info("Transfer {} {}", transfer.getId(), transfer.getStatus());
+            }
+        } catch (Exception e) {
+            abort(e);
+            LOGGER.warn("Batch transaction failed: " + e.getMessage());
+            return new ArrayList<>(keys);
         }
+        return deferred.isEmpty() ? Collections.emptyList() : processEntryProcessorBatch(deferred);
+    }
 
-        if (amount.compareTo(from.getBalance()) > 0) {
-            transfer.getFailReasons().add(Transfer.FailReason.INSUFFICIENT_FUNDS);
-            return false;
+    /**
+     * Debits every account of {@code debitsByAccount} with a {@link DebitProcessor} and sets the status of its
+     * transfers. Every transfer is then added to {@code creditsByAccount}, also a failed one, whose credited account
+     * is checked to exist. A transfer without credited account is debited by zero, which only checks the account.
+     */
+    private void debit(Map<UUID, List<Transfer>> debitsByAccount, Map<UUID, List<Transfer>> creditsByAccount) {
+        final Map<UUID, EntryProcessor<UUID, Account, byte[]>> debits = new TreeMap<>();
+        debitsByAccount.forEach((id, debited) -> debits.put(id, new DebitProcessor(debited.stream()
+                .mapToLong(transfer -> transfer.getAccountTo() == null ? 0 : transfer.getAmount())
+                .toArray())));
+        final Map<UUID, EntryProcessorResult<byte[]>> results = accountsCache.invokeAll(debits);
+
+        for (Map.Entry<UUID, List<Transfer>> entry : debitsByAccount.entrySet()) {
+            final EntryProcessorResult<byte[]> result = results.get(entry.getKey());
+            final byte[] outcomes = result == null ? null : result.get();
+            for (int i = 0; i < entry.getValue().size(); i++) {
+                final Transfer transfer = entry.getValue().get(i);
+                if (outcomes == null) {
+                    transfer.getFailReasons().add(Transfer.FailReason.FROM_ACCOUNT_NOT_FOUND);
+                } else if (outcomes[i] == DebitProcessor.INSUFFICIENT_FUNDS) {
+                    transfer.getFailReasons().add(Transfer.FailReason.INSUFFICIENT_FUNDS);
+                } else if (outcomes[i] == DebitProcessor.INCORRECT_AMOUNT && transfer.getAccountTo() != null) {
+                    transfer.getFailReasons().add(Transfer.FailReason.INCORRECT_AMOUNT);
+                }
+                transfer.setStatus(outcomes != null && outcomes[i] == DebitProcessor.APPLIED
+                        ? Transfer.Status.DONE : Transfer.Status.FAILED);
+                addCredit(creditsByAccount, transfer);
+            }
         }
+    }
+
+    /**
+     * Credits every account of {@code creditsByAccount} with a {@link CreditProcessor}, by the amounts of its
+     * {@link Transfer.Status#DONE} transfers. Transfers to an account which does not exist or would overflow fail,
+     * and the applied ones are added to {@code refunds} by their debited account.
+     */
+    private void credit(Map<UUID, List<Transfer>> creditsByAccount, Map<UUID, List<Transfer>> refunds) {
+        final Map<UUID, EntryProcessor<UUID, Account, byte[]>> credits = new TreeMap<>();
+        creditsByAccount.forEach((id, credited) -> credits.put(id, new CreditProcessor(credited.stream()
+                .mapToLong(transfer -> transfer.getStatus() == Transfer.Status.DONE ? transfer.getAmount() : 0)
+                .toArray())));
+        final Map<UUID, EntryProcessorResult<byte[]>> results = accountsCache.invokeAll(credits);
 
+        for (Map.Entry<UUID, List<Transfer>> entry : creditsByAccount.entrySet()) {
+            final EntryProcessorResult<byte[]> result = results.get(entry.getKey());
+            final byte[] outcomes = result == null ? null : result.get();
+            for (int i = 0; i < entry.getValue().size(); i++) {
+                final Transfer transfer = entry.getValue().get(i);
+                if (outcomes == null) {
+                    failCredit(transfer, Transfer.FailReason.TO_ACCOUNT_NOT_FOUND, refunds);
+                } else if (outcomes[i] == CreditProcessor.BALANCE_OVERFLOW) {
+                    failCredit(transfer, Transfer.FailReason.BALANCE_OVERFLOW, refunds);
+                }
+            }
+        }
+    }
+
+    private static void failCredit(Transfer transfer, Transfer.FailReason reason,
+                                   Map<UUID, List<Transfer>> refunds) {
+        if (transfer.getStatus() == Transfer.Status.DONE) {
+            refunds.computeIfAbsent(transfer.getAccountFrom(), id -> new ArrayList<>()).add(transfer);
+        }
+        failCredit(transfer, reason);
+    }
+
+    /**
+     * A failed credit replaces the reasons of the debit except a missing debited account, like
+     * {@link #failReasons} reports them.
+     */
+    private static void failCredit(Transfer transfer, Transfer.FailReason reason) {
+        if (!transfer.getFailReasons().contains(Transfer.FailReason.FROM_ACCOUNT_NOT_FOUND)) {
+            transfer.getFailReasons().clear();
+        }
+        transfer.getFailReasons().add(reason);
+        transfer.setStatus(Transfer.Status.FAILED);
+    }
+
+    /**
+     * Credits the debited accounts of {@code refunds} back by the amounts of their transfers. Debits of the chunk
+     * which failed for insufficient funds are not retried with the refunded balance.
+     */
+    private void refund(Map<UUID, List<Transfer>> refunds) {
+        if (refunds.isEmpty()) {
+            return;
+        }
+        final Map<UUID, EntryProcessor<UUID, Account, byte[]>> credits = new TreeMap<>();
+        refunds.forEach((id, refunded) -> credits.put(id, new CreditProcessor(refunded.stream()
+                .mapToLong(Transfer::getAmount).toArray())));
+        final Map<UUID, EntryProcessorResult<byte[]>> results = accountsCache.invokeAll(credits);
+        for (UUID id : credits.keySet()) {
+            final EntryProcessorResult<byte[]> result = results.get(id);
+            final byte[] outcomes = result == null ? null : result.get();
+            if (!allApplied(outcomes)) {
+                throw new IllegalStateException("Refund of account " + id + " failed");
+            }
+        }
+    }
+
+    private static boolean allApplied(byte[] outcomes) {
+        if (outcomes == null) {
+            return false;
+        }
+        for (byte outcome : outcomes) {
+            if (outcome != CreditProcessor.APPLIED) {
+                return false;
+            }
+        }
         return true;
     }
 
+    private static void addCredit(Map<UUID, List<Transfer>> creditsByAccount, Transfer transfer) {
+        if (transfer.getAccountTo() == null) {
+            failCredit(transfer, Transfer.FailReason.TO_ACCOUNT_NOT_FOUND);
+        } else {
+            creditsByAccount.computeIfAbsent(transfer.getAccountTo(), id -> new ArrayList<>()).add(transfer);
+        }
+    }
+
+    /**
+     * Same as {@link #processObjectBatch}, except that a credit to an account which is not debited in the chunk is
+     * appended to the ledger instead of rewriting the account, so chunks crediting the same hot account only read its
+     * entry. Funds and overflow of every account are checked against its snapshot plus its outstanding ledger entries.
+     * Every debited account is rewritten anyway, so its entries are folded into it, and so are the entries of a
+     * credited account once they reach {@code ledgerFoldThreshold}.
+     */
+    private boolean processLedgerBatch(Collection<PendingTransferKey> keys) {
+
+        try (final Transaction transaction = txStart()) {
+            final Map<PendingTransferKey, Transfer> pending = pendingTransfers.getAll(new TreeSet<>(keys));
+            if (pending.size() < keys.size()) {
+                LOGGER.debug("{} of {} Pending Transactions not found, Possible duplicates", keys.size() - pending.size(), keys.size());
+            }
+            if (pending.isEmpty()) {
+                return true;
+            }
+
+            final List<Transfer> transfers = inSubmissionOrder(pending);
+
+            final Map<UUID, Account> accounts = accountsCache.getAll(accountIds(transfers));
+
+            final Map<UUID, Account> rewrittenAccounts = new TreeMap<>();
+            for (Transfer transfer : transfers) {
+                final Account from = transfer.getAccountFrom() == null ? null : accounts.get(transfer.getAccountFrom());
+                if (from != null) {
+                    rewrittenAccounts.put(from.getId(), from);
+                }
+            }
+            final Set<LedgerEntryKey> folded = new TreeSet<>();
+            final Map<UUID, Long> lastSlots = new HashMap<>();
+            // in account order, like the accounts, so that pessimistic transactions lock the entries in the same order
+            for (Account account : new TreeMap<>(accounts).values()) {
+                final Map<LedgerEntryKey, LedgerEntry> entries = ledger.entries(account.getId());
+                account.setBalance(Math.addExact(account.getBalance(), Ledger.delta(entries.values())));
+                if (entries.size() >= ledgerFoldThreshold) {
+                    rewrittenAccounts.put(account.getId(), account);
+                }
+                if (rewrittenAccounts.containsKey(account.getId())) {
+                    folded.addAll(entries.keySet());
+                } else {
+                    lastSlots.put(account.getId(), (long) entries.size());
+                }
+            }
+
+            final Map<LedgerEntryKey, LedgerEntry> credits = new TreeMap<>();
+            final Map<UUID, Transfer> processedTransfers = new HashMap<>();
+            for (Transfer transfer : transfers) {
+                final Account from = transfer.getAccountFrom() == null ? null : accounts.get(transfer.getAccountFrom());
+                final Account to = transfer.getAccountTo() == null ? null : accounts.get(transfer.getAccountTo());
+                if (validate(transfer, from, to)) {
+                    final long amount = transfer.getAmount();
+
+                    from.setBalance(Math.subtractExact(from.getBalance(), amount));
+                    to.setBalance(Math.addExact(to.getBalance(), amount));
+                    if (!rewrittenAccounts.containsKey(to.getId())) {
+                        final long slot = lastSlots.merge(to.getId(), 1L, Long::sum);
+                        credits.put(new LedgerEntryKey(to.getId(), slot), new LedgerEntry(to.getId(), transfer.getId(), amount));
+                    }
+
+                    transfer.setStatus(Transfer.Status.DONE);
+                } else {
+                    transfer.setStatus(Transfer.Status.FAILED);
+                }
+                processedTransfers.put(transfer.getId(), transfer);
+            }
+
+            if (!rewrittenAccounts.isEmpty()) {
+                accountsCache.putAll(rewrittenAccounts);
+            }
+            if (!folded.isEmpty()) {
+                ledger.remove(folded);
+            }
+            if (!credits.isEmpty()) {
+                ledger.append(credits);
+            }
+            transfersCache.putAll(processedTransfers);
+            pendingTransfers.removeAll(pending.keySet());
+
+            commit(transaction);
+            for (Transfer transfer : transfers) {
+                processed(transfer);
+                LOGGER.info("Transfer {} {}", transfer.getId(), transfer.getStatus());
+            }
+            return true;
+        } catch (Exception e) {
+            abort(e);
+            LOGGER.warn("Batch transaction failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Folds the outstanding ledger entries of every account this node is the primary node of into its balance, one
+     * transaction per account. Other processing modes read balances without the ledger, so entries left by
+     * {@link ProcessingMode#LEDGER} must be folded before switching to them. Every node folds its own share when it
+     * starts, and an account folded by two nodes while partitions move is folded once: the fold reads the entries in
+     * its transaction, so the second one finds none or conflicts with the first one.
+     *
+     * @return number of accounts which were not folded because their transaction failed
+     */
+    public int foldLedger() {
+        int notFolded = 0;
+        for (UUID id : ledger.primaryAccounts()) {
+            try (final Transaction transaction = txStart()) {
+                final Account account = accountsCache.get(id);
+                final Map<LedgerEntryKey, LedgerEntry> entries = ledger.entries(id);
+                if (account != null && !entries.isEmpty()) {
+                    account.setBalance(Math.addExact(account.getBalance(), Ledger.delta(entries.values())));
+                    accountsCache.put(id, account);
+                    ledger.remove(entries.keySet());
+                }
+                commit(transaction);
+            } catch (Exception e) {
+                abort(e);
+                LOGGER.warn("Ledger of account {} not folded: {}", id, e.getMessage());
+                notFolded++;
+            }
+        }
+        return notFolded;
+    }
+
+    /**
+     * Time ordered ids order transfers like their dates, also transfers of a batch which share a date, and keys are
+     * compared by id alone. Otherwise transfers of the same date are ordered by their submission sequence.
+     */
+    private List<Transfer> inSubmissionOrder(Map<PendingTransferKey, Transfer> pending) {
+        if (idGenerator.isTimeOrdered()) {
+            return new ArrayList<>(new TreeMap<>(pending).values());
+        }
+        final List<Transfer> transfers = new ArrayList<>(pending.values());
+        transfers.sort(Comparator.comparing(Transfer::getDate, Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparingLong(Transfer::getSequence));
+        return transfers;
+    }
+
+    private void commit(Transaction transaction) {
+        final long start = System.nanoTime();
+        try {
+            transaction.commit();
+        } finally {
+            metrics.committed(System.nanoTime() - start);
+        }
+        transactionStats.commit();
+    }
+
+    private void abort(Exception e) {
+        transactionStats.abort(e);
+        metrics.aborted(e);
+    }
+
+    /**
+     * Counts a transfer of a committed transaction.
+     */
+    private void processed(Transfer transfer) {
+        processed.increment();
+        metrics.processed(transfer.getStatus());
+        transfer.getFailReasons().forEach(metrics::failed);
+    }
+
+    private static BinaryObject withStatus(BinaryObject transfer, Transfer.Status status,
+                                           List<Transfer.FailReason> failReasons) {
+        return transfer.toBuilder()
+                .setField("status", Transfer.statusCode(status))
+                .setField("failReasons", Transfer.failReasonsMask(failReasons))
+                .build();
+    }
+
+    private Transaction txStart() {
+        return ignite.transactions().txStart(transactionMode.getConcurrency(), transactionMode.getIsolation());
+    }
+
+    /**
+     * Accounts touched by the transfers, sorted. In {@link TransactionMode#PESSIMISTIC} mode entries are locked in the
+     * order they are read, so every transaction locks accounts in UUID order and transactions cannot deadlock.
+     */
+    private static SortedSet<UUID> accountIds(Collection<Transfer> transfers) {
+        final SortedSet<UUID> accountIds = new TreeSet<>();
+        for (Transfer transfer : transfers) {
+            if (transfer.getAccountFrom() != null) {
+                accountIds.add(transfer.getAccountFrom());
+            }
+            if (transfer.getAccountTo() != null) {
+                accountIds.add(transfer.getAccountTo());
+            }
+        }
+        return accountIds;
+    }
+
+    private boolean validate(Transfer transfer, Account from, Account to) {
+        transfer.getFailReasons().addAll(failReasons(transfer.getAmount(),
+                from == null ? null : from.getBalance(), to == null ? null : to.getBalance()));
+        return transfer.getFailReasons().isEmpty();
+    }
+
+    /**
+     * @param fromBalance balance of the debited account, {@code null} if it does not exist
+     * @param toBalance   balance of the credited account, {@code null} if it does not exist
+     * @return reasons why the transfer fails, empty if it can be applied
+     */
+    private static List<Transfer.FailReason> failReasons(long amount, Long fromBalance, Long toBalance) {
+        if (fromBalance == null || toBalance == null) {
+            final List<Transfer.FailReason> failReasons = new ArrayList<>(2);
+            if (fromBalance == null) {
+                failReasons.add(Transfer.FailReason.FROM_ACCOUNT_NOT_FOUND);
+            }
+            if (toBalance == null) {
+                failReasons.add(Transfer.FailReason.TO_ACCOUNT_NOT_FOUND);
+            }
+            return failReasons;
+        }
+
+        if (amount <= 0) {
+            return singletonList(Transfer.FailReason.INCORRECT_AMOUNT);
+        }
+
+        if (amount > fromBalance) {
+            return singletonList(Transfer.FailReason.INSUFFICIENT_FUNDS);
+        }
+
+        if (toBalance > Long.MAX_VALUE - amount) {
+            return singletonList(Transfer.FailReason.BALANCE_OVERFLOW);
+        }
+
+        return Collections.emptyList();
+    }
+
 
     public UUID submitTransfer(Transfer transfer) {
-        UUID id = UUID.randomUUID();
-        transfer.setId(id);
-        transfer.setDate(new Date());
+        final long start = System.nanoTime();
+        final UUID id = assignId(transfer);
 
-        ignite.getOrCreateCache(PENDING_TRANSFERS).put(id, transfer);
+        pendingTransfers.put(PendingTransferKey.of(transfer), transfer);
+        metrics.submitted(1, System.nanoTime() - start);
         return id;
     }
 
+    /**
+     * @return {@code true} if a transfer was submitted with {@code idempotencyKey} recently, so that
+     * {@link #submitTransfer(Transfer, String)} would not submit another one
+     */
+    public boolean hasIdempotencyKey(String idempotencyKey) {
+        return idempotencyKeys.containsKey(idempotencyKey);
+    }
+
+    /**
+     * Submits the transfer unless another one was submitted with the same {@code idempotencyKey} recently, so that a
+     * client retrying a submission does not transfer twice. A new submission costs a single {@code getAndPutIfAbsent}
+     * on the idempotency keys.
+     *
+     * @return {@code transfer} if it was submitted, otherwise the transfer submitted first with the key, or
+     * {@code null} if that submission has not stored its transfer yet
+     */
+    public Transfer submitTransfer(Transfer transfer, String idempotencyKey) {
+        final long start = System.nanoTime();
+        assignId(transfer);
+
+        final PendingTransferKey key = PendingTransferKey.of(transfer);
+        final PendingTransferKey original = idempotencyKeys.getAndPutIfAbsent(idempotencyKey, key);
+        if (original != null) {
+            return getTransfer(original);
+        }
+        try {
+            pendingTransfers.put(key, transfer);
+        } catch (RuntimeException e) {
+            // the key must not refer to a transfer which was never stored
+            idempotencyKeys.remove(idempotencyKey, key);
+            throw e;
+        }
+        metrics.submitted(1, System.nanoTime() - start);
+        return transfer;
+    }
+
+    /**
+     * Loads transfers into {@code PENDING_TRANSFERS} through a data streamer, which sends them to the cache in
+     * batches instead of one put per transfer.
+     *
+     * @return ids of the submitted transfers, in the order of {@code transfers}
+     */
+    public List<UUID> submitTransfers(Collection<Transfer> transfers) {
+        final long start = System.nanoTime();
+        final List<UUID> ids = new ArrayList<>(transfers.size());
+        for (Transfer transfer : transfers) {
+            ids.add(assignId(transfer));
+        }
+        stream(transfers);
+        metrics.submitted(ids.size(), System.nanoTime() - start);
+        return ids;
+    }
+
+    /**
+     * Like {@link #submitTransfers(Collection)}, but skips the transfers whose idempotency key was used recently, so
+     * that a client retrying a batch does not transfer twice. The keys of the whole chunk are claimed with a single
+     * {@code invokeAll}, and released again if the transfers can't be stored.
+     *
+     * @param idempotencyKeys distinct keys of the transfers, in the order of {@code transfers}
+     * @return ids of the transfers, in the order of {@code transfers}: the id of the transfer submitted first with
+     * the key for the skipped ones
+     */
+    public List<UUID> submitTransfers(List<Transfer> transfers, List<String> idempotencyKeys) {
+        final long start = System.nanoTime();
+        final Map<String, EntryProcessor<String, PendingTransferKey, PendingTransferKey>> claims = new HashMap<>();
+        for (int i = 0; i < transfers.size(); i++) {
+            final Transfer transfer = transfers.get(i);
+            assignId(transfer);
+            claims.put(idempotencyKeys.get(i), new IdempotencyKeyProcessor(PendingTransferKey.of(transfer)));
+        }
+        final Map<String, EntryProcessorResult<PendingTransferKey>> originals = this.idempotencyKeys.invokeAll(claims);
+
+        final List<UUID> ids = new ArrayList<>(transfers.size());
+        final List<Transfer> claimed = new ArrayList<>(transfers.size());
+        final Set<String> claimedKeys = new HashSet<>();
+        for (int i = 0; i < transfers.size(); i++) {
+            final EntryProcessorResult<PendingTransferKey> original = originals.get(idempotencyKeys.get(i));
+            final PendingTransferKey originalKey = original != null ? original.get() : null;
+            if (originalKey != null) {
+                ids.add(originalKey.getId());
+            } else {
+                ids.add(transfers.get(i).getId());
+                claimed.add(transfers.get(i));
+                claimedKeys.add(idempotencyKeys.get(i));
+            }
+        }
+        try {
+            stream(claimed);
+        } catch (RuntimeException e) {
+            // the keys must not refer to transfers which were never stored
+            this.idempotencyKeys.removeAll(claimedKeys);
+            throw e;
+        }
+        metrics.submitted(claimed.size(), System.nanoTime() - start);
+        return ids;
+    }
+
+    private void stream(Collection<Transfer> transfers) {
+        try (IgniteDataStreamer<PendingTransferKey, Transfer> streamer = ignite.dataStreamer(PENDING_TRANSFERS)) {
+            // overwrite mode stores entries through regular cache updates, so pending transfer listeners are notified
+            streamer.allowOverwrite(true);
+            for (Transfer transfer : transfers) {
+                streamer.addData(PendingTransferKey.of(transfer), transfer);
+            }
+        }
+    }
+
+    /**
+     * Sets the id, the date and the submission sequence of a new transfer. Transfers are processed in the order of
+     * their dates unless ids are time ordered, and transfers of this node which share a date, like the ones of a
+     * batch, in the order of their sequence.
+     *
+     * @return id of the transfer
+     */
+    private UUID assignId(Transfer transfer) {
+        transfer.setId(idGenerator.next());
+        transfer.setDate(new Date());
+        transfer.setSequence(submissions.incrementAndGet());
+        return transfer.getId();
+    }
+
+    /**
+     * Processed transfers are found with a key lookup, only pending ones need the query on {@code PENDING_TRANSFERS}.
+     */
     public Transfer getTransfer(UUID id) {
-        Transfer transfer = (Transfer) ignite.getOrCreateCache(TRANSFERS).get(id);
+        // processing moves a transfer from PENDING_TRANSFERS to TRANSFERS in one transaction, but a reader outside of
+        // it may miss the put and see the removal, so TRANSFERS is read once more if the transfer is in neither cache
+        Transfer transfer = transfersCache.get(id);
         if (transfer == null) {
-            transfer = (Transfer) ignite.getOrCreateCache(PENDING_TRANSFERS).get(id);
+            transfer = getPendingTransfer(id);
+        }
+        if (transfer == null) {
+            transfer = transfersCache.get(id);
         }
 
         return transfer;
     }
 
 
-    public void selectAndConsumePendingTransfers(int limit, Consumer<UUID> consumer) {
-        final SqlFieldsQuery qry = new SqlFieldsQuery(format("select id from %s order by date limit %d", Transfer.class.getSimpleName(), limit));
-        try (final FieldsQueryCursor<List<?>> cursor = ignite.getOrCreateCache(PENDING_TRANSFERS).query(qry)) {
-            cursor.forEach(row -> {
-                final UUID id = (UUID) row.get(0);
-                LOGGER.info("Selected {}", id);
-                consumer.accept(id);
-            });
+    private Transfer getTransfer(PendingTransferKey key) {
+        Transfer transfer = transfersCache.get(key.getId());
+        if (transfer == null) {
+            transfer = pendingTransfers.get(key);
+        }
+        if (transfer == null) {
+            transfer = transfersCache.get(key.getId());
+        }
+        return transfer;
+    }
+
+    /**
+     * The key of a pending transfer is not known from its id, so it is looked up by the indexed {@code id} field.
+     */
+    private Transfer getPendingTransfer(UUID id) {
+        try (QueryCursor<List<?>> cursor = pendingTransfers.query(
+                new SqlFieldsQuery(PENDING_TRANSFER_SQL).setArgs(id))) {
+            final Iterator<List<?>> rows = cursor.iterator();
+            return rows.hasNext() ? (Transfer) rows.next().get(0) : null;
+        }
+    }
+
+    /**
+     * Passes the key of every pending transfer this node is the primary node of to the consumer: first the ones
+     * already pending, in submission order, then each newly submitted one as soon as it is put into
+     * {@code PENDING_TRANSFERS}. Every node of a cluster thus dispatches its own share of the transfers. The continuous
+     * query is local, so a node is only notified of the entries it stores and keeps the ones it is the primary node of,
+     * see {@link PrimaryNodeFilter}, and no event crosses the network. Whenever rebalancing of {@code PENDING_TRANSFERS}
+     * stops on this node after a node joined or left, all pending transfers stored on this node are passed again, also
+     * those it is a backup node of: partitions have moved and transfers dispatched by a node which left are lost.
+     * Rebalancing stops once the partitions are assigned to the nodes of the new topology. A transfer passed by more
+     * than one node is processed once, on its primary node, see {@link #processTransfers}.
+     *
+     * @return handle which stops the notifications when closed
+     */
+    public AutoCloseable listenPendingTransfers(Consumer<PendingTransferKey> consumer) {
+        final Affinity<PendingTransferKey> affinity = ignite.affinity(PENDING_TRANSFERS);
+        final ClusterNode localNode = ignite.cluster().localNode();
+        final Consumer<PendingTransferKey> primary = key -> {
+            if (affinity.isPrimary(localNode, key)) {
+                consumer.accept(key);
+            }
+        };
+
+        final ContinuousQuery<PendingTransferKey, Transfer> qry = new ContinuousQuery<>();
+        qry.setInitialQuery(new SqlQuery<PendingTransferKey, Transfer>(Transfer.class,
+                idGenerator.isTimeOrdered() ? PENDING_TRANSFERS_BY_ID_SQL : PENDING_TRANSFERS_SQL));
+        qry.setRemoteFilterFactory(FactoryBuilder.factoryOf(new PrimaryNodeFilter(localNode.id())));
+        qry.setLocal(true);
+        qry.setLocalListener(events -> {
+            for (CacheEntryEvent<? extends PendingTransferKey, ? extends Transfer> event : events) {
+                if (event.getEventType() == EventType.CREATED) {
+                    primary.accept(event.getKey());
+                }
+            }
+        });
+
+        final long start = System.nanoTime();
+        final QueryCursor<Cache.Entry<PendingTransferKey, Transfer>> cursor = pendingTransfers.query(qry);
+        final Iterator<Cache.Entry<PendingTransferKey, Transfer>> entries = cursor.iterator();
+        queryStats.record(PENDING_TRANSFERS_QUERY, System.nanoTime() - start);
+        while (entries.hasNext()) {
+            primary.accept(entries.next().getKey());
+        }
+
+        final IgnitePredicate<Event> rescan = event -> {
+            if (PENDING_TRANSFERS.equals(((CacheRebalancingEvent) event).cacheName())) {
+                ignite.scheduler().runLocal(() -> rescanPendingTransfers(consumer));
+            }
+            return true;
+        };
+        ignite.events().localListen(rescan, EVT_CACHE_REBALANCE_STOPPED);
+        return () -> {
+            ignite.events().stopLocalListen(rescan);
+            cursor.close();
+        };
+    }
+
+    private void rescanPendingTransfers(Consumer<PendingTransferKey> consumer) {
+        try (QueryCursor<Cache.Entry<PendingTransferKey, Transfer>> cursor =
+                     pendingTransfers.query(new ScanQuery<PendingTransferKey, Transfer>().setLocal(true))) {
+            for (Cache.Entry<PendingTransferKey, Transfer> entry : cursor) {
+                consumer.accept(entry.getKey());
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Error scanning pending transfers: " + e.getMessage());
         }
     }
 
     public List<Transfer> getTransfersByAccount(UUID id) {
-        SqlQuery<UUID, Transfer> qry = new SqlQuery<>(Transfer.class,
-                format("select * from %s where accountFrom = '%s' or accountTo = '%s'", Transfer.class.getSimpleName(), id, id));
-        return Stream.concat(ignite.getOrCreateCache(PENDING_TRANSFERS).query(qry).getAll().stream().map(Cache.Entry::getValue),
-                ignite.getOrCreateCache(TRANSFERS).query(qry).getAll().stream().map(Cache.Entry::getValue)).collect(Collectors.toList());
+        final List<Transfer> transfers = new ArrayList<>();
+        getTransfersByAccount(id, null, null, 0, transfers::add);
+        return transfers;
+    }
+
+    /**
+     * Passes transfers from or to the account to the consumer ordered by {@code (date, id)}. Transfers are read lazily
+     * from {@code PENDING_TRANSFERS} and {@code TRANSFERS}, so memory use does not depend on the length of the history.
+     *
+     * @param after  if not null, only transfers after this one are passed
+     * @param before if not null, only transfers before this one are passed
+     * @param limit  max number of transfers to pass, 0 for all. If only {@code before} is set, these are the last
+     *               {@code limit} transfers before it
+     */
+    public void getTransfersByAccount(UUID id, Transfer after, Transfer before, int limit, Consumer<Transfer> consumer) {
+        final boolean descending = limit > 0 && before != null && after == null;
+        final Comparator<Transfer> order = descending ? BY_DATE_AND_ID.reversed() : BY_DATE_AND_ID;
+        final PriorityQueue<TransferCursor> heads = new PriorityQueue<>(Comparator.comparing(TransferCursor::head, order));
+        final List<QueryCursor<List<?>>> cursors = new ArrayList<>();
+        try {
+            for (IgniteCache<?, Transfer> cache : asList(pendingTransfers, transfersCache)) {
+                for (int side : new int[]{FROM, TO}) {
+                    final long start = System.nanoTime();
+                    final QueryCursor<List<?>> cursor =
+                            cache.query(transfersByAccountQuery(side, id, after, before, limit, descending));
+                    cursors.add(cursor);
+                    final TransferCursor transferCursor = new TransferCursor(cursor.iterator());
+                    final boolean hasNext = transferCursor.next();
+                    queryStats.record(TRANSFERS_BY_ACCOUNT_QUERY, System.nanoTime() - start);
+                    if (hasNext) {
+                        heads.add(transferCursor);
+                    }
+                }
+            }
+
+            final List<Transfer> page = new ArrayList<>();
+            final Consumer<Transfer> target = descending ? page::add : consumer;
+            UUID last = null;
+            int count = 0;
+            while (!heads.isEmpty() && (limit == 0 || count < limit)) {
+                final TransferCursor cursor = heads.poll();
+                final Transfer transfer = cursor.head();
+                // a transfer being processed may be read from both caches, a transfer to the same account by both sides
+                if (!transfer.getId().equals(last)) {
+                    target.accept(transfer);
+                    last = transfer.getId();
+                    count++;
+                }
+                if (cursor.next()) {
+                    heads.add(cursor);
+                }
+            }
+            if (descending) {
+                Collections.reverse(page);
+                page.forEach(consumer);
+            }
+        } finally {
+            cursors.forEach(QueryCursor::close);
+        }
+    }
+
+    private static SqlFieldsQuery transfersByAccountQuery(int side, UUID id, Transfer after, Transfer before,
+                                                          int limit, boolean descending) {
+        int options = side;
+        final List<Object> args = new ArrayList<>();
+        args.add(id);
+        if (after != null) {
+            options |= AFTER;
+            args.addAll(asList(after.getDate(), after.getDate(), after.getId()));
+        }
+        if (before != null) {
+            options |= BEFORE;
+            args.addAll(asList(before.getDate(), before.getDate(), before.getId()));
+        }
+        if (descending) {
+            options |= DESCENDING;
+        }
+        if (limit > 0) {
+            options |= LIMIT;
+            args.add(limit);
+        }
+        return new SqlFieldsQuery(TRANSFERS_BY_ACCOUNT_SQL[options]).setArgs(args.toArray()).setLazy(true);
+    }
+
+    private static String transfersByAccountSql(int options) {
+        final StringBuilder sql = new StringBuilder(format("select _val from %s where %s = ?",
+                Transfer.class.getSimpleName(), (options & TO) != 0 ? "accountTo" : "accountFrom"));
+        if ((options & AFTER) != 0) {
+            sql.append(" and (date > ? or date = ? and id > ?)");
+        }
+        if ((options & BEFORE) != 0) {
+            sql.append(" and (date < ? or date = ? and id < ?)");
+        }
+        final String direction = (options & DESCENDING) != 0 ? " desc" : "";
+        sql.append(" order by date").append(direction).append(", id").append(direction);
+        if ((options & LIMIT) != 0) {
+            sql.append(" limit ?");
+        }
+        return sql.toString();
+    }
+
+    private static class TransferCursor {
+        private final Iterator<List<?>> rows;
+        private Transfer head;
+
+        TransferCursor(Iterator<List<?>> rows) {
+            this.rows = rows;
+        }
+
+        Transfer head() {
+            return head;
+        }
+
+        boolean next() {
+            head = rows.hasNext() ? (Transfer) rows.next().get(0) : null;
+            return head != null;
+        }
+    }
+
+    private static MoneyTransferService local(Ignite ignite) {
+        return ignite.cluster().<String, MoneyTransferService>nodeLocalMap().get(NODE_LOCAL_KEY);
+    }
+
+    static class ProcessTransferJob implements IgniteRunnable {
+        private final PendingTransferKey key;
+        @IgniteInstanceResource
+        transient Ignite ignite;
+
+        ProcessTransferJob(PendingTransferKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            final MoneyTransferService service = local(ignite);
+            if (service == null) {
+                throw new IgniteException("No MoneyTransferService on node " + ignite.cluster().localNode().id());
+            }
+            service.processLocal(key);
+        }
+    }
+
+    static class ProcessTransfersJob implements IgniteCallable<List<PendingTransferKey>> {
+        private final List<PendingTransferKey> keys;
+        @IgniteInstanceResource
+        transient Ignite ignite;
+
+        ProcessTransfersJob(Collection<PendingTransferKey> keys) {
+            this.keys = new ArrayList<>(keys);
+        }
+
+        @Override
+        public List<PendingTransferKey> call() {
+            final MoneyTransferService service = local(ignite);
+            // a node which does not process transfers leaves them pending, they are dispatched again later
+            return service == null ? keys : service.processLocal(keys);
+        }
+    }
+
+    /**
+     * Passes the creation of pending transfers the subscribed node is the primary node of, so each node only dispatches
+     * its own share. The listener checks the primary node again, as the topology may change in between.
+     */
+    static class PrimaryNodeFilter implements CacheEntryEventSerializableFilter<PendingTransferKey, Transfer> {
+        private final UUID nodeId;
+        @IgniteInstanceResource
+        transient Ignite ignite;
+
+        PrimaryNodeFilter(UUID nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        @Override
+        public boolean evaluate(CacheEntryEvent<? extends PendingTransferKey, ? extends Transfer> event) {
+            return event.getEventType() == EventType.CREATED
+                    && nodeId.equals(ignite.affinity(PENDING_TRANSFERS).mapKeyToNode(event.getKey()).id());
+        }
     }
 }
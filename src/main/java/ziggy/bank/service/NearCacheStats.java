@@ -0,0 +1,56 @@
+package ziggy.bank.service;
+
+import java.util.StringJoiner;
+
+/**
+ * Snapshot of the accounts near cache of the local node, used to tune its size.
+ */
+public class NearCacheStats {
+
+    private final boolean enabled;
+    private final int size;
+    private final long hits;
+    private final long misses;
+
+    public NearCacheStats(boolean enabled, int size, long hits, long misses) {
+        this.enabled = enabled;
+        this.size = size;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Accounts currently held in the near cache.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public double getHitRate() {
+        final long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", NearCacheStats.class.getSimpleName() + "[", "]")
+                .add("enabled=" + enabled)
+                .add("size=" + size)
+                .add("hits=" + hits)
+                .add("misses=" + misses)
+                .add("hitRate=" + getHitRate())
+                .toString();
+    }
+}
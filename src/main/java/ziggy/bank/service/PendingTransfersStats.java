@@ -0,0 +1,74 @@
+package ziggy.bank.service;
+
+import java.util.StringJoiner;
+
+/**
+ * Snapshot of pending transfers and of the admission of new ones, see {@link AdmissionControl}.
+ */
+public class PendingTransfersStats {
+
+    private final long depth;
+    private final double drainRate;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final boolean overloaded;
+    private final long rejected;
+
+    public PendingTransfersStats(long depth, double drainRate, long highWatermark, long lowWatermark,
+                                 boolean overloaded, long rejected) {
+        this.depth = depth;
+        this.drainRate = drainRate;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.overloaded = overloaded;
+        this.rejected = rejected;
+    }
+
+    /**
+     * Pending transfers at the last sample.
+     */
+    public long getDepth() {
+        return depth;
+    }
+
+    /**
+     * Transfers processed by this node per second.
+     */
+    public double getDrainRate() {
+        return drainRate;
+    }
+
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Whether new transfers are rejected.
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * Transfers rejected since the node started.
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", PendingTransfersStats.class.getSimpleName() + "[", "]")
+                .add("depth=" + depth)
+                .add("drainRate=" + drainRate)
+                .add("highWatermark=" + highWatermark)
+                .add("lowWatermark=" + lowWatermark)
+                .add("overloaded=" + overloaded)
+                .add("rejected=" + rejected)
+                .toString();
+    }
+}
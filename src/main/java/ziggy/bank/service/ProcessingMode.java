@@ -0,0 +1,28 @@
+package ziggy.bank.service;
+
+/**
+ * How {@link MoneyTransferService#processTransfers} reads and writes transfers and accounts.
+ */
+public enum ProcessingMode {
+    /**
+     * Transfers and accounts are deserialized into {@link ziggy.bank.model.Transfer} and
+     * {@link ziggy.bank.model.Account} objects and serialized again when stored.
+     */
+    OBJECT,
+    /**
+     * Transfers and accounts are read as binary objects with {@code withKeepBinary()}. Only the fields that are needed
+     * are read, and modified fields are written back with a builder, so the rest of an entry is never deserialized.
+     */
+    BINARY,
+    /**
+     * Balances are checked and updated by entry processors invoked on the accounts, one per account and chunk, instead
+     * of reading and rewriting the accounts.
+     */
+    ENTRY_PROCESSOR,
+    /**
+     * Credits are appended to the {@code Ledger} journal instead of rewriting the credited account, so transfers to a
+     * hot account don't contend on its entry. The balance of an account is its snapshot plus its entries in the
+     * journal, which are folded into the snapshot whenever the account is debited.
+     */
+    LEDGER
+}
@@ -0,0 +1,73 @@
+package ziggy.bank.service;
+
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Execution count and time of SQL queries by query name. The time is measured until the first row is available,
+ * which is where parsing and planning of a statement show up.
+ */
+public class QueryStats {
+
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    void record(String query, long nanos) {
+        timers.computeIfAbsent(query, name -> new Timer()).record(nanos);
+    }
+
+    public long getCount(String query) {
+        final Timer timer = timers.get(query);
+        return timer == null ? 0 : timer.count.sum();
+    }
+
+    public double getMeanMillis(String query) {
+        final Timer timer = timers.get(query);
+        return timer == null ? 0 : timer.meanMillis();
+    }
+
+    public double getMaxMillis(String query) {
+        final Timer timer = timers.get(query);
+        return timer == null ? 0 : toMillis(timer.max.get());
+    }
+
+    private static double toMillis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        final StringJoiner joiner = new StringJoiner(", ", QueryStats.class.getSimpleName() + "[", "]");
+        for (Map.Entry<String, Timer> entry : new TreeMap<>(timers).entrySet()) {
+            joiner.add(entry.getKey() + "=" + entry.getValue());
+        }
+        return joiner.toString();
+    }
+
+    private static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        double meanMillis() {
+            final long n = count.sum();
+            return n == 0 ? 0 : toMillis(total.sum()) / n;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("{count=%d, meanMs=%.3f, maxMs=%.3f}", count.sum(), meanMillis(), toMillis(max.get()));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ziggy.bank.service;
+
+import org.apache.ignite.transactions.TransactionDeadlockException;
+import org.apache.ignite.transactions.TransactionOptimisticException;
+import org.apache.ignite.transactions.TransactionTimeoutException;
+import ziggy.bank.ignite.TransactionMode;
+
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Commit and abort counters of transfer transactions, kept per {@link TransactionMode} so that abort rates of the
+ * modes can be compared on the same workload.
+ */
+public class TransactionStats {
+
+    private final TransactionMode mode;
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public TransactionStats(TransactionMode mode) {
+        this.mode = mode;
+    }
+
+    void commit() {
+        commits.increment();
+    }
+
+    void abort(Throwable e) {
+        if (isConflict(e)) {
+            conflicts.increment();
+        } else {
+            failures.increment();
+        }
+    }
+
+    public TransactionMode getMode() {
+        return mode;
+    }
+
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    /**
+     * Transactions aborted by an optimistic conflict, a deadlock or a lock timeout.
+     */
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    /**
+     * Transactions aborted for any other reason.
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public double getAbortRate() {
+        final long aborts = getConflicts() + getFailures();
+        final long total = getCommits() + aborts;
+        return total == 0 ? 0 : (double) aborts / total;
+    }
+
+    static boolean isConflict(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TransactionOptimisticException || cause instanceof TransactionDeadlockException
+                    || cause instanceof TransactionTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", TransactionStats.class.getSimpleName() + "[", "]")
+                .add("mode=" + mode)
+                .add("commits=" + getCommits())
+                .add("conflicts=" + getConflicts())
+                .add("failures=" + getFailures())
+                .add("abortRate=" + getAbortRate())
+                .toString();
+    }
+}
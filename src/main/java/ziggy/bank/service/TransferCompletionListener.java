@@ -0,0 +1,171 @@
+package ziggy.bank.service;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteCache;
+import org.apache.ignite.cache.CacheEntryEventSerializableFilter;
+import org.apache.ignite.cache.query.ContinuousQuery;
+import org.apache.ignite.cache.query.QueryCursor;
+import org.apache.ignite.resources.IgniteInstanceResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ziggy.bank.ignite.IgniteInitializer;
+import ziggy.bank.model.Transfer;
+import ziggy.bank.model.TransferWaiterKey;
+
+import javax.cache.configuration.FactoryBuilder;
+import javax.cache.event.CacheEntryEvent;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Collections.singleton;
+
+/**
+ * Notifies waiting clients as soon as their transfer is processed. A continuous query on {@code TRANSFERS} completes
+ * the futures of waiting transfers when processing moves them there, so waiting does not poll the caches. A node
+ * registers the transfers it waits for in {@code TRANSFER_WAITERS}, and the nodes storing a processed transfer only
+ * send its event to the nodes registered for it, see {@link WaitedTransferFilter}. Futures are completed on a
+ * dedicated pool, so resuming the waiting requests does not run on the Ignite thread delivering the events. A caller
+ * whose wait times out is unregistered, and the registration of the node is removed once no other caller waits for the
+ * transfer.
+ */
+public class TransferCompletionListener {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(TransferCompletionListener.class);
+
+    static final int COMPLETION_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+    private final IgniteCache<UUID, Transfer> transfers;
+    private final IgniteCache<TransferWaiterKey, Boolean> waiters;
+    private final UUID nodeId;
+    private final ConcurrentMap<UUID, Set<CompletableFuture<Transfer>>> processed = new ConcurrentHashMap<>();
+    private QueryCursor<?> cursor;
+    private ScheduledExecutorService timeouts;
+    private ExecutorService completions;
+
+    public TransferCompletionListener(Ignite ignite) {
+        this.transfers = IgniteInitializer.transfers(ignite);
+        this.waiters = IgniteInitializer.transferWaiters(ignite);
+        this.nodeId = ignite.cluster().localNode().id();
+    }
+
+    public void start() {
+        timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "transfer-wait-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final AtomicInteger threads = new AtomicInteger();
+        completions = Executors.newFixedThreadPool(COMPLETION_THREADS, runnable -> {
+            final Thread thread = new Thread(runnable, "transfer-wait-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final ContinuousQuery<UUID, Transfer> qry = new ContinuousQuery<>();
+        qry.setRemoteFilterFactory(FactoryBuilder.factoryOf(new WaitedTransferFilter(nodeId)));
+        qry.setLocalListener(events -> {
+            for (CacheEntryEvent<? extends UUID, ? extends Transfer> event : events) {
+                complete(event.getKey(), event.getValue());
+            }
+        });
+        cursor = transfers.query(qry);
+        LOGGER.info("Listening for processed transfers");
+    }
+
+    public void stop() {
+        cursor.close();
+        timeouts.shutdownNow();
+        completions.shutdownNow();
+        processed.clear();
+    }
+
+    /**
+     * @return future completed with the processed transfer, or with {@code null} if it is not processed within
+     * {@code timeout} ms
+     */
+    public CompletableFuture<Transfer> awaitProcessed(UUID id, long timeout) {
+        final CompletableFuture<Transfer> waiter = new CompletableFuture<>();
+        final ScheduledFuture<?> timer = timeouts.schedule(() -> {
+            release(id, waiter);
+            waiter.complete(null);
+        }, timeout, TimeUnit.MILLISECONDS);
+        waiter.whenComplete((transfer, e) -> timer.cancel(false));
+
+        // sets are only changed inside the map operations, which lock the entry
+        final Set<CompletableFuture<Transfer>> created = new HashSet<>(singleton(waiter));
+        final Set<CompletableFuture<Transfer>> callers = processed.merge(id, created, (registered, ignored) -> {
+            registered.add(waiter);
+            return registered;
+        });
+        if (callers == created) {
+            waiters.put(new TransferWaiterKey(id, nodeId), Boolean.TRUE);
+        }
+        // the transfer may have been processed before the waiter was registered
+        final Transfer transfer = transfers.get(id);
+        if (transfer != null) {
+            complete(id, transfer);
+        }
+        return waiter;
+    }
+
+    int waiting() {
+        return processed.size();
+    }
+
+    private void complete(UUID id, Transfer transfer) {
+        final Set<CompletableFuture<Transfer>> callers = processed.remove(id);
+        if (callers != null) {
+            completions.execute(() -> {
+                for (CompletableFuture<Transfer> waiter : callers) {
+                    waiter.complete(transfer);
+                }
+                waiters.removeAsync(new TransferWaiterKey(id, nodeId));
+            });
+        }
+    }
+
+    /**
+     * Unregisters a timed out {@code waiter}, and the node if it was the last caller waiting for the transfer.
+     */
+    private void release(UUID id, CompletableFuture<Transfer> waiter) {
+        processed.computeIfPresent(id, (key, callers) -> {
+            callers.remove(waiter);
+            if (!callers.isEmpty()) {
+                return callers;
+            }
+            waiters.removeAsync(new TransferWaiterKey(id, nodeId));
+            return null;
+        });
+    }
+
+    /**
+     * Passes the events of transfers the subscribed node waits for. It runs on the nodes storing the transfer, which
+     * also store its waiters.
+     */
+    static class WaitedTransferFilter implements CacheEntryEventSerializableFilter<UUID, Transfer> {
+        private final UUID nodeId;
+        @IgniteInstanceResource
+        transient Ignite ignite;
+
+        WaitedTransferFilter(UUID nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        @Override
+        public boolean evaluate(CacheEntryEvent<? extends UUID, ? extends Transfer> event) {
+            return IgniteInitializer.transferWaiters(ignite).localPeek(new TransferWaiterKey(event.getKey(), nodeId))
+                    != null;
+        }
+    }
+
+}
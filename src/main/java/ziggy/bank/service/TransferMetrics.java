@@ -0,0 +1,85 @@
+package ziggy.bank.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import ziggy.bank.model.Transfer;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of {@link MoneyTransferService}. Meters are looked up once, so recording on the hot path does not touch the
+ * registry. Without a registry the meters are no-ops.
+ */
+class TransferMetrics {
+
+    static final TransferMetrics NOOP = new TransferMetrics(new CompositeMeterRegistry());
+
+    private final Timer submit;
+    private final Counter submitted;
+    private final Timer process;
+    private final Timer commit;
+    private final Map<Transfer.Status, Counter> processed = new EnumMap<>(Transfer.Status.class);
+    private final Map<Transfer.FailReason, Counter> failed = new EnumMap<>(Transfer.FailReason.class);
+    private final Counter conflicts;
+    private final Counter failures;
+
+    TransferMetrics(MeterRegistry registry) {
+        submit = Timer.builder("bank.transfers.submit")
+                .description("Time to store submitted transfers as pending")
+                .register(registry);
+        submitted = Counter.builder("bank.transfers.submitted")
+                .register(registry);
+        process = Timer.builder("bank.transfers.process")
+                .description("Time to process a chunk of pending transfers, including the commit")
+                .register(registry);
+        commit = Timer.builder("bank.transfers.commit")
+                .register(registry);
+        for (Transfer.Status status : Transfer.Status.values()) {
+            processed.put(status, Counter.builder("bank.transfers.processed")
+                    .tag("status", status.name())
+                    .register(registry));
+        }
+        for (Transfer.FailReason reason : Transfer.FailReason.values()) {
+            failed.put(reason, Counter.builder("bank.transfers.failed")
+                    .tag("reason", reason.name())
+                    .register(registry));
+        }
+        conflicts = Counter.builder("bank.transfers.rollbacks")
+                .description("Aborted transfer transactions")
+                .tag("cause", "conflict")
+                .register(registry);
+        failures = Counter.builder("bank.transfers.rollbacks")
+                .description("Aborted transfer transactions")
+                .tag("cause", "failure")
+                .register(registry);
+    }
+
+    void submitted(int count, long nanos) {
+        submit.record(nanos, TimeUnit.NANOSECONDS);
+        submitted.increment(count);
+    }
+
+    void processed(long nanos) {
+        process.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void committed(long nanos) {
+        commit.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void processed(Transfer.Status status) {
+        processed.get(status).increment();
+    }
+
+    void failed(Transfer.FailReason reason) {
+        failed.get(reason).increment();
+    }
+
+    void aborted(Throwable e) {
+        (TransactionStats.isConflict(e) ? conflicts : failures).increment();
+    }
+}
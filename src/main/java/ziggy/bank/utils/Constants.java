@@ -8,4 +8,7 @@ public class Constants {
     public static String ACCOUNTS = "Accounts";
     public static String PENDING_TRANSFERS = "PendingTransfers";
     public static String TRANSFERS = "Transfers";
+    public static String IDEMPOTENCY_KEYS = "IdempotencyKeys";
+    public static String LEDGER = "Ledger";
+    public static String TRANSFER_WAITERS = "TransferWaiters";
 }
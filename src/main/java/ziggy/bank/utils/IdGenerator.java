@@ -0,0 +1,44 @@
+package ziggy.bank.utils;
+
+import java.util.UUID;
+
+/**
+ * Generates ids of accounts and transfers.
+ */
+public interface IdGenerator {
+
+    enum Type {
+        /**
+         * Random version 4 UUIDs, spread over the whole key space.
+         */
+        RANDOM,
+        /**
+         * Version 7 UUIDs: milliseconds since the epoch followed by a counter and random bits, so ids increase with
+         * time on every node and inserts go to the end of the {@code id} indexes.
+         */
+        TIME_ORDERED,
+        /**
+         * Start time of the node followed by a counter, so ids of a node are consecutive. Ids of different nodes are
+         * ordered by the start of the nodes, not by time.
+         */
+        SEQUENCE
+    }
+
+    UUID next();
+
+    /**
+     * @return whether an id generated later is greater, so that ids order transfers like their dates do
+     */
+    boolean isTimeOrdered();
+
+    static IdGenerator create(Type type) {
+        switch (type) {
+            case TIME_ORDERED:
+                return new TimeOrderedIdGenerator();
+            case SEQUENCE:
+                return new SequenceIdGenerator();
+            default:
+                return new RandomIdGenerator();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package ziggy.bank.utils;
+
+import java.math.BigDecimal;
+
+/**
+ * Conversion between decimal amounts and the {@code long} minor units (amount * 10^{@link Constants#SCALE}) they are
+ * stored and computed in.
+ */
+public class Money {
+
+    private Money() {
+    }
+
+    /**
+     * @throws ArithmeticException if the amount has more than {@link Constants#SCALE} fraction digits or does not fit
+     *                             into a {@code long}
+     */
+    public static long toMinor(BigDecimal amount) {
+        return amount.movePointRight(Constants.SCALE).longValueExact();
+    }
+
+    public static BigDecimal toDecimal(long minor) {
+        return BigDecimal.valueOf(minor, Constants.SCALE);
+    }
+
+    public static boolean isRepresentable(BigDecimal amount) {
+        if (amount.scale() > Constants.SCALE) {
+            return false;
+        }
+        try {
+            toMinor(amount);
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+}
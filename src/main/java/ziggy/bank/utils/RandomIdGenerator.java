@@ -0,0 +1,16 @@
+package ziggy.bank.utils;
+
+import java.util.UUID;
+
+class RandomIdGenerator implements IdGenerator {
+
+    @Override
+    public UUID next() {
+        return UUID.randomUUID();
+    }
+
+    @Override
+    public boolean isTimeOrdered() {
+        return false;
+    }
+}
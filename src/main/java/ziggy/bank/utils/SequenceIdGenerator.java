@@ -0,0 +1,28 @@
+package ziggy.bank.utils;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The high 64 bits identify the generator: its start time in milliseconds, the version 8 (custom) and 12 random bits
+ * that tell apart generators started in the same millisecond. The low 64 bits are the variant and a counter.
+ */
+class SequenceIdGenerator implements IdGenerator {
+
+    private static final long VERSION = 0x8000;
+    private static final long VARIANT = 0x8000000000000000L;
+
+    private final long node = System.currentTimeMillis() << 16 | VERSION | ThreadLocalRandom.current().nextInt(1 << 12);
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Override
+    public UUID next() {
+        return new UUID(node, VARIANT | sequence.incrementAndGet());
+    }
+
+    @Override
+    public boolean isTimeOrdered() {
+        return false;
+    }
+}
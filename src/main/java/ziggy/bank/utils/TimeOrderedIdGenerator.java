@@ -0,0 +1,36 @@
+package ziggy.bank.utils;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Version 7 UUIDs with a 12 bit counter after the 48 bit timestamp, so ids generated in the same millisecond still
+ * increase. When the counter overflows, or the clock goes back, the timestamp is advanced instead, so ids of the
+ * generator never decrease. The low 62 bits are random, which keeps ids of different nodes apart.
+ */
+class TimeOrderedIdGenerator implements IdGenerator {
+
+    private static final int COUNTER_BITS = 12;
+    private static final long VERSION = 0x7000;
+    private static final long VARIANT = 0x8000000000000000L;
+    private static final long RANDOM_MASK = 0x3FFFFFFFFFFFFFFFL;
+
+    // timestamp << COUNTER_BITS | counter of the last id
+    private final AtomicLong last = new AtomicLong();
+
+    @Override
+    public UUID next() {
+        final long now = System.currentTimeMillis() << COUNTER_BITS;
+        final long next = last.updateAndGet(previous -> Math.max(previous + 1, now));
+        final long timestamp = next >>> COUNTER_BITS;
+        final long counter = next & ((1 << COUNTER_BITS) - 1);
+        return new UUID(timestamp << 16 | VERSION | counter,
+                VARIANT | (ThreadLocalRandom.current().nextLong() & RANDOM_MASK));
+    }
+
+    @Override
+    public boolean isTimeOrdered() {
+        return true;
+    }
+}
@@ -0,0 +1,76 @@
+package ziggy.bank.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads of JDK 21+, looked up reflectively because the application is built for Java 8.
+ */
+public class VirtualThreads {
+
+    private static final Method OF_VIRTUAL = method(Thread.class, "ofVirtual");
+    private static final Class<?> BUILDER = builderClass();
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null && BUILDER != null;
+    }
+
+    /**
+     * Factory of virtual threads named {@code prefix1}, {@code prefix2}, ...
+     *
+     * @throws IllegalStateException if virtual threads are not supported by the running JDK
+     */
+    public static ThreadFactory factory(String prefix) {
+        if (!isSupported()) {
+            throw new IllegalStateException("Virtual threads require JDK 21+, running on " + System.getProperty("java.version"));
+        }
+        try {
+            final Object builder = BUILDER.getMethod("name", String.class, long.class)
+                    .invoke(OF_VIRTUAL.invoke(null), prefix, 1L);
+            return (ThreadFactory) BUILDER.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't create virtual thread factory", e);
+        }
+    }
+
+    /**
+     * Executor starting a new virtual thread for each task.
+     */
+    public static ExecutorService newExecutor(String prefix) {
+        final ThreadFactory factory = factory(prefix);
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't create virtual thread executor", e);
+        }
+    }
+
+    /**
+     * Executor running tasks one by one on a single virtual thread.
+     */
+    public static ExecutorService newSingleThreadExecutor(String prefix) {
+        return Executors.newSingleThreadExecutor(factory(prefix));
+    }
+
+    private static Method method(Class<?> type, String name) {
+        try {
+            return type.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Class<?> builderClass() {
+        try {
+            return Class.forName("java.lang.Thread$Builder");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+}
@@ -3,8 +3,10 @@ package ziggy.bank;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
-import ziggy.bank.model.Account;
-import ziggy.bank.model.Transfer;
+import ziggy.bank.rest.AccountDto;
+import ziggy.bank.rest.BatchRejectionDto;
+import ziggy.bank.rest.MoneyTransferResource;
+import ziggy.bank.rest.TransferDto;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
@@ -12,13 +14,17 @@ import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.Response;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
+import java.util.stream.Collectors;
 
 import static java.math.BigDecimal.TEN;
 import static java.math.BigDecimal.ZERO;
+import static javax.ws.rs.client.Entity.entity;
 import static javax.ws.rs.client.Entity.json;
 import static org.assertj.core.api.Assertions.assertThat;
 import static ziggy.bank.model.Transfer.FailReason.FROM_ACCOUNT_NOT_FOUND;
@@ -27,6 +33,8 @@ import static ziggy.bank.model.Transfer.FailReason.TO_ACCOUNT_NOT_FOUND;
 import static ziggy.bank.model.Transfer.Status.DONE;
 import static ziggy.bank.model.Transfer.Status.FAILED;
 import static ziggy.bank.model.Transfer.Status.PENDING;
+import static ziggy.bank.rest.MoneyTransferResource.APPLICATION_NDJSON;
+import static ziggy.bank.rest.MoneyTransferResource.IDEMPOTENCY_KEY;
 
 /**
  * Created by Dmitry Tsigelnik on 5/8/19.
@@ -60,27 +68,33 @@ class ApplicationTest {
     @Test
     void createAndFetchAccount() {
 
-        final Account account = new Account();
+        final AccountDto account = new AccountDto();
         account.setBalance(TEN);
 
-        final Account savedAccount = baseTarget.path("/accounts").request().post(json(account), Account.class);
+        final AccountDto savedAccount = baseTarget.path("/accounts").request().post(json(account), AccountDto.class);
         assertThat(savedAccount.getId()).isNotNull();
-        assertThat(savedAccount.getBalance()).isEqualTo(TEN);
+        assertThat(savedAccount.getBalance()).isEqualByComparingTo(TEN);
 
-        final Account fetchedAccount = baseTarget.path("/accounts/{id}").resolveTemplate("id", savedAccount.getId()).request().get(Account.class);
+        final AccountDto fetchedAccount = baseTarget.path("/accounts/{id}").resolveTemplate("id", savedAccount.getId()).request().get(AccountDto.class);
         assertThat(fetchedAccount).isEqualTo(savedAccount);
     }
 
     @Test
     void createDefaultAccount() {
-        final Account account = new Account();
+        final AccountDto account = new AccountDto();
 
-        final Account savedAccount = baseTarget.path("/accounts").request().post(json(account), Account.class);
+        final AccountDto savedAccount = baseTarget.path("/accounts").request().post(json(account), AccountDto.class);
         assertThat(savedAccount.getId()).isNotNull();
-        assertThat(savedAccount.getBalance()).isEqualTo(ZERO);
+        assertThat(savedAccount.getBalance()).isEqualByComparingTo(ZERO);
 
     }
 
+    @Test
+    void shouldRejectAccountIfScaleIsWrong() {
+        final Response response = baseTarget.path("/accounts").request().post(json(new AccountDto(new BigDecimal("1.001"))));
+        assertThat(response.getStatus()).isEqualTo(422);
+    }
+
     @Test
     void accountNotFound() {
         final Response response = baseTarget.path("/accounts/{id}").resolveTemplate("id", UUID.randomUUID()).request().get();
@@ -88,6 +102,29 @@ class ApplicationTest {
     }
 
 
+    @Test
+    void nearCacheStats() {
+        final Response response = baseTarget.path("/accounts/near-cache").request().get();
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.readEntity(String.class)).contains("\"enabled\":false");
+    }
+
+    @Test
+    void pendingTransfersStats() {
+        final Response response = baseTarget.path("/transfers/pending").request().get();
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.readEntity(String.class)).contains("\"highWatermark\":100000", "\"overloaded\":false");
+    }
+
+    @Test
+    void metrics() {
+        final Response response = baseTarget.path("/metrics").request().get();
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getMediaType().toString()).startsWith("text/plain");
+        assertThat(response.readEntity(String.class))
+                .contains("bank_transfers_submit_seconds_count", "bank_transfers_pending", "bank_transfers_lag_seconds");
+    }
+
     @Test
     void transferNotFound() {
         final Response response = baseTarget.path("/transfers/{id}").resolveTemplate("id", UUID.randomUUID()).request().get();
@@ -96,13 +133,13 @@ class ApplicationTest {
 
     @Test
     void shouldRejectEmptyTransfer() {
-        Response response = baseTarget.path("transfers").request().post(json(new Transfer()));
+        Response response = baseTarget.path("transfers").request().post(json(new TransferDto()));
         assertThat(response.getStatus()).isEqualTo(422);
     }
 
     @Test
     void shouldRejectIfScaleIsWrong() {
-        final Transfer transfer = new Transfer();
+        final TransferDto transfer = new TransferDto();
         transfer.setAccountFrom(UUID.randomUUID());
         transfer.setAccountTo(UUID.randomUUID());
         transfer.setAmount(new BigDecimal("123.456"));
@@ -112,7 +149,7 @@ class ApplicationTest {
 
     @Test
     void shouldRejectIfAmountIsNegative() {
-        final Transfer transfer = new Transfer();
+        final TransferDto transfer = new TransferDto();
         transfer.setAccountFrom(UUID.randomUUID());
         transfer.setAccountTo(UUID.randomUUID());
         transfer.setAmount(new BigDecimal("-123.45"));
@@ -122,11 +159,11 @@ class ApplicationTest {
 
     @Test
     void shouldFailWithAccountsNotFound() throws InterruptedException {
-        final Transfer transfer = new Transfer();
+        final TransferDto transfer = new TransferDto();
         transfer.setAccountFrom(UUID.randomUUID());
         transfer.setAccountTo(UUID.randomUUID());
         transfer.setAmount(new BigDecimal("123.45"));
-        Transfer submitted = baseTarget.path("transfers").request().post(json(transfer), Transfer.class);
+        TransferDto submitted = baseTarget.path("transfers").request().post(json(transfer), TransferDto.class);
 
         assertThat(submitted.getStatus()).isEqualTo(PENDING);
         assertThat(submitted.getId()).isNotNull();
@@ -137,7 +174,7 @@ class ApplicationTest {
         assertThat(submitted.getAmount()).isEqualTo(transfer.getAmount());
 
         Thread.sleep(3000);
-        final Transfer processed = baseTarget.path("/transfers/{id}").resolveTemplate("id", submitted.getId()).request().get(Transfer.class);
+        final TransferDto processed = baseTarget.path("/transfers/{id}").resolveTemplate("id", submitted.getId()).request().get(TransferDto.class);
 
         assertThat(processed.getStatus()).isEqualTo(FAILED);
         assertThat(processed.getId()).isEqualTo(submitted.getId());
@@ -155,17 +192,17 @@ class ApplicationTest {
     @Test
     void shouldFailWithInsufficientFunds() throws InterruptedException {
 
-        final Account from = baseTarget.path("/accounts").request().post(json(new Account()), Account.class);
-        final Account to = baseTarget.path("/accounts").request().post(json(new Account()), Account.class);
+        final AccountDto from = baseTarget.path("/accounts").request().post(json(new AccountDto()), AccountDto.class);
+        final AccountDto to = baseTarget.path("/accounts").request().post(json(new AccountDto()), AccountDto.class);
 
-        final Transfer transfer = new Transfer();
+        final TransferDto transfer = new TransferDto();
         transfer.setAccountFrom(from.getId());
         transfer.setAccountTo(to.getId());
         transfer.setAmount(new BigDecimal("123.45"));
-        Transfer submitted = baseTarget.path("transfers").request().post(json(transfer), Transfer.class);
+        TransferDto submitted = baseTarget.path("transfers").request().post(json(transfer), TransferDto.class);
 
         Thread.sleep(3000);
-        final Transfer processed = baseTarget.path("/transfers/{id}").resolveTemplate("id", submitted.getId()).request().get(Transfer.class);
+        final TransferDto processed = baseTarget.path("/transfers/{id}").resolveTemplate("id", submitted.getId()).request().get(TransferDto.class);
 
         assertThat(processed.getStatus()).isEqualTo(FAILED);
         assertThat(processed.getId()).isEqualTo(submitted.getId());
@@ -181,17 +218,17 @@ class ApplicationTest {
     @Test
     void shouldTransfer() throws InterruptedException {
 
-        final Account from = baseTarget.path("/accounts").request().post(json(new Account(new BigDecimal("100.00"))), Account.class);
-        final Account to = baseTarget.path("/accounts").request().post(json(new Account(new BigDecimal("20.00"))), Account.class);
+        final AccountDto from = baseTarget.path("/accounts").request().post(json(new AccountDto(new BigDecimal("100.00"))), AccountDto.class);
+        final AccountDto to = baseTarget.path("/accounts").request().post(json(new AccountDto(new BigDecimal("20.00"))), AccountDto.class);
 
-        final Transfer transfer = new Transfer();
+        final TransferDto transfer = new TransferDto();
         transfer.setAccountFrom(from.getId());
         transfer.setAccountTo(to.getId());
         transfer.setAmount(new BigDecimal("50.45"));
-        Transfer submitted = baseTarget.path("transfers").request().post(json(transfer), Transfer.class);
+        TransferDto submitted = baseTarget.path("transfers").request().post(json(transfer), TransferDto.class);
 
         Thread.sleep(3000);
-        final Transfer processed = baseTarget.path("/transfers/{id}").resolveTemplate("id", submitted.getId()).request().get(Transfer.class);
+        final TransferDto processed = baseTarget.path("/transfers/{id}").resolveTemplate("id", submitted.getId()).request().get(TransferDto.class);
 
         assertThat(processed.getStatus()).isEqualTo(DONE);
         assertThat(processed.getId()).isEqualTo(submitted.getId());
@@ -202,8 +239,8 @@ class ApplicationTest {
         assertThat(processed.getAmount()).isEqualTo(transfer.getAmount());
         assertThat(processed.getFailReasons()).isEmpty();
 
-        final Account processedAccount1 = baseTarget.path("/accounts/{id}").resolveTemplate("id", from.getId()).request().get(Account.class);
-        final Account processedAccount2 = baseTarget.path("/accounts/{id}").resolveTemplate("id", to.getId()).request().get(Account.class);
+        final AccountDto processedAccount1 = baseTarget.path("/accounts/{id}").resolveTemplate("id", from.getId()).request().get(AccountDto.class);
+        final AccountDto processedAccount2 = baseTarget.path("/accounts/{id}").resolveTemplate("id", to.getId()).request().get(AccountDto.class);
 
         assertThat(processedAccount1.getBalance()).isEqualTo(new BigDecimal("49.55"));
         assertThat(processedAccount2.getBalance()).isEqualTo(new BigDecimal("70.45"));
@@ -211,13 +248,234 @@ class ApplicationTest {
     }
 
 
+    @Test
+    void shouldWaitUntilTransferIsProcessed() {
+
+        final AccountDto from = baseTarget.path("/accounts").request().post(json(new AccountDto(new BigDecimal("100.00"))), AccountDto.class);
+        final AccountDto to = baseTarget.path("/accounts").request().post(json(new AccountDto(new BigDecimal("20.00"))), AccountDto.class);
+
+        final TransferDto transfer = new TransferDto();
+        transfer.setAccountFrom(from.getId());
+        transfer.setAccountTo(to.getId());
+        transfer.setAmount(new BigDecimal("50.45"));
+        final TransferDto processed = baseTarget.path("transfers").queryParam("waitMs", 10000).request().post(json(transfer), TransferDto.class);
+
+        assertThat(processed.getStatus()).isEqualTo(DONE);
+        assertThat(processed.getId()).isNotNull();
+
+        final TransferDto fetched = baseTarget.path("/transfers/{id}").resolveTemplate("id", processed.getId()).queryParam("waitMs", 10000).request().get(TransferDto.class);
+        assertThat(fetched.getStatus()).isEqualTo(DONE);
+        assertThat(fetched.getAmount()).isEqualByComparingTo(transfer.getAmount());
+    }
+
+    @Test
+    void shouldSubmitTransferOncePerIdempotencyKey() {
+        final AccountDto from = baseTarget.path("/accounts").request().post(json(new AccountDto(new BigDecimal("100.00"))), AccountDto.class);
+        final AccountDto to = baseTarget.path("/accounts").request().post(json(new AccountDto()), AccountDto.class);
+        final String key = UUID.randomUUID().toString();
+
+        final TransferDto transfer = new TransferDto();
+        transfer.setAccountFrom(from.getId());
+        transfer.setAccountTo(to.getId());
+        transfer.setAmount(new BigDecimal("60.00"));
+        final TransferDto first = baseTarget.path("transfers").queryParam("waitMs", 10000).request()
+                .header(IDEMPOTENCY_KEY, key).post(json(transfer), TransferDto.class);
+        final TransferDto retried = baseTarget.path("transfers").request()
+                .header(IDEMPOTENCY_KEY, key).post(json(transfer), TransferDto.class);
+
+        assertThat(first.getStatus()).isEqualTo(DONE);
+        assertThat(retried.getId()).isEqualTo(first.getId());
+        assertThat(retried.getStatus()).isEqualTo(DONE);
+        assertThat(baseTarget.path("/accounts/{id}").resolveTemplate("id", from.getId()).request().get(AccountDto.class)
+                .getBalance()).isEqualByComparingTo(new BigDecimal("40.00"));
+
+        transfer.setAmount(new BigDecimal("10.00"));
+        final Response reused = baseTarget.path("transfers").request().header(IDEMPOTENCY_KEY, key).post(json(transfer));
+        assertThat(reused.getStatus()).isEqualTo(422);
+    }
+
+    @Test
+    void shouldTransferBatch() throws InterruptedException {
+
+        final AccountDto from = baseTarget.path("/accounts").request().post(json(new AccountDto(new BigDecimal("100.00"))), AccountDto.class);
+        final AccountDto to = baseTarget.path("/accounts").request().post(json(new AccountDto(new BigDecimal("20.00"))), AccountDto.class);
+
+        final List<TransferDto> transfers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final TransferDto transfer = new TransferDto();
+            transfer.setAccountFrom(from.getId());
+            transfer.setAccountTo(to.getId());
+            transfer.setAmount(new BigDecimal("10.01"));
+            transfers.add(transfer);
+        }
+        final List<UUID> ids = baseTarget.path("transfers/batch").request().post(json(transfers), new GenericType<List<UUID>>() {
+        });
+        assertThat(ids).hasSize(3).doesNotHaveDuplicates();
+
+        Thread.sleep(3000);
+        for (UUID id : ids) {
+            final TransferDto processed = baseTarget.path("/transfers/{id}").resolveTemplate("id", id).request().get(TransferDto.class);
+            assertThat(processed.getStatus()).isEqualTo(DONE);
+            assertThat(processed.getAccountFrom()).isEqualTo(from.getId());
+        }
+
+        final AccountDto processedAccount1 = baseTarget.path("/accounts/{id}").resolveTemplate("id", from.getId()).request().get(AccountDto.class);
+        final AccountDto processedAccount2 = baseTarget.path("/accounts/{id}").resolveTemplate("id", to.getId()).request().get(AccountDto.class);
+
+        assertThat(processedAccount1.getBalance()).isEqualTo(new BigDecimal("69.97"));
+        assertThat(processedAccount2.getBalance()).isEqualTo(new BigDecimal("50.03"));
+    }
+
+    @Test
+    void shouldSubmitNdjsonBatch() {
+        final String lines = String.format("{\"accountFrom\":\"%s\",\"accountTo\":\"%s\",\"amount\":1.23}%n%n"
+                        + "{\"accountFrom\":\"%s\",\"accountTo\":\"%s\",\"amount\":4.56}%n",
+                UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+
+        final List<UUID> ids = baseTarget.path("transfers/batch").request().post(entity(lines, APPLICATION_NDJSON), new GenericType<List<UUID>>() {
+        });
+        assertThat(ids).hasSize(2);
+    }
+
+    @Test
+    void shouldSubmitBatchInChunks() {
+        final StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < MoneyTransferResource.BATCH_CHUNK_SIZE * 2 + 1; i++) {
+            lines.append(String.format("{\"accountFrom\":\"%s\",\"accountTo\":\"%s\",\"amount\":1.23}%n",
+                    UUID.randomUUID(), UUID.randomUUID()));
+        }
+
+        final List<UUID> ids = baseTarget.path("transfers/batch").request().post(entity(lines.toString(), APPLICATION_NDJSON), new GenericType<List<UUID>>() {
+        });
+        assertThat(ids).hasSize(MoneyTransferResource.BATCH_CHUNK_SIZE * 2 + 1).doesNotHaveDuplicates();
+    }
+
+    @Test
+    void shouldRejectTooLargeBatch() {
+        final char[] padding = new char[(int) MoneyTransferResource.MAX_BATCH_BYTES + 1];
+        Arrays.fill(padding, ' ');
+        final String body = "[" + new String(padding) + "]";
+
+        final Response response = baseTarget.path("transfers/batch").request().post(json(body));
+        assertThat(response.getStatus()).isEqualTo(413);
+    }
+
+    @Test
+    void shouldRejectBatchWithInvalidTransfer() {
+        final String lines = String.format("{\"accountFrom\":\"%s\",\"accountTo\":\"%s\",\"amount\":1.23}%n"
+                        + "{\"accountFrom\":\"%s\",\"accountTo\":\"%s\",\"amount\":-4.56}%n",
+                UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+
+        final Response response = baseTarget.path("transfers/batch").request().post(entity(lines, APPLICATION_NDJSON));
+        assertThat(response.getStatus()).isEqualTo(422);
+    }
+
+    @Test
+    void shouldReturnSubmittedIdsOfRejectedBatch() {
+        final StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < MoneyTransferResource.BATCH_CHUNK_SIZE + 1; i++) {
+            lines.append(String.format("{\"accountFrom\":\"%s\",\"accountTo\":\"%s\",\"amount\":1.23}%n",
+                    UUID.randomUUID(), UUID.randomUUID()));
+        }
+        lines.append(String.format("{\"accountFrom\":\"%s\",\"accountTo\":\"%s\",\"amount\":-4.56}%n",
+                UUID.randomUUID(), UUID.randomUUID()));
+
+        final Response response = baseTarget.path("transfers/batch").request().post(entity(lines.toString(), APPLICATION_NDJSON));
+        assertThat(response.getStatus()).isEqualTo(422);
+        final BatchRejectionDto rejection = response.readEntity(BatchRejectionDto.class);
+        assertThat(rejection.getRow()).isEqualTo(MoneyTransferResource.BATCH_CHUNK_SIZE + 1);
+        assertThat(rejection.getIds()).hasSize(MoneyTransferResource.BATCH_CHUNK_SIZE).doesNotHaveDuplicates();
+    }
+
+    @Test
+    void shouldSubmitBatchOncePerIdempotencyKey() {
+        final StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < MoneyTransferResource.BATCH_CHUNK_SIZE + 1; i++) {
+            lines.append(String.format("{\"accountFrom\":\"%s\",\"accountTo\":\"%s\",\"amount\":1.23}%n",
+                    UUID.randomUUID(), UUID.randomUUID()));
+        }
+        final String key = UUID.randomUUID().toString();
+
+        final List<UUID> ids = baseTarget.path("transfers/batch").request().header(IDEMPOTENCY_KEY, key)
+                .post(entity(lines.toString(), APPLICATION_NDJSON), new GenericType<List<UUID>>() {
+                });
+        final List<UUID> retried = baseTarget.path("transfers/batch").request().header(IDEMPOTENCY_KEY, key)
+                .post(entity(lines.toString(), APPLICATION_NDJSON), new GenericType<List<UUID>>() {
+                });
+        assertThat(ids).hasSize(MoneyTransferResource.BATCH_CHUNK_SIZE + 1).doesNotHaveDuplicates();
+        assertThat(retried).isEqualTo(ids);
+
+        lines.append(String.format("{\"accountFrom\":\"%s\",\"accountTo\":\"%s\",\"amount\":1.23}%n",
+                UUID.randomUUID(), UUID.randomUUID()));
+        final List<UUID> extended = baseTarget.path("transfers/batch").request().header(IDEMPOTENCY_KEY, key)
+                .post(entity(lines.toString(), APPLICATION_NDJSON), new GenericType<List<UUID>>() {
+                });
+        assertThat(extended).hasSize(ids.size() + 1).startsWith(ids.toArray(new UUID[0])).doesNotHaveDuplicates();
+    }
+
+    @Test
+    void shouldRejectMalformedBatch() {
+        final Response response = baseTarget.path("transfers/batch").request().post(json("{\"amount\":1.23}"));
+        assertThat(response.getStatus()).isEqualTo(400);
+    }
+
+    @Test
+    void shouldPageTransfersByAccount() {
+        final UUID account = UUID.randomUUID();
+        final List<TransferDto> transfers = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final TransferDto transfer = new TransferDto();
+            transfer.setAccountFrom(i % 2 == 0 ? account : UUID.randomUUID());
+            transfer.setAccountTo(i % 2 == 0 ? UUID.randomUUID() : account);
+            transfer.setAmount(new BigDecimal("1.00"));
+            transfers.add(transfer);
+        }
+        baseTarget.path("transfers/batch").request().post(json(transfers), new GenericType<List<UUID>>() {
+        });
+        baseTarget.path("transfers/batch").request().post(json(transfers.subList(0, 3)), new GenericType<List<UUID>>() {
+        });
+
+        final List<UUID> all = transferIds(baseTarget.path("/transfers/by-account/{id}").resolveTemplate("id", account));
+        assertThat(all).hasSize(13).doesNotHaveDuplicates();
+
+        final List<UUID> paged = new ArrayList<>();
+        List<UUID> page = transferIds(baseTarget.path("/transfers/by-account/{id}").resolveTemplate("id", account).queryParam("limit", 4));
+        while (!page.isEmpty()) {
+            assertThat(page.size()).isLessThanOrEqualTo(4);
+            paged.addAll(page);
+            page = transferIds(baseTarget.path("/transfers/by-account/{id}").resolveTemplate("id", account)
+                    .queryParam("limit", 4).queryParam("after", page.get(page.size() - 1)));
+        }
+        assertThat(paged).isEqualTo(all);
+
+        final List<UUID> last = transferIds(baseTarget.path("/transfers/by-account/{id}").resolveTemplate("id", account)
+                .queryParam("limit", 4).queryParam("before", all.get(12)));
+        assertThat(last).isEqualTo(all.subList(8, 12));
+
+        final List<UUID> between = transferIds(baseTarget.path("/transfers/by-account/{id}").resolveTemplate("id", account)
+                .queryParam("after", all.get(2)).queryParam("before", all.get(6)));
+        assertThat(between).isEqualTo(all.subList(3, 6));
+    }
+
+    @Test
+    void shouldRejectUnknownTransferCursor() {
+        final Response response = baseTarget.path("/transfers/by-account/{id}").resolveTemplate("id", UUID.randomUUID())
+                .queryParam("after", UUID.randomUUID()).request().get();
+        assertThat(response.getStatus()).isEqualTo(400);
+    }
+
+    private List<UUID> transferIds(WebTarget target) {
+        return target.request().get(new GenericType<List<TransferDto>>() {
+        }).stream().map(TransferDto::getId).collect(Collectors.toList());
+    }
+
     @Test
     void highloadTest() throws InterruptedException {
 
-        final Account account1 = baseTarget.path("/accounts").request().post(json(new Account(new BigDecimal("1000000.00"))), Account.class);
-        final Account account2 = baseTarget.path("/accounts").request().post(json(new Account(new BigDecimal("2000000.00"))), Account.class);
-        final Account account3 = baseTarget.path("/accounts").request().post(json(new Account(new BigDecimal("3000000.00"))), Account.class);
-        final Account account4 = baseTarget.path("/accounts").request().post(json(new Account(new BigDecimal("4000000.00"))), Account.class);
+        final AccountDto account1 = baseTarget.path("/accounts").request().post(json(new AccountDto(new BigDecimal("1000000.00"))), AccountDto.class);
+        final AccountDto account2 = baseTarget.path("/accounts").request().post(json(new AccountDto(new BigDecimal("2000000.00"))), AccountDto.class);
+        final AccountDto account3 = baseTarget.path("/accounts").request().post(json(new AccountDto(new BigDecimal("3000000.00"))), AccountDto.class);
+        final AccountDto account4 = baseTarget.path("/accounts").request().post(json(new AccountDto(new BigDecimal("4000000.00"))), AccountDto.class);
 
 
         CyclicBarrier barrier = new CyclicBarrier(600);
@@ -239,10 +497,10 @@ class ApplicationTest {
 
         Thread.sleep(15000);
 
-        final Account processedAccount1 = baseTarget.path("/accounts/{id}").resolveTemplate("id", account1.getId()).request().get(Account.class);
-        final Account processedAccount2 = baseTarget.path("/accounts/{id}").resolveTemplate("id", account2.getId()).request().get(Account.class);
-        final Account processedAccount3 = baseTarget.path("/accounts/{id}").resolveTemplate("id", account3.getId()).request().get(Account.class);
-        final Account processedAccount4 = baseTarget.path("/accounts/{id}").resolveTemplate("id", account4.getId()).request().get(Account.class);
+        final AccountDto processedAccount1 = baseTarget.path("/accounts/{id}").resolveTemplate("id", account1.getId()).request().get(AccountDto.class);
+        final AccountDto processedAccount2 = baseTarget.path("/accounts/{id}").resolveTemplate("id", account2.getId()).request().get(AccountDto.class);
+        final AccountDto processedAccount3 = baseTarget.path("/accounts/{id}").resolveTemplate("id", account3.getId()).request().get(AccountDto.class);
+        final AccountDto processedAccount4 = baseTarget.path("/accounts/{id}").resolveTemplate("id", account4.getId()).request().get(AccountDto.class);
 
         assertThat(processedAccount1.getBalance()).isEqualTo(new BigDecimal("1000000.00"));
         assertThat(processedAccount2.getBalance()).isEqualTo(new BigDecimal("2000000.00"));
@@ -257,17 +515,17 @@ class ApplicationTest {
 
     }
 
-    private void assertProcessedTransfers(Account account) {
-        List<Transfer> transfers = baseTarget.path("/transfers/by-account/{id}").resolveTemplate("id", account.getId()).request().get(new GenericType<List<Transfer>>() {
+    private void assertProcessedTransfers(AccountDto account) {
+        List<TransferDto> transfers = baseTarget.path("/transfers/by-account/{id}").resolveTemplate("id", account.getId()).request().get(new GenericType<List<TransferDto>>() {
         });
 
         assertThat(transfers).hasSize(300);
-        for (Transfer transfer : transfers) {
+        for (TransferDto transfer : transfers) {
             assertThat(transfer.getStatus()).isEqualTo(DONE);
         }
     }
 
-    private void submitTransfer(CyclicBarrier barrier, Account from, Account to) {
+    private void submitTransfer(CyclicBarrier barrier, AccountDto from, AccountDto to) {
         final Thread thread = new Thread(() -> {
             try {
 
@@ -275,11 +533,11 @@ class ApplicationTest {
 
                 while (true) {
                     try {
-                        final Transfer transfer = new Transfer();
+                        final TransferDto transfer = new TransferDto();
                         transfer.setAccountFrom(from.getId());
                         transfer.setAccountTo(to.getId());
                         transfer.setAmount(new BigDecimal("1.23"));
-                        baseTarget.path("transfers").request().post(json(transfer), Transfer.class);
+                        baseTarget.path("transfers").request().post(json(transfer), TransferDto.class);
 
                         return;
                     } catch (Exception e) {
@@ -0,0 +1,105 @@
+package ziggy.bank.ignite;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.cluster.BaselineNode;
+import org.apache.ignite.configuration.WALMode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ziggy.bank.model.Account;
+import ziggy.bank.service.AccountService;
+import ziggy.bank.service.NearCacheStats;
+
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static ziggy.bank.utils.Constants.ACCOUNTS;
+
+class IgniteInitializerTest {
+
+    @Test
+    void shouldKeepAccountsAfterRestartWithPersistence(@TempDir Path workDirectory) {
+        final UUID id;
+        try (Ignite ignite = persistentInitializer(workDirectory).init()) {
+            id = new AccountService(ignite).createAccount(new Account(1234));
+        }
+
+        try (Ignite ignite = persistentInitializer(workDirectory).init()) {
+            final Account account = new AccountService(ignite).getAccount(id);
+            assertThat(account).isNotNull();
+            assertThat(account.getBalance()).isEqualTo(1234);
+        }
+    }
+
+    @Test
+    void shouldAddJoiningNodesToBaselineWithPersistence(@TempDir Path workDirectory) throws InterruptedException {
+        try (Ignite first = clusterInitializer(workDirectory, 0).init()) {
+            assertThat(first.cluster().currentBaselineTopology()).hasSize(1);
+
+            try (Ignite second = clusterInitializer(workDirectory, 1).init()) {
+                assertThat(second.cluster().currentBaselineTopology())
+                        .extracting(BaselineNode::consistentId)
+                        .containsExactlyInAnyOrder(first.cluster().localNode().consistentId(),
+                                second.cluster().localNode().consistentId());
+                // partitions move to the joined node after rebalancing
+                final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+                while (second.affinity(ACCOUNTS).primaryPartitions(second.cluster().localNode()).length == 0) {
+                    assertThat(System.nanoTime()).as("partitions assigned in time").isLessThan(deadline);
+                    Thread.sleep(50);
+                }
+            }
+        }
+    }
+
+    @Test
+    void shouldReadUpdatedAccountsThroughNearCache() {
+        final IgniteInitializer initializer = new IgniteInitializer();
+        initializer.setDataRegionSize(64L << 20);
+        initializer.setAccountsNearCacheSize(100);
+        try (Ignite ignite = initializer.init()) {
+            final AccountService accountService = new AccountService(ignite);
+            final UUID id = accountService.createAccount(new Account(100));
+            assertThat(accountService.getAccount(id).getBalance()).isEqualTo(100);
+
+            final Account account = accountService.getAccount(id);
+            account.setBalance(42);
+            ignite.cache(ACCOUNTS).put(id, account);
+
+            assertThat(accountService.getAccount(id).getBalance()).isEqualTo(42);
+
+            final NearCacheStats stats = accountService.getNearCacheStats();
+            assertThat(stats.isEnabled()).isTrue();
+            assertThat(stats.getHits()).isGreaterThan(0);
+        }
+    }
+
+    @Test
+    void shouldRejectHandleOfCacheNotStarted() {
+        assertThatThrownBy(() -> IgniteInitializer.accounts(mock(Ignite.class)))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining(ACCOUNTS);
+    }
+
+    private IgniteInitializer persistentInitializer(Path workDirectory) {
+        final IgniteInitializer initializer = new IgniteInitializer();
+        initializer.setPersistenceEnabled(true);
+        initializer.setWorkDirectory(workDirectory.toString());
+        initializer.setDataRegionSize(64L << 20);
+        initializer.setWalMode(WALMode.FSYNC);
+        return initializer;
+    }
+
+    private IgniteInitializer clusterInitializer(Path workDirectory, int node) {
+        final IgniteInitializer initializer = persistentInitializer(workDirectory.resolve("node-" + node));
+        initializer.setInstanceName("BASELINE-" + node);
+        initializer.setLocalAddress("127.0.0.1");
+        initializer.setDiscoveryAddresses(singletonList("127.0.0.1:47500..47501"));
+        initializer.setBackups(1);
+        return initializer;
+    }
+
+}
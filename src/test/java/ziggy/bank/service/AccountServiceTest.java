@@ -2,20 +2,35 @@ package ziggy.bank.service;
 
 import org.apache.ignite.Ignite;
 import org.apache.ignite.IgniteCache;
+import org.apache.ignite.IgniteTransactions;
+import org.apache.ignite.cache.query.ScanQuery;
 import org.junit.jupiter.api.BeforeEach;
+import org.apache.ignite.configuration.CacheConfiguration;
+import org.apache.ignite.transactions.Transaction;
+import org.apache.ignite.transactions.TransactionOptimisticException;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import ziggy.bank.model.Account;
+import ziggy.bank.model.LedgerEntry;
+import ziggy.bank.model.LedgerEntryKey;
 import ziggy.bank.utils.Constants;
 
+import java.util.Collections;
+import java.util.Set;
 import java.util.UUID;
 
-import static java.math.BigDecimal.ZERO;
+import static org.apache.ignite.transactions.TransactionConcurrency.OPTIMISTIC;
+import static org.apache.ignite.transactions.TransactionIsolation.SERIALIZABLE;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.only;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -27,12 +42,21 @@ class AccountServiceTest {
     private AccountService accountService;
     private Ignite ignite;
     private IgniteCache cache;
+    private IgniteCache ledger;
+    private Transaction transaction;
 
     @BeforeEach
     void setUp() {
         ignite = mock(Ignite.class);
         cache = mock(IgniteCache.class);
-        when(ignite.getOrCreateCache(Constants.ACCOUNTS)).thenReturn(cache);
+        ledger = mock(IgniteCache.class);
+        transaction = mock(Transaction.class);
+        final IgniteTransactions transactions = mock(IgniteTransactions.class);
+        when(ignite.cache(Constants.ACCOUNTS)).thenReturn(cache);
+        when(ignite.cache(Constants.LEDGER)).thenReturn(ledger);
+        when(ignite.transactions()).thenReturn(transactions);
+        when(transactions.txStart(OPTIMISTIC, SERIALIZABLE)).thenReturn(transaction);
+        when(ledger.getAll(any())).thenReturn(Collections.emptyMap());
         accountService = new AccountService(ignite);
     }
 
@@ -43,6 +67,37 @@ class AccountServiceTest {
 
         when(cache.get(id)).thenReturn(account);
         assertThat(accountService.getAccount(id)).isSameAs(account);
+        verify(ignite, never()).transactions();
+        verify(ledger, never()).query(any(ScanQuery.class));
+    }
+
+    @Test
+    void shouldAddLedgerToBalanceInLedgerMode() {
+        final UUID id = UUID.randomUUID();
+        final Account account = new Account(10);
+        accountService.setProcessingMode(ProcessingMode.LEDGER);
+
+        when(cache.get(id)).thenReturn(account);
+        when(ledger.getAll(any())).thenReturn(Collections.singletonMap(new LedgerEntryKey(id, 1),
+                new LedgerEntry(id, UUID.randomUUID(), 5)));
+        assertThat(accountService.getAccount(id)).isSameAs(account);
+        assertThat(account.getBalance()).isEqualTo(15);
+        final ArgumentCaptor<Set<LedgerEntryKey>> slots = ArgumentCaptor.forClass(Set.class);
+        verify(ledger).getAll(slots.capture());
+        assertThat(slots.getValue()).hasSize(Ledger.SLOTS_PER_READ).contains(new LedgerEntryKey(id, 1));
+        verify(ledger, never()).query(any(ScanQuery.class));
+        verify(transaction).commit();
+    }
+
+    @Test
+    void shouldGiveUpReadingAccountAfterRepeatedConflicts() {
+        final UUID id = UUID.randomUUID();
+        accountService.setProcessingMode(ProcessingMode.LEDGER);
+        when(cache.get(id)).thenReturn(new Account());
+        doThrow(new TransactionOptimisticException("conflict")).when(transaction).commit();
+
+        assertThatThrownBy(() -> accountService.getAccount(id)).isInstanceOf(TransactionOptimisticException.class);
+        verify(transaction, times(AccountService.MAX_READ_ATTEMPTS)).commit();
     }
 
     @Test
@@ -53,10 +108,21 @@ class AccountServiceTest {
 
         accountService.createAccount(account);
 
-        assertThat(account.getBalance()).isEqualTo(ZERO);
+        assertThat(account.getBalance()).isZero();
         assertThat(account.getId()).isNotNull();
 
         verify(cache, only()).put(account.getId(), account);
 
     }
+
+    @Test
+    void nearCacheStatsWhenDisabled() {
+        when(cache.getConfiguration(CacheConfiguration.class)).thenReturn(new CacheConfiguration());
+
+        final NearCacheStats stats = accountService.getNearCacheStats();
+
+        assertThat(stats.isEnabled()).isFalse();
+        assertThat(stats.getSize()).isZero();
+        assertThat(stats.getHitRate()).isZero();
+    }
 }
@@ -0,0 +1,92 @@
+package ziggy.bank.service;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteCache;
+import org.apache.ignite.cache.CachePeekMode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static ziggy.bank.utils.Constants.PENDING_TRANSFERS;
+
+class AdmissionControlTest {
+
+    private Ignite ignite;
+    private IgniteCache pendingTransfers;
+    private MoneyTransferService moneyTransferService;
+    private AdmissionControl admissionControl;
+
+    @BeforeEach
+    void setUp() {
+        ignite = mock(Ignite.class);
+        pendingTransfers = mock(IgniteCache.class);
+        moneyTransferService = mock(MoneyTransferService.class);
+        when(ignite.cache(PENDING_TRANSFERS)).thenReturn(pendingTransfers);
+        admissionControl = new AdmissionControl(ignite, moneyTransferService, 100, 50);
+    }
+
+    @Test
+    void shouldRejectAboveHighWatermarkUntilLowWatermark() {
+        depth(99);
+        assertThat(admissionControl.tryAdmit(1)).isTrue();
+
+        depth(100);
+        assertThat(admissionControl.tryAdmit(1)).isFalse();
+        assertThat(admissionControl.getStats().isOverloaded()).isTrue();
+
+        depth(60);
+        assertThat(admissionControl.tryAdmit(1)).isFalse();
+
+        depth(50);
+        assertThat(admissionControl.tryAdmit(1)).isTrue();
+        assertThat(admissionControl.getStats().getRejected()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldCountTransfersAdmittedSinceLastSample() {
+        depth(90);
+        assertThat(admissionControl.tryAdmit(10)).isTrue();
+        assertThat(admissionControl.tryAdmit(1)).isFalse();
+    }
+
+    @Test
+    void shouldRejectTransfersAboveHighWatermark() {
+        depth(95);
+        assertThat(admissionControl.tryAdmit(10)).isFalse();
+        assertThat(admissionControl.getStats().isOverloaded()).isFalse();
+        assertThat(admissionControl.tryAdmit(5)).isTrue();
+        assertThat(admissionControl.getStats().getRejected()).isEqualTo(10);
+        assertThat(admissionControl.getMaxAdmission()).isEqualTo(50);
+    }
+
+    @Test
+    void shouldSuggestRetryAfterFromDrainRate() throws InterruptedException {
+        assertThat(admissionControl.getRetryAfter()).isEqualTo(AdmissionControl.MAX_RETRY_AFTER);
+
+        when(moneyTransferService.getProcessedCount()).thenReturn(0L);
+        depth(1000);
+        Thread.sleep(100);
+        when(moneyTransferService.getProcessedCount()).thenReturn(1_000_000L);
+        depth(1000);
+
+        assertThat(admissionControl.getStats().getDrainRate()).isPositive();
+        assertThat(admissionControl.getRetryAfter()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldValidateWatermarks() {
+        assertThatThrownBy(() -> new AdmissionControl(ignite, moneyTransferService, 0, 0))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new AdmissionControl(ignite, moneyTransferService, 100, 101))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private void depth(long depth) {
+        when(pendingTransfers.localSizeLong(CachePeekMode.PRIMARY)).thenReturn(depth);
+        admissionControl.sample();
+    }
+
+}
@@ -0,0 +1,185 @@
+package ziggy.bank.service;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.cache.affinity.Affinity;
+import org.apache.ignite.cluster.ClusterNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ziggy.bank.ignite.IgniteInitializer;
+import ziggy.bank.model.Account;
+import ziggy.bank.model.LedgerEntry;
+import ziggy.bank.model.LedgerEntryKey;
+import ziggy.bank.model.Transfer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static ziggy.bank.utils.Constants.LEDGER;
+import static ziggy.bank.utils.Constants.PENDING_TRANSFERS;
+
+/**
+ * Three nodes in one JVM, found by static addresses on localhost, each processing its own share of the transfers.
+ */
+class ClusterTest {
+
+    private static final int NODES = 3;
+    private static final int ACCOUNTS = 30;
+    private static final int TRANSFERS = 300;
+    private static final long BALANCE = 1000;
+
+    private final List<Node> nodes = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        for (int i = 0; i < NODES; i++) {
+            final IgniteInitializer initializer = new IgniteInitializer();
+            initializer.setInstanceName("BANK-" + i);
+            initializer.setLocalAddress("127.0.0.1");
+            initializer.setDiscoveryAddresses(singletonList("127.0.0.1:47500..47502"));
+            initializer.setBackups(1);
+            initializer.setPartitions(64);
+            initializer.setDataRegionSize(64L << 20);
+            nodes.add(new Node(initializer.init()));
+        }
+        // partitions move to the new nodes after rebalancing, until then the first node is primary for all of them
+        final Ignite ignite = nodes.get(0).ignite;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (ignite.cluster().nodes().stream()
+                .anyMatch(node -> ignite.affinity(PENDING_TRANSFERS).primaryPartitions(node).length == 0)) {
+            assertThat(System.nanoTime()).as("partitions assigned in time").isLessThan(deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        nodes.forEach(Node::stop);
+    }
+
+    @Test
+    void shouldProcessTransfersOnEveryNode() throws InterruptedException {
+        assertThat(nodes.get(0).ignite.cluster().nodes()).hasSize(NODES);
+
+        final List<UUID> accounts = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts.add(nodes.get(i % NODES).accountService.createAccount(new Account(BALANCE)));
+        }
+
+        final Random random = new Random(42);
+        final List<Transfer> transfers = new ArrayList<>();
+        for (int i = 0; i < TRANSFERS; i++) {
+            final Transfer transfer = new Transfer();
+            transfer.setAccountFrom(accounts.get(random.nextInt(ACCOUNTS)));
+            transfer.setAccountTo(accounts.get(random.nextInt(ACCOUNTS)));
+            transfer.setAmount(1 + random.nextInt(100));
+            nodes.get(i % NODES).moneyTransferService.submitTransfer(transfer);
+            transfers.add(transfer);
+        }
+
+        awaitProcessed(transfers);
+
+        for (Node node : nodes) {
+            assertThat(node.moneyTransferService.getProcessedCount()).isPositive();
+        }
+        assertThat(totalBalance(nodes.get(1), accounts)).isEqualTo(ACCOUNTS * BALANCE);
+    }
+
+    @Test
+    void shouldKeepAccountsAndProcessPendingTransfersWhenNodeLeaves() throws InterruptedException {
+        final List<UUID> accounts = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts.add(nodes.get(0).accountService.createAccount(new Account(BALANCE)));
+        }
+        // the leaving node does not process its share of the transfers, the other nodes take it over once it left
+        final Node leaving = nodes.remove(NODES - 1);
+        leaving.processor.stop();
+        final List<Transfer> transfers = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            final Transfer transfer = new Transfer();
+            transfer.setAccountFrom(accounts.get(i));
+            transfer.setAccountTo(accounts.get((i + 1) % ACCOUNTS));
+            transfer.setAmount(10);
+            nodes.get(0).moneyTransferService.submitTransfer(transfer);
+            transfers.add(transfer);
+        }
+
+        Thread.sleep(500);
+        assertThat(transfers).extracting(transfer -> nodes.get(0).moneyTransferService.getTransfer(transfer.getId()))
+                .extracting(Transfer::getStatus)
+                .contains(Transfer.Status.PENDING);
+        leaving.ignite.close();
+
+        awaitProcessed(transfers);
+        assertThat(totalBalance(nodes.get(0), accounts)).isEqualTo(ACCOUNTS * BALANCE);
+        for (Transfer transfer : transfers) {
+            assertThat(nodes.get(0).moneyTransferService.getTransfer(transfer.getId()).getStatus())
+                    .isEqualTo(Transfer.Status.DONE);
+        }
+    }
+
+    @Test
+    void shouldFoldLedgerOfPrimaryAccountsOnEveryNode() {
+        final List<UUID> accounts = new ArrayList<>();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            final UUID id = nodes.get(0).accountService.createAccount(new Account(BALANCE));
+            IgniteInitializer.ledger(nodes.get(0).ignite).put(new LedgerEntryKey(id, 1), new LedgerEntry(id, UUID.randomUUID(), 5));
+            accounts.add(id);
+        }
+
+        assertThat(nodes.get(0).moneyTransferService.foldLedger()).isZero();
+        final Affinity<UUID> affinity = nodes.get(0).ignite.affinity(LEDGER);
+        final ClusterNode first = nodes.get(0).ignite.cluster().localNode();
+        for (UUID id : accounts) {
+            assertThat(nodes.get(0).accountService.getAccount(id).getBalance())
+                    .isEqualTo(affinity.isPrimary(first, id) ? BALANCE + 5 : BALANCE);
+        }
+
+        for (Node node : nodes.subList(1, NODES)) {
+            assertThat(node.moneyTransferService.foldLedger()).isZero();
+        }
+        assertThat(totalBalance(nodes.get(0), accounts)).isEqualTo(ACCOUNTS * (BALANCE + 5));
+        assertThat(IgniteInitializer.ledger(nodes.get(0).ignite).size()).isZero();
+    }
+
+    private void awaitProcessed(List<Transfer> transfers) throws InterruptedException {
+        final Set<UUID> ids = transfers.stream().map(Transfer::getId).collect(Collectors.toSet());
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!IgniteInitializer.transfers(nodes.get(0).ignite).containsKeys(ids)) {
+            assertThat(System.nanoTime()).as("transfers processed in time").isLessThan(deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    private static long totalBalance(Node node, List<UUID> accounts) {
+        return accounts.stream().mapToLong(id -> node.accountService.getAccount(id).getBalance()).sum();
+    }
+
+    private static class Node {
+        final Ignite ignite;
+        final AccountService accountService;
+        final MoneyTransferService moneyTransferService;
+        final MoneyTransferProcessor processor;
+
+        Node(Ignite ignite) {
+            this.ignite = ignite;
+            this.accountService = new AccountService(ignite);
+            this.moneyTransferService = new MoneyTransferService(ignite);
+            this.processor = new MoneyTransferProcessor(moneyTransferService, 2, MoneyTransferService.DEFAULT_BATCH_SIZE);
+            processor.start();
+        }
+
+        void stop() {
+            processor.stop();
+            ignite.close();
+        }
+    }
+
+}
@@ -4,16 +4,27 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
+import ziggy.bank.model.PendingTransferKey;
+import ziggy.bank.utils.VirtualThreads;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyInt;
-import static org.mockito.Mockito.atLeastOnce;
-import static org.mockito.Mockito.doNothing;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * Created by Dmitry Tsigelnik on 6/8/19.
@@ -22,31 +33,118 @@ class MoneyTransferProcessorTest {
 
     private MoneyTransferProcessor processor;
     private MoneyTransferService service;
+    private AutoCloseable subscription;
+    private ArgumentCaptor<Consumer> consumerArgumentCaptor;
 
     @BeforeEach
     void setUp() {
         service = mock(MoneyTransferService.class);
-        processor = new MoneyTransferProcessor(service);
+        subscription = mock(AutoCloseable.class);
+        consumerArgumentCaptor = ArgumentCaptor.forClass(Consumer.class);
+        when(service.listenPendingTransfers(consumerArgumentCaptor.capture())).thenReturn(subscription);
+        processor = new MoneyTransferProcessor(service, 4, 8);
     }
 
     @AfterEach
-    void tearDown() {
+    void tearDown() throws Exception {
         processor.stop();
+        verify(subscription).close();
     }
 
     @Test
     void shouldProcess() throws InterruptedException {
 
-        ArgumentCaptor<Consumer> consumerArgumentCaptor = ArgumentCaptor.forClass(Consumer.class);
-        doNothing().when(service).selectAndConsumePendingTransfers(anyInt(), consumerArgumentCaptor.capture());
+        processor.start();
+        Thread.sleep(1000);
+        verify(service).listenPendingTransfers(any(Consumer.class));
+
+        final PendingTransferKey key = new PendingTransferKey(UUID.randomUUID(), UUID.randomUUID());
+        consumerArgumentCaptor.getValue().accept(key);
+        Thread.sleep(1000);
+        verify(service).processTransfers(singletonList(key));
+    }
+
+    @Test
+    void shouldRetryNotCommittedTransfers() throws InterruptedException {
+        final PendingTransferKey key = new PendingTransferKey(UUID.randomUUID(), UUID.randomUUID());
+        when(service.processTransfers(singletonList(key))).thenReturn(singletonList(key), emptyList());
+
+        processor.start();
+        Thread.sleep(1000);
+
+        consumerArgumentCaptor.getValue().accept(key);
+        Thread.sleep(1000);
+        verify(service, times(2)).processTransfers(singletonList(key));
+    }
+
+    @Test
+    void shouldParkTransferAfterMaxAttempts() throws InterruptedException {
+        final PendingTransferKey key = new PendingTransferKey(UUID.randomUUID(), UUID.randomUUID());
+        when(service.processTransfers(singletonList(key))).thenReturn(singletonList(key));
+        processor.setMaxAttempts(3);
+
+        processor.start();
+        Thread.sleep(1000);
+
+        consumerArgumentCaptor.getValue().accept(key);
+        Thread.sleep(1000);
+        verify(service, times(3)).processTransfers(singletonList(key));
+
+        consumerArgumentCaptor.getValue().accept(key);
+        Thread.sleep(1000);
+        verify(service, times(6)).processTransfers(singletonList(key));
+
+        assertThat(MoneyTransferProcessor.retryDelay(1)).isEqualTo(50);
+        assertThat(MoneyTransferProcessor.retryDelay(2)).isEqualTo(100);
+        assertThat(MoneyTransferProcessor.retryDelay(6)).isEqualTo(1600);
+        assertThat(MoneyTransferProcessor.retryDelay(7)).isEqualTo(2000);
+        assertThat(MoneyTransferProcessor.retryDelay(Integer.MAX_VALUE)).isEqualTo(2000);
+    }
+
+    @Test
+    void shouldProcessTransfersOfOneAccountInOneLane() throws InterruptedException {
+
+        final Map<UUID, Set<String>> threadsByTransfer = new ConcurrentHashMap<>();
+        doAnswer(invocation -> {
+            for (PendingTransferKey key : invocation.<Collection<PendingTransferKey>>getArgument(0)) {
+                threadsByTransfer.computeIfAbsent(key.getId(), id -> ConcurrentHashMap.newKeySet())
+                        .add(Thread.currentThread().getName());
+            }
+            return emptyList();
+        }).when(service).processTransfers(anyCollection());
 
         processor.start();
         Thread.sleep(1000);
-        verify(service, atLeastOnce()).selectAndConsumePendingTransfers(anyInt(), any(Consumer.class));
 
-        final UUID id = UUID.randomUUID();
-        consumerArgumentCaptor.getValue().accept(id);
+        final UUID accountFrom = UUID.randomUUID();
+        for (int i = 0; i < 20; i++) {
+            consumerArgumentCaptor.getValue().accept(new PendingTransferKey(UUID.randomUUID(), accountFrom));
+        }
         Thread.sleep(1000);
-        verify(service).processTransfer(id);
+
+        assertThat(threadsByTransfer).hasSize(20);
+        assertThat(threadsByTransfer.values().stream().flatMap(Set::stream).distinct()).hasSize(1)
+                .allMatch(thread -> thread.startsWith("transfer-lane-" + processor.lane(accountFrom) + "-"));
+    }
+
+    @Test
+    void shouldProcessOnVirtualThreads() throws Exception {
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        doAnswer(invocation -> {
+            threads.add(Thread.currentThread());
+            return emptyList();
+        }).when(service).processTransfers(anyCollection());
+
+        processor.setVirtualThreads(VirtualThreads.isSupported());
+        processor.start();
+        Thread.sleep(1000);
+        consumerArgumentCaptor.getValue().accept(new PendingTransferKey(UUID.randomUUID(), UUID.randomUUID()));
+        Thread.sleep(1000);
+
+        assertThat(threads).hasSize(1);
+        assumeTrue(VirtualThreads.isSupported());
+        final Thread thread = threads.iterator().next();
+        assertThat(thread.getName()).startsWith("transfer-lane-");
+        assertThat(Thread.class.getMethod("isVirtual").invoke(thread)).isEqualTo(true);
     }
 }
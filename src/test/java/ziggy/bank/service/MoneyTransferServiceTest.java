@@ -1,37 +1,77 @@
 package ziggy.bank.service;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.apache.ignite.Ignite;
 import org.apache.ignite.IgniteCache;
+import org.apache.ignite.IgniteCluster;
+import org.apache.ignite.IgniteCompute;
+import org.apache.ignite.IgniteDataStreamer;
+import org.apache.ignite.IgniteEvents;
+import org.apache.ignite.IgniteScheduler;
 import org.apache.ignite.IgniteTransactions;
+import org.apache.ignite.cache.affinity.Affinity;
+import org.apache.ignite.cache.query.ContinuousQuery;
 import org.apache.ignite.cache.query.FieldsQueryCursor;
-import org.apache.ignite.cache.query.Query;
 import org.apache.ignite.cache.query.QueryCursor;
+import org.apache.ignite.cache.query.ScanQuery;
 import org.apache.ignite.cache.query.SqlFieldsQuery;
+import org.apache.ignite.cache.query.SqlQuery;
+import org.apache.ignite.cluster.ClusterGroup;
+import org.apache.ignite.cluster.ClusterNode;
+import org.apache.ignite.events.CacheRebalancingEvent;
+import org.apache.ignite.events.Event;
+import org.apache.ignite.lang.IgniteFuture;
+import org.apache.ignite.lang.IgnitePredicate;
 import org.apache.ignite.transactions.Transaction;
+import org.apache.ignite.transactions.TransactionOptimisticException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import ziggy.bank.model.Account;
+import ziggy.bank.model.PendingTransferKey;
 import ziggy.bank.model.Transfer;
 import ziggy.bank.utils.Constants;
+import ziggy.bank.utils.IdGenerator;
 
 import javax.cache.Cache;
-import java.math.BigDecimal;
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.EventType;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
-import static java.math.BigDecimal.TEN;
 import static java.util.Arrays.asList;
+import static java.util.Collections.emptyIterator;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.apache.ignite.events.EventType.EVT_CACHE_REBALANCE_STOPPED;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.Mockito.atMostOnce;
-import static org.mockito.Mockito.doNothing;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static ziggy.bank.ignite.TransactionMode.OPTIMISTIC;
+import static ziggy.bank.ignite.TransactionMode.PESSIMISTIC;
+import static ziggy.bank.model.Transfer.FailReason.BALANCE_OVERFLOW;
 import static ziggy.bank.model.Transfer.FailReason.FROM_ACCOUNT_NOT_FOUND;
 import static ziggy.bank.model.Transfer.FailReason.INSUFFICIENT_FUNDS;
 import static ziggy.bank.model.Transfer.FailReason.TO_ACCOUNT_NOT_FOUND;
@@ -44,13 +84,22 @@ import static ziggy.bank.utils.Constants.PENDING_TRANSFERS;
  */
 class MoneyTransferServiceTest {
 
+    private static final long TEN = 10;
+
     private MoneyTransferService service;
     private Ignite ignite;
     private IgniteCache accountsCache;
     private IgniteCache pendingTransfersCache;
     private IgniteCache transfersCache;
+    private IgniteCache idempotencyKeysCache;
+    private IgniteCache ledgerCache;
     private Transaction transaction;
     private IgniteTransactions igniteTransactions;
+    private IgniteCluster cluster;
+    private ClusterNode localNode;
+    private IgniteCompute compute;
+    private Affinity affinity;
+    private IgniteEvents events;
 
 
     @BeforeEach
@@ -59,14 +108,40 @@ class MoneyTransferServiceTest {
         accountsCache = mock(IgniteCache.class);
         transfersCache = mock(IgniteCache.class);
         pendingTransfersCache = mock(IgniteCache.class);
+        idempotencyKeysCache = mock(IgniteCache.class);
+        ledgerCache = mock(IgniteCache.class);
         igniteTransactions = mock(IgniteTransactions.class);
         transaction = mock(Transaction.class);
-
-        when(ignite.getOrCreateCache(Constants.ACCOUNTS)).thenReturn(accountsCache);
-        when(ignite.getOrCreateCache(Constants.TRANSFERS)).thenReturn(transfersCache);
-        when(ignite.getOrCreateCache(PENDING_TRANSFERS)).thenReturn(pendingTransfersCache);
+        cluster = mock(IgniteCluster.class);
+        localNode = mock(ClusterNode.class);
+        compute = mock(IgniteCompute.class);
+        affinity = mock(Affinity.class);
+        events = mock(IgniteEvents.class);
+
+        when(ignite.cache(Constants.ACCOUNTS)).thenReturn(accountsCache);
+        when(ignite.cache(Constants.TRANSFERS)).thenReturn(transfersCache);
+        when(ignite.cache(PENDING_TRANSFERS)).thenReturn(pendingTransfersCache);
+        when(ignite.cache(Constants.IDEMPOTENCY_KEYS)).thenReturn(idempotencyKeysCache);
+        when(ignite.cache(Constants.LEDGER)).thenReturn(ledgerCache);
         when(ignite.transactions()).thenReturn(igniteTransactions);
-        when(igniteTransactions.txStart()).thenReturn(transaction);
+        when(igniteTransactions.txStart(OPTIMISTIC.getConcurrency(), OPTIMISTIC.getIsolation())).thenReturn(transaction);
+        when(igniteTransactions.txStart(PESSIMISTIC.getConcurrency(), PESSIMISTIC.getIsolation())).thenReturn(transaction);
+        when(ignite.cluster()).thenReturn(cluster);
+        when(cluster.nodeLocalMap()).thenReturn(new ConcurrentHashMap<>());
+        when(cluster.localNode()).thenReturn(localNode);
+        when(ignite.compute()).thenReturn(compute);
+        // affinity jobs run in place, as on a single node
+        doAnswer(invocation -> {
+            final MoneyTransferService.ProcessTransferJob job = invocation.getArgument(2);
+            job.ignite = ignite;
+            job.run();
+            return null;
+        }).when(compute).affinityRun(anyCollection(), any(), any(MoneyTransferService.ProcessTransferJob.class));
+        when(ignite.affinity(PENDING_TRANSFERS)).thenReturn(affinity);
+        when(affinity.mapKeysToNodes(anyCollection()))
+                .then(invocation -> singletonMap(localNode, invocation.getArgument(0)));
+        when(affinity.isPrimary(eq(localNode), any())).thenReturn(true);
+        when(ignite.events()).thenReturn(events);
 
         service = new MoneyTransferService(ignite);
     }
@@ -82,10 +157,10 @@ class MoneyTransferServiceTest {
         transfer.setAccountFrom(accountFromId);
         transfer.setAccountTo(accountToId);
 
-        when(pendingTransfersCache.getAndRemove(id)).thenReturn(transfer);
-        service.processTransfer(id);
+        when(pendingTransfersCache.getAndRemove(PendingTransferKey.of(transfer))).thenReturn(transfer);
+        service.processTransfer(PendingTransferKey.of(transfer));
 
-        verify(igniteTransactions).txStart();
+        verify(igniteTransactions).txStart(OPTIMISTIC.getConcurrency(), OPTIMISTIC.getIsolation());
         verify(transaction).commit();
         verify(transfersCache).put(id, transfer);
         verify(accountsCache, never()).put(any(), any());
@@ -109,10 +184,10 @@ class MoneyTransferServiceTest {
 
         when(accountsCache.get(accountFromId)).thenReturn(new Account());
         when(accountsCache.get(accountToId)).thenReturn(new Account());
-        when(pendingTransfersCache.getAndRemove(id)).thenReturn(transfer);
-        service.processTransfer(id);
+        when(pendingTransfersCache.getAndRemove(PendingTransferKey.of(transfer))).thenReturn(transfer);
+        service.processTransfer(PendingTransferKey.of(transfer));
 
-        verify(igniteTransactions).txStart();
+        verify(igniteTransactions).txStart(OPTIMISTIC.getConcurrency(), OPTIMISTIC.getIsolation());
         verify(transaction).commit();
         verify(transfersCache).put(id, transfer);
         verify(accountsCache, never()).put(any(), any());
@@ -135,17 +210,17 @@ class MoneyTransferServiceTest {
 
         final Account accountFrom = new Account();
         accountFrom.setId(accountFromId);
-        accountFrom.setBalance(new BigDecimal(20));
+        accountFrom.setBalance(20);
 
         when(accountsCache.get(accountFromId)).thenReturn(accountFrom);
 
         final Account accountTo = new Account();
         accountTo.setId(accountToId);
         when(accountsCache.get(accountToId)).thenReturn(accountTo);
-        when(pendingTransfersCache.getAndRemove(id)).thenReturn(transfer);
-        service.processTransfer(id);
+        when(pendingTransfersCache.getAndRemove(PendingTransferKey.of(transfer))).thenReturn(transfer);
+        service.processTransfer(PendingTransferKey.of(transfer));
 
-        verify(igniteTransactions).txStart();
+        verify(igniteTransactions).txStart(OPTIMISTIC.getConcurrency(), OPTIMISTIC.getIsolation());
         verify(transaction).commit();
         verify(transfersCache).put(id, transfer);
         verify(accountsCache).put(accountFromId, accountFrom);
@@ -158,6 +233,208 @@ class MoneyTransferServiceTest {
     }
 
 
+    @Test
+    void shouldProcessBatchInDateOrder() {
+        final UUID accountFromId = UUID.randomUUID();
+        final UUID accountToId = UUID.randomUUID();
+
+        final Account accountFrom = new Account(15);
+        accountFrom.setId(accountFromId);
+        final Account accountTo = new Account();
+        accountTo.setId(accountToId);
+
+        final Transfer first = transfer(accountFromId, accountToId, TEN, 1);
+        final Transfer second = transfer(accountFromId, accountToId, TEN, 2);
+        final Transfer unknownAccount = transfer(accountFromId, UUID.randomUUID(), TEN, 3);
+
+        final Map<PendingTransferKey, Transfer> pending = new HashMap<>();
+        final Map<UUID, Transfer> processed = new HashMap<>();
+        for (Transfer transfer : asList(second, first, unknownAccount)) {
+            pending.put(PendingTransferKey.of(transfer), transfer);
+            processed.put(transfer.getId(), transfer);
+        }
+        when(pendingTransfersCache.getAll(pending.keySet())).thenReturn(pending);
+
+        final Map<UUID, Account> accounts = new HashMap<>();
+        accounts.put(accountFromId, accountFrom);
+        accounts.put(accountToId, accountTo);
+        when(accountsCache.getAll(any(Set.class))).thenReturn(accounts);
+
+        service.processTransfers(asList(PendingTransferKey.of(first), PendingTransferKey.of(second),
+                PendingTransferKey.of(unknownAccount)));
+
+        verify(igniteTransactions).txStart(OPTIMISTIC.getConcurrency(), OPTIMISTIC.getIsolation());
+        verify(transaction).commit();
+        verify(accountsCache).putAll(accounts);
+        verify(transfersCache).putAll(processed);
+        verify(pendingTransfersCache).removeAll(pending.keySet());
+
+        assertThat(accountFrom.getBalance()).isEqualTo(5L);
+        assertThat(accountTo.getBalance()).isEqualTo(TEN);
+        assertThat(first.getStatus()).isEqualTo(DONE);
+        assertThat(second.getStatus()).isEqualTo(FAILED);
+        assertThat(second.getFailReasons()).containsExactly(INSUFFICIENT_FUNDS);
+        assertThat(unknownAccount.getStatus()).isEqualTo(FAILED);
+        assertThat(unknownAccount.getFailReasons()).containsExactly(TO_ACCOUNT_NOT_FOUND);
+    }
+
+    @Test
+    void shouldProcessBatchInKeyOrderWithTimeOrderedIds() {
+        final IdGenerator ids = IdGenerator.create(IdGenerator.Type.TIME_ORDERED);
+        service.setIdGenerator(ids);
+        final Account accountFrom = new Account(15);
+        accountFrom.setId(UUID.randomUUID());
+        final Account accountTo = new Account();
+        accountTo.setId(UUID.randomUUID());
+
+        // submitted in one batch, so dates are equal
+        final Transfer first = transfer(accountFrom.getId(), accountTo.getId(), TEN, 1);
+        first.setId(ids.next());
+        final Transfer second = transfer(accountFrom.getId(), accountTo.getId(), TEN, 1);
+        second.setId(ids.next());
+
+        final Map<PendingTransferKey, Transfer> pending = new LinkedHashMap<>();
+        pending.put(PendingTransferKey.of(second), second);
+        pending.put(PendingTransferKey.of(first), first);
+        when(pendingTransfersCache.getAll(any(Set.class))).thenReturn(pending);
+        final Map<UUID, Account> accounts = new HashMap<>();
+        accounts.put(accountFrom.getId(), accountFrom);
+        accounts.put(accountTo.getId(), accountTo);
+        when(accountsCache.getAll(any(Set.class))).thenReturn(accounts);
+
+        service.processTransfers(asList(PendingTransferKey.of(second), PendingTransferKey.of(first)));
+
+        assertThat(first.getStatus()).isEqualTo(DONE);
+        assertThat(second.getStatus()).isEqualTo(FAILED);
+        assertThat(accountFrom.getBalance()).isEqualTo(5L);
+    }
+
+    @Test
+    void shouldLockAccountsInOrderInPessimisticMode() {
+        service.setTransactionMode(PESSIMISTIC);
+
+        final UUID lower = new UUID(0, 1);
+        final UUID higher = new UUID(0, 2);
+        final Transfer transfer = transfer(higher, lower, TEN, 1);
+        when(pendingTransfersCache.getAndRemove(PendingTransferKey.of(transfer))).thenReturn(transfer);
+
+        service.processTransfer(PendingTransferKey.of(transfer));
+
+        final InOrder inOrder = inOrder(igniteTransactions, accountsCache);
+        inOrder.verify(igniteTransactions).txStart(PESSIMISTIC.getConcurrency(), PESSIMISTIC.getIsolation());
+        inOrder.verify(accountsCache).get(lower);
+        inOrder.verify(accountsCache).get(higher);
+        verify(transaction).commit();
+        assertThat(service.getTransactionStats().getMode()).isEqualTo(PESSIMISTIC);
+        assertThat(service.getTransactionStats().getCommits()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldCountAbortedTransactions() {
+        final Transfer transfer = transfer(UUID.randomUUID(), UUID.randomUUID(), TEN, 1);
+        when(pendingTransfersCache.getAndRemove(PendingTransferKey.of(transfer))).thenReturn(transfer);
+        doThrow(new TransactionOptimisticException("conflict")).when(transaction).commit();
+
+        service.processTransfer(PendingTransferKey.of(transfer));
+
+        assertThat(service.getTransactionStats().getCommits()).isZero();
+        assertThat(service.getTransactionStats().getConflicts()).isEqualTo(1);
+        assertThat(service.getTransactionStats().getAbortRate()).isEqualTo(1.0);
+    }
+
+    @Test
+    void shouldSubmitTransferWithNewIdempotencyKey() {
+        final Transfer transfer = transfer(UUID.randomUUID(), UUID.randomUUID(), TEN, 0);
+
+        assertThat(service.submitTransfer(transfer, "key")).isSameAs(transfer);
+
+        verify(idempotencyKeysCache).getAndPutIfAbsent("key", PendingTransferKey.of(transfer));
+        verify(pendingTransfersCache).put(PendingTransferKey.of(transfer), transfer);
+    }
+
+    @Test
+    void shouldReturnOriginalTransferForDuplicateIdempotencyKey() {
+        final Transfer original = transfer(UUID.randomUUID(), UUID.randomUUID(), TEN, 1);
+        when(idempotencyKeysCache.getAndPutIfAbsent(eq("key"), any())).thenReturn(PendingTransferKey.of(original));
+        when(pendingTransfersCache.get(PendingTransferKey.of(original))).thenReturn(original);
+
+        final Transfer duplicate = transfer(original.getAccountFrom(), original.getAccountTo(), TEN, 0);
+        assertThat(service.submitTransfer(duplicate, "key")).isSameAs(original);
+
+        verify(pendingTransfersCache, never()).put(any(), any());
+    }
+
+    @Test
+    void shouldLookUpIdempotencyKey() {
+        when(idempotencyKeysCache.containsKey("key")).thenReturn(true);
+
+        assertThat(service.hasIdempotencyKey("key")).isTrue();
+        assertThat(service.hasIdempotencyKey("other")).isFalse();
+    }
+
+    @Test
+    void shouldForgetIdempotencyKeyOfFailedSubmission() {
+        final Transfer transfer = transfer(UUID.randomUUID(), UUID.randomUUID(), TEN, 0);
+        doThrow(new IllegalStateException("stopping")).when(pendingTransfersCache).put(any(), any());
+
+        assertThatThrownBy(() -> service.submitTransfer(transfer, "key")).isInstanceOf(IllegalStateException.class);
+
+        verify(idempotencyKeysCache).remove("key", PendingTransferKey.of(transfer));
+    }
+
+    @Test
+    void shouldRecordMeters() {
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        service.bindTo(registry);
+        final Transfer failed = transfer(UUID.randomUUID(), UUID.randomUUID(), TEN, 1);
+        final Transfer aborted = transfer(UUID.randomUUID(), UUID.randomUUID(), TEN, 2);
+        when(accountsCache.get(any())).thenReturn(new Account());
+        when(pendingTransfersCache.getAndRemove(PendingTransferKey.of(failed))).thenReturn(failed);
+        when(pendingTransfersCache.getAndRemove(PendingTransferKey.of(aborted))).thenReturn(aborted);
+
+        service.processTransfer(PendingTransferKey.of(failed));
+        doThrow(new TransactionOptimisticException("conflict")).when(transaction).commit();
+        service.processTransfer(PendingTransferKey.of(aborted));
+
+        assertThat(registry.get("bank.transfers.process").timer().count()).isEqualTo(2);
+        assertThat(registry.get("bank.transfers.commit").timer().count()).isEqualTo(2);
+        assertThat(registry.get("bank.transfers.processed").tag("status", "FAILED").counter().count()).isEqualTo(1);
+        assertThat(registry.get("bank.transfers.processed").tag("status", "DONE").counter().count()).isZero();
+        assertThat(registry.get("bank.transfers.failed").tag("reason", "INSUFFICIENT_FUNDS").counter().count())
+                .isEqualTo(1);
+        assertThat(registry.get("bank.transfers.rollbacks").tag("cause", "conflict").counter().count()).isEqualTo(1);
+        assertThat(service.getProcessedCount()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldSplitTransfersIntoBatches() {
+        service.setBatchSize(2);
+        when(pendingTransfersCache.getAll(any(Set.class))).thenReturn(emptyMap());
+
+        service.processTransfers(asList(key(), key(), key()));
+
+        verify(igniteTransactions, times(2)).txStart(OPTIMISTIC.getConcurrency(), OPTIMISTIC.getIsolation());
+        verify(pendingTransfersCache, times(2)).getAll(any(Set.class));
+        verify(transaction, never()).commit();
+    }
+
+    @Test
+    void shouldFailValidationWithBalanceOverflow() {
+        final UUID accountFromId = UUID.randomUUID();
+        final UUID accountToId = UUID.randomUUID();
+        final Transfer transfer = transfer(accountFromId, accountToId, TEN, 1);
+
+        when(accountsCache.get(accountFromId)).thenReturn(new Account(TEN));
+        when(accountsCache.get(accountToId)).thenReturn(new Account(Long.MAX_VALUE - 1));
+        when(pendingTransfersCache.getAndRemove(PendingTransferKey.of(transfer))).thenReturn(transfer);
+        service.processTransfer(PendingTransferKey.of(transfer));
+
+        verify(transaction).commit();
+        verify(accountsCache, never()).put(any(), any());
+        assertThat(transfer.getStatus()).isEqualTo(FAILED);
+        assertThat(transfer.getFailReasons()).containsExactly(BALANCE_OVERFLOW);
+    }
+
     @Test
     void submitTransfer() {
         final Transfer transfer = new Transfer();
@@ -165,73 +442,333 @@ class MoneyTransferServiceTest {
 
         assertThat(transfer.getId()).isNotNull();
         assertThat(transfer.getDate()).isNotNull();
-        verify(pendingTransfersCache).put(transfer.getId(), transfer);
+        verify(pendingTransfersCache).put(PendingTransferKey.of(transfer), transfer);
+    }
+
+    @Test
+    void submitTransfers() {
+        final IgniteDataStreamer streamer = mock(IgniteDataStreamer.class);
+        when(ignite.dataStreamer(PENDING_TRANSFERS)).thenReturn(streamer);
+        final Transfer transfer1 = new Transfer();
+        final Transfer transfer2 = new Transfer();
+
+        final List<UUID> ids = service.submitTransfers(asList(transfer1, transfer2));
+
+        assertThat(ids).containsExactly(transfer1.getId(), transfer2.getId());
+        assertThat(transfer1.getDate()).isNotNull();
+        assertThat(transfer2.getDate()).isAfterOrEqualsTo(transfer1.getDate()).isBeforeOrEqualsTo(new Date());
+        assertThat(transfer2.getSequence()).isGreaterThan(transfer1.getSequence());
+        final InOrder inOrder = inOrder(streamer);
+        inOrder.verify(streamer).allowOverwrite(true);
+        inOrder.verify(streamer).addData(PendingTransferKey.of(transfer1), transfer1);
+        inOrder.verify(streamer).addData(PendingTransferKey.of(transfer2), transfer2);
+        inOrder.verify(streamer).close();
     }
 
     @Test
     void getTransfer() {
         UUID id = UUID.randomUUID();
         Transfer transfer = new Transfer();
+        final FieldsQueryCursor pending = rows();
+        when(pendingTransfersCache.query(any(SqlFieldsQuery.class))).thenReturn(pending);
         when(transfersCache.get(id)).thenReturn(transfer);
 
         assertThat(service.getTransfer(id)).isSameAs(transfer);
+        verify(pendingTransfersCache, never()).query(any(SqlFieldsQuery.class));
+    }
 
+    @Test
+    void shouldReadProcessedTransferAgainWhenItLeftPendingTransfers() {
+        UUID id = UUID.randomUUID();
+        Transfer transfer = new Transfer();
+        final FieldsQueryCursor pending = rows();
+        when(pendingTransfersCache.query(any(SqlFieldsQuery.class))).thenReturn(pending);
+        when(transfersCache.get(id)).thenReturn(null, transfer);
+
+        assertThat(service.getTransfer(id)).isSameAs(transfer);
+        verify(transfersCache, times(2)).get(id);
+        verify(pending).close();
     }
 
     @Test
     void getPendingTransfer() {
         UUID id = UUID.randomUUID();
         Transfer transfer = new Transfer();
-        when(pendingTransfersCache.get(id)).thenReturn(transfer);
+        final FieldsQueryCursor pending = rows(transfer);
+        when(pendingTransfersCache.query(any(SqlFieldsQuery.class))).thenReturn(pending);
 
         assertThat(service.getTransfer(id)).isSameAs(transfer);
+        final ArgumentCaptor<SqlFieldsQuery> query = ArgumentCaptor.forClass(SqlFieldsQuery.class);
+        verify(pendingTransfersCache).query(query.capture());
+        assertThat(query.getValue().getSql()).endsWith("where id = ?");
+        assertThat(query.getValue().getArgs()).containsExactly(id);
+        verify(pending).close();
+        verify(transfersCache).get(id);
+    }
+
+    @Test
+    void shouldProcessTransfersOnPrimaryNodeOfAccountFrom() {
+        final PendingTransferKey localKey = key();
+        final PendingTransferKey remoteKey = key();
+        final ClusterNode remoteNode = mock(ClusterNode.class);
+        final Map<ClusterNode, Collection<PendingTransferKey>> byNode = new HashMap<>();
+        byNode.put(localNode, singletonList(localKey));
+        byNode.put(remoteNode, singletonList(remoteKey));
+        when(affinity.mapKeysToNodes(anyCollection())).thenReturn(byNode);
+        when(pendingTransfersCache.getAll(any(Set.class))).thenReturn(emptyMap());
+
+        final ClusterGroup remoteGroup = mock(ClusterGroup.class);
+        final IgniteCompute remoteCompute = mock(IgniteCompute.class);
+        final IgniteFuture<List<PendingTransferKey>> result = mock(IgniteFuture.class);
+        when(cluster.forNode(remoteNode)).thenReturn(remoteGroup);
+        when(ignite.compute(remoteGroup)).thenReturn(remoteCompute);
+        when(remoteCompute.callAsync(any(MoneyTransferService.ProcessTransfersJob.class))).thenReturn(result);
+        when(result.get()).thenReturn(singletonList(remoteKey));
+
+        assertThat(service.processTransfers(asList(localKey, remoteKey))).containsExactly(remoteKey);
+
+        verify(pendingTransfersCache).getAll(eq(new TreeSet<>(singletonList(localKey))));
+        verify(remoteCompute).callAsync(any(MoneyTransferService.ProcessTransfersJob.class));
     }
 
     @Test
-    void selectAndConsumePendingTransfers() {
+    void listenPendingTransfers() throws Exception {
 
-        final ArgumentCaptor<SqlFieldsQuery> queryCaptor = ArgumentCaptor.forClass(SqlFieldsQuery.class);
-        final ArgumentCaptor<Consumer> consumerCaptor = ArgumentCaptor.forClass(Consumer.class);
+        final ArgumentCaptor<ContinuousQuery> queryCaptor = ArgumentCaptor.forClass(ContinuousQuery.class);
+        final Transfer pendingTransfer = new Transfer();
+        pendingTransfer.setId(UUID.randomUUID());
+        pendingTransfer.setAccountFrom(UUID.randomUUID());
+        final PendingTransferKey pendingKey = PendingTransferKey.of(pendingTransfer);
+        final Cache.Entry<PendingTransferKey, Transfer> pendingEntry = mock(Cache.Entry.class);
+        when(pendingEntry.getKey()).thenReturn(pendingKey);
+        when(pendingEntry.getValue()).thenReturn(pendingTransfer);
 
-        FieldsQueryCursor cursor = mock(FieldsQueryCursor.class);
+        QueryCursor cursor = mock(QueryCursor.class);
+        when(cursor.iterator()).thenReturn(asList(pendingEntry).iterator());
         when(pendingTransfersCache.query(queryCaptor.capture())).thenReturn(cursor);
 
-        List<UUID> processedIds = new ArrayList<>();
-        final Consumer<UUID> consumer = uuid -> processedIds.add(uuid);
+        List<PendingTransferKey> keys = new ArrayList<>();
+        final Consumer<PendingTransferKey> consumer = keys::add;
 
-        doNothing().when(cursor).forEach(consumerCaptor.capture());
+        final AutoCloseable subscription = service.listenPendingTransfers(consumer);
+        assertThat(keys).containsExactly(pendingKey);
 
-        service.selectAndConsumePendingTransfers(5, consumer);
+        final ContinuousQuery<PendingTransferKey, Transfer> query = queryCaptor.getValue();
+        assertThat(((SqlQuery) query.getInitialQuery()).getSql()).isEqualTo("order by date, sequence");
 
-        verify(ignite, atMostOnce()).getOrCreateCache(PENDING_TRANSFERS);
-        verify(pendingTransfersCache, atMostOnce()).query(any(SqlFieldsQuery.class));
-        verify(cursor, atMostOnce()).forEach(any(Consumer.class));
+        final Transfer createdTransfer = new Transfer();
+        createdTransfer.setId(UUID.randomUUID());
+        createdTransfer.setAccountFrom(UUID.randomUUID());
+        final PendingTransferKey createdKey = PendingTransferKey.of(createdTransfer);
+        query.getLocalListener().onUpdated(asList(
+                event(EventType.CREATED, createdKey, createdTransfer),
+                event(EventType.REMOVED, pendingKey, pendingTransfer)));
 
-        final Consumer innerConsumer = consumerCaptor.getValue();
-        final UUID uuid = UUID.randomUUID();
-        innerConsumer.accept(asList(uuid));
+        assertThat(keys).containsExactly(pendingKey, createdKey);
 
-        assertThat(uuid).isEqualTo(processedIds.get(0));
+        subscription.close();
+        verify(cursor).close();
+        verify(events).stopLocalListen(any());
+    }
 
-        final SqlFieldsQuery sqlFieldsQuery = queryCaptor.getValue();
-        assertThat(sqlFieldsQuery.getSql()).isEqualTo("select id from Transfer order by date limit 5");
+    @Test
+    void shouldListenOnlyToTransfersOfPrimaryPartitions() {
+        final ArgumentCaptor<ContinuousQuery> queryCaptor = ArgumentCaptor.forClass(ContinuousQuery.class);
+        final QueryCursor cursor = mock(QueryCursor.class);
+        when(cursor.iterator()).thenReturn(emptyIterator());
+        when(pendingTransfersCache.query(queryCaptor.capture())).thenReturn(cursor);
+        final Transfer primary = transfer(UUID.randomUUID(), UUID.randomUUID(), TEN, 1);
+        final Transfer backup = transfer(UUID.randomUUID(), UUID.randomUUID(), TEN, 2);
+        when(affinity.isPrimary(localNode, PendingTransferKey.of(backup))).thenReturn(false);
+
+        final List<PendingTransferKey> keys = new ArrayList<>();
+        service.listenPendingTransfers(keys::add);
+        final ContinuousQuery<PendingTransferKey, Transfer> query = queryCaptor.getValue();
+        query.getLocalListener().onUpdated(asList(
+                event(EventType.CREATED, PendingTransferKey.of(primary), primary),
+                event(EventType.CREATED, PendingTransferKey.of(backup), backup)));
+
+        assertThat(keys).containsExactly(PendingTransferKey.of(primary));
+    }
+
+    @Test
+    void shouldRescanPendingTransfersWhenRebalancingStops() {
+        final ArgumentCaptor<IgnitePredicate> listenerCaptor = ArgumentCaptor.forClass(IgnitePredicate.class);
+        final QueryCursor cursor = mock(QueryCursor.class);
+        when(cursor.iterator()).thenReturn(emptyIterator());
+        when(pendingTransfersCache.query(any(ContinuousQuery.class))).thenReturn(cursor);
+        final Transfer backup = transfer(UUID.randomUUID(), UUID.randomUUID(), TEN, 1);
+        final Cache.Entry<PendingTransferKey, Transfer> entry = mock(Cache.Entry.class);
+        when(entry.getKey()).thenReturn(PendingTransferKey.of(backup));
+        final QueryCursor scanCursor = mock(QueryCursor.class);
+        when(scanCursor.iterator()).then(invocation -> singletonList(entry).iterator());
+        when(pendingTransfersCache.query(any(ScanQuery.class))).thenReturn(scanCursor);
+        final IgniteScheduler scheduler = mock(IgniteScheduler.class);
+        when(ignite.scheduler()).thenReturn(scheduler);
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(scheduler).runLocal(any(Runnable.class));
+
+        final List<PendingTransferKey> keys = new ArrayList<>();
+        service.listenPendingTransfers(keys::add);
+        verify(events).localListen(listenerCaptor.capture(), eq(EVT_CACHE_REBALANCE_STOPPED));
+        final IgnitePredicate<Event> listener = listenerCaptor.getValue();
+
+        listener.apply(rebalanceStopped(Constants.ACCOUNTS));
+        assertThat(keys).isEmpty();
+
+        listener.apply(rebalanceStopped(PENDING_TRANSFERS));
+        assertThat(keys).containsExactly(PendingTransferKey.of(backup));
+        verify(scanCursor).close();
+    }
+
+    private CacheRebalancingEvent rebalanceStopped(String cacheName) {
+        final CacheRebalancingEvent event = mock(CacheRebalancingEvent.class);
+        when(event.cacheName()).thenReturn(cacheName);
+        return event;
+    }
+
+    @Test
+    void shouldListenLocallyToTransfersOfPrimaryNode() throws Exception {
+        final ArgumentCaptor<ContinuousQuery> queryCaptor = ArgumentCaptor.forClass(ContinuousQuery.class);
+        final QueryCursor cursor = mock(QueryCursor.class);
+        when(cursor.iterator()).thenReturn(emptyIterator());
+        when(pendingTransfersCache.query(queryCaptor.capture())).thenReturn(cursor);
+        final ClusterNode otherNode = mock(ClusterNode.class);
+        when(localNode.id()).thenReturn(UUID.randomUUID());
+        when(otherNode.id()).thenReturn(UUID.randomUUID());
+        final Transfer primary = transfer(UUID.randomUUID(), UUID.randomUUID(), TEN, 1);
+        final Transfer other = transfer(UUID.randomUUID(), UUID.randomUUID(), TEN, 2);
+        when(affinity.mapKeyToNode(PendingTransferKey.of(primary))).thenReturn(localNode);
+        when(affinity.mapKeyToNode(PendingTransferKey.of(other))).thenReturn(otherNode);
+
+        service.listenPendingTransfers(key -> {
+        });
+        final ContinuousQuery<PendingTransferKey, Transfer> query = queryCaptor.getValue();
+        assertThat(query.isLocal()).isTrue();
+        final MoneyTransferService.PrimaryNodeFilter filter =
+                (MoneyTransferService.PrimaryNodeFilter) query.getRemoteFilterFactory().create();
+        filter.ignite = ignite;
+
+        assertThat(filter.evaluate(event(EventType.CREATED, PendingTransferKey.of(primary), primary))).isTrue();
+        assertThat(filter.evaluate(event(EventType.REMOVED, PendingTransferKey.of(primary), primary))).isFalse();
+        assertThat(filter.evaluate(event(EventType.CREATED, PendingTransferKey.of(other), other))).isFalse();
     }
 
     @Test
     void getTransfersByAccount() {
-        QueryCursor cursor = mock(QueryCursor.class);
-        when(transfersCache.query(any(Query.class))).thenReturn(cursor);
-        when(pendingTransfersCache.query(any(Query.class))).thenReturn(cursor);
+        final UUID accountId = UUID.randomUUID();
+        final Transfer pending = transfer(accountId, UUID.randomUUID(), TEN, 3);
+        final Transfer processed1 = transfer(accountId, UUID.randomUUID(), TEN, 1);
+        final Transfer processed2 = transfer(UUID.randomUUID(), accountId, TEN, 2);
+        final FieldsQueryCursor pendingFrom = rows(pending);
+        final FieldsQueryCursor pendingTo = rows();
+        final FieldsQueryCursor processedFrom = rows(processed1, pending);
+        final FieldsQueryCursor processedTo = rows(processed2);
+        when(pendingTransfersCache.query(any(SqlFieldsQuery.class))).thenReturn(pendingFrom, pendingTo);
+        when(transfersCache.query(any(SqlFieldsQuery.class))).thenReturn(processedFrom, processedTo);
+
+        final List<Transfer> transfersByAccount = service.getTransfersByAccount(accountId);
+
+        assertThat(transfersByAccount).containsExactly(processed1, processed2, pending);
+        verify(pendingFrom).close();
+        verify(processedTo).close();
+        assertThat(service.getQueryStats().getCount(MoneyTransferService.TRANSFERS_BY_ACCOUNT_QUERY)).isEqualTo(4);
+    }
 
-        Cache.Entry<UUID, Transfer> row = mock(Cache.Entry.class);
-        final Transfer transfer = new Transfer();
-        when(row.getValue()).thenReturn(transfer);
+    @Test
+    void shouldRunSameStatementForSameOptions() {
+        final List<SqlFieldsQuery> queries = new ArrayList<>();
+        when(pendingTransfersCache.query(any(SqlFieldsQuery.class))).then(invocation -> {
+            queries.add(invocation.getArgument(0));
+            return rows();
+        });
+        when(transfersCache.query(any(SqlFieldsQuery.class))).then(invocation -> rows());
+
+        service.getTransfersByAccount(UUID.randomUUID(), null, null, 10, transfer -> {
+        });
+        service.getTransfersByAccount(UUID.randomUUID(), null, null, 20, transfer -> {
+        });
+
+        assertThat(queries).hasSize(4);
+        assertThat(queries.get(0).getSql()).isSameAs(queries.get(2).getSql());
+        assertThat(queries.get(1).getSql()).isSameAs(queries.get(3).getSql()).contains("accountTo = ?");
+    }
 
-        when(cursor.getAll()).thenReturn(asList(row));
+    @Test
+    void getLastTransfersBeforeTransfer() {
+        final UUID accountId = UUID.randomUUID();
+        final Transfer transfer1 = transfer(accountId, UUID.randomUUID(), TEN, 1);
+        final Transfer transfer2 = transfer(accountId, UUID.randomUUID(), TEN, 2);
+        final Transfer transfer3 = transfer(accountId, UUID.randomUUID(), TEN, 3);
+        final Transfer before = transfer(accountId, UUID.randomUUID(), TEN, 4);
+        final FieldsQueryCursor pending = rows();
+        final FieldsQueryCursor processedFrom = rows(transfer3, transfer2, transfer1);
+        final FieldsQueryCursor processedTo = rows();
+        when(pendingTransfersCache.query(any(SqlFieldsQuery.class))).thenReturn(pending);
+        when(transfersCache.query(any(SqlFieldsQuery.class))).thenReturn(processedFrom, processedTo);
+
+        final List<Transfer> transfers = new ArrayList<>();
+        service.getTransfersByAccount(accountId, null, before, 2, transfers::add);
+
+        assertThat(transfers).containsExactly(transfer2, transfer3);
+        final ArgumentCaptor<SqlFieldsQuery> query = ArgumentCaptor.forClass(SqlFieldsQuery.class);
+        verify(transfersCache, times(2)).query(query.capture());
+        assertThat(query.getValue().getSql()).contains("date < ?").endsWith("order by date desc, id desc limit ?");
+        assertThat(query.getValue().getArgs()).containsExactly(accountId, before.getDate(), before.getDate(), before.getId(), 2);
+    }
 
-        final List<Transfer> transfersByAccount = service.getTransfersByAccount(UUID.randomUUID());
-        assertThat(transfersByAccount).hasSize(2);
-        assertThat(transfersByAccount).element(0).isSameAs(transfer);
-        assertThat(transfersByAccount).element(1).isSameAs(transfer);
+    private CacheEntryEvent<PendingTransferKey, Transfer> event(EventType type, PendingTransferKey key, Transfer transfer) {
+        return new CacheEntryEvent<PendingTransferKey, Transfer>(pendingTransfersCache, type) {
+            @Override
+            public Transfer getOldValue() {
+                return null;
+            }
+
+            @Override
+            public boolean isOldValueAvailable() {
+                return false;
+            }
+
+            @Override
+            public PendingTransferKey getKey() {
+                return key;
+            }
+
+            @Override
+            public Transfer getValue() {
+                return transfer;
+            }
+
+            @Override
+            public <T> T unwrap(Class<T> clazz) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private FieldsQueryCursor rows(Transfer... transfers) {
+        final FieldsQueryCursor cursor = mock(FieldsQueryCursor.class);
+        final List<List<?>> rows = new ArrayList<>();
+        for (Transfer transfer : transfers) {
+            rows.add(asList(transfer));
+        }
+        when(cursor.iterator()).thenReturn(rows.iterator());
+        return cursor;
+    }
+
+    private PendingTransferKey key() {
+        return new PendingTransferKey(UUID.randomUUID(), UUID.randomUUID());
+    }
+
+    private Transfer transfer(UUID accountFrom, UUID accountTo, long amount, long date) {
+        final Transfer transfer = new Transfer();
+        transfer.setId(UUID.randomUUID());
+        transfer.setAccountFrom(accountFrom);
+        transfer.setAccountTo(accountTo);
+        transfer.setAmount(amount);
+        transfer.setDate(new Date(date));
+        return transfer;
     }
 }
@@ -0,0 +1,279 @@
+package ziggy.bank.service;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.binary.BinaryObject;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import ziggy.bank.ignite.IgniteInitializer;
+import ziggy.bank.model.Account;
+import ziggy.bank.model.PendingTransferKey;
+import ziggy.bank.model.Transfer;
+
+import java.util.Date;
+import java.util.UUID;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static ziggy.bank.model.Transfer.FailReason.BALANCE_OVERFLOW;
+import static ziggy.bank.model.Transfer.FailReason.INSUFFICIENT_FUNDS;
+import static ziggy.bank.model.Transfer.FailReason.TO_ACCOUNT_NOT_FOUND;
+import static ziggy.bank.model.Transfer.Status.DONE;
+import static ziggy.bank.model.Transfer.Status.FAILED;
+
+/**
+ * Every {@link ProcessingMode} against a node, so that binary processing is checked on real binary objects.
+ */
+class ProcessingModeTest {
+
+    private static Ignite ignite;
+    private static AccountService accountService;
+    private static MoneyTransferService moneyTransferService;
+
+    @BeforeAll
+    static void setUp() {
+        final IgniteInitializer initializer = new IgniteInitializer();
+        initializer.setDataRegionSize(64L << 20);
+        ignite = initializer.init();
+        accountService = new AccountService(ignite);
+        moneyTransferService = new MoneyTransferService(ignite);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        ignite.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(ProcessingMode.class)
+    void shouldProcessTransfers(ProcessingMode mode) {
+        moneyTransferService.setProcessingMode(mode);
+        accountService.setProcessingMode(mode);
+        final UUID from = accountService.createAccount(new Account(100));
+        final UUID to = accountService.createAccount(new Account(0));
+
+        final Transfer done = submit(from, to, 30);
+        final Transfer insufficientFunds = submit(from, to, 1000);
+        final Transfer unknownAccount = submit(from, UUID.randomUUID(), 10);
+
+        assertThat(moneyTransferService.processTransfers(asList(PendingTransferKey.of(done),
+                PendingTransferKey.of(insufficientFunds), PendingTransferKey.of(unknownAccount)))).isEmpty();
+
+        assertThat(accountService.getAccount(from).getBalance()).isEqualTo(70);
+        assertThat(accountService.getAccount(to).getBalance()).isEqualTo(30);
+
+        final Transfer processed = moneyTransferService.getTransfer(done.getId());
+        assertThat(processed.getStatus()).isEqualTo(DONE);
+        assertThat(processed.getFailReasons()).isEmpty();
+        assertThat(processed.getAmount()).isEqualTo(30);
+        assertThat(processed.getDate()).isEqualTo(done.getDate());
+
+        assertThat(moneyTransferService.getTransfer(insufficientFunds.getId()).getStatus()).isEqualTo(FAILED);
+        assertThat(moneyTransferService.getTransfer(insufficientFunds.getId()).getFailReasons())
+                .containsExactly(INSUFFICIENT_FUNDS);
+        assertThat(moneyTransferService.getTransfer(unknownAccount.getId()).getFailReasons())
+                .containsExactly(TO_ACCOUNT_NOT_FOUND);
+        assertThat(moneyTransferService.getTransfersByAccount(from)).extracting(Transfer::getStatus)
+                .doesNotContain(Transfer.Status.PENDING);
+    }
+
+    @ParameterizedTest
+    @EnumSource(ProcessingMode.class)
+    void shouldProcessTransfersOfBatchInSubmissionOrder(ProcessingMode mode) {
+        moneyTransferService.setProcessingMode(mode);
+        accountService.setProcessingMode(mode);
+        final UUID first = accountService.createAccount(new Account(50));
+        final UUID second = accountService.createAccount(new Account(0));
+        final UUID third = accountService.createAccount(new Account(0));
+
+        // submitted within the same ms, the transfers of a batch share their date
+        final Transfer toSecond = transfer(first, second, 50);
+        final Transfer toThird = transfer(second, third, 50);
+        moneyTransferService.submitTransfers(asList(toSecond, toThird));
+
+        assertThat(moneyTransferService.processTransfers(asList(PendingTransferKey.of(toThird),
+                PendingTransferKey.of(toSecond)))).isEmpty();
+
+        assertThat(moneyTransferService.getTransfer(toThird.getId()).getStatus()).isEqualTo(DONE);
+        assertThat(accountService.getAccount(third).getBalance()).isEqualTo(50);
+    }
+
+    @Test
+    void shouldDeferDebitOfAccountCreditedInSameChunk() {
+        moneyTransferService.setProcessingMode(ProcessingMode.ENTRY_PROCESSOR);
+        accountService.setProcessingMode(ProcessingMode.ENTRY_PROCESSOR);
+        final UUID first = accountService.createAccount(new Account(50));
+        final UUID second = accountService.createAccount(new Account(0));
+        final UUID third = accountService.createAccount(new Account(0));
+
+        final Transfer toSecond = submit(first, second, 50);
+        final Transfer toThird = submit(second, third, 50);
+        final Transfer unfunded = submit(second, third, 10);
+
+        assertThat(moneyTransferService.processTransfers(asList(PendingTransferKey.of(toSecond),
+                PendingTransferKey.of(toThird), PendingTransferKey.of(unfunded)))).isEmpty();
+
+        assertThat(moneyTransferService.getTransfer(toThird.getId()).getStatus()).isEqualTo(DONE);
+        assertThat(moneyTransferService.getTransfer(unfunded.getId()).getFailReasons()).containsExactly(INSUFFICIENT_FUNDS);
+        assertThat(accountService.getAccount(first).getBalance()).isEqualTo(0);
+        assertThat(accountService.getAccount(second).getBalance()).isEqualTo(0);
+        assertThat(accountService.getAccount(third).getBalance()).isEqualTo(50);
+    }
+
+    @Test
+    void shouldRefundDebitOfOverflowingCredit() {
+        moneyTransferService.setProcessingMode(ProcessingMode.ENTRY_PROCESSOR);
+        accountService.setProcessingMode(ProcessingMode.ENTRY_PROCESSOR);
+        final UUID from = accountService.createAccount(new Account(100));
+        final UUID to = accountService.createAccount(new Account(Long.MAX_VALUE - 5));
+
+        final Transfer overflowing = submit(from, to, 10);
+
+        assertThat(moneyTransferService.processTransfers(singletonList(PendingTransferKey.of(overflowing)))).isEmpty();
+
+        assertThat(moneyTransferService.getTransfer(overflowing.getId()).getFailReasons()).containsExactly(BALANCE_OVERFLOW);
+        assertThat(accountService.getAccount(from).getBalance()).isEqualTo(100);
+        assertThat(accountService.getAccount(to).getBalance()).isEqualTo(Long.MAX_VALUE - 5);
+    }
+
+    @Test
+    void shouldAppendCreditsToLedgerAndFoldThemOnDebit() {
+        moneyTransferService.setProcessingMode(ProcessingMode.LEDGER);
+        accountService.setProcessingMode(ProcessingMode.LEDGER);
+        final UUID first = accountService.createAccount(new Account(100));
+        final UUID second = accountService.createAccount(new Account(100));
+        final UUID hot = accountService.createAccount(new Account(0));
+
+        assertThat(moneyTransferService.processTransfers(asList(PendingTransferKey.of(submit(first, hot, 30)),
+                PendingTransferKey.of(submit(second, hot, 20))))).isEmpty();
+
+        // the credited account is not rewritten, its balance includes the ledger
+        assertThat(IgniteInitializer.accounts(ignite).get(hot).getBalance()).isEqualTo(0);
+        assertThat(new Ledger(ignite).entries(hot)).hasSize(2);
+        assertThat(accountService.getAccount(hot).getBalance()).isEqualTo(50);
+
+        final Transfer debit = submit(hot, first, 50);
+        assertThat(moneyTransferService.processTransfers(singletonList(PendingTransferKey.of(debit)))).isEmpty();
+
+        assertThat(moneyTransferService.getTransfer(debit.getId()).getStatus()).isEqualTo(DONE);
+        assertThat(IgniteInitializer.accounts(ignite).get(hot).getBalance()).isEqualTo(0);
+        assertThat(new Ledger(ignite).entries(hot)).isEmpty();
+        assertThat(accountService.getAccount(first).getBalance()).isEqualTo(120);
+        assertThat(accountService.getAccount(second).getBalance()).isEqualTo(80);
+    }
+
+    @Test
+    void shouldReadLedgerEntriesBeyondOneRead() {
+        moneyTransferService.setProcessingMode(ProcessingMode.LEDGER);
+        accountService.setProcessingMode(ProcessingMode.LEDGER);
+        final UUID from = accountService.createAccount(new Account(100));
+        final UUID hot = accountService.createAccount(new Account(0));
+        for (int i = 0; i < Ledger.SLOTS_PER_READ + 1; i++) {
+            assertThat(moneyTransferService.processTransfers(singletonList(PendingTransferKey.of(submit(from, hot, 1)))))
+                    .isEmpty();
+        }
+
+        assertThat(new Ledger(ignite).entries(hot)).hasSize(Ledger.SLOTS_PER_READ + 1);
+        assertThat(accountService.getAccount(hot).getBalance()).isEqualTo(Ledger.SLOTS_PER_READ + 1);
+    }
+
+    @Test
+    void shouldFoldLedgerOfCreditedAccountAtThreshold() {
+        moneyTransferService.setProcessingMode(ProcessingMode.LEDGER);
+        moneyTransferService.setLedgerFoldThreshold(2);
+        accountService.setProcessingMode(ProcessingMode.LEDGER);
+        try {
+            final UUID from = accountService.createAccount(new Account(100));
+            final UUID hot = accountService.createAccount(new Account(0));
+            for (int i = 0; i < 2; i++) {
+                assertThat(moneyTransferService.processTransfers(singletonList(PendingTransferKey.of(submit(from, hot, 10)))))
+                        .isEmpty();
+            }
+            assertThat(new Ledger(ignite).entries(hot)).hasSize(2);
+
+            assertThat(moneyTransferService.processTransfers(singletonList(PendingTransferKey.of(submit(from, hot, 10)))))
+                    .isEmpty();
+
+            assertThat(new Ledger(ignite).entries(hot)).isEmpty();
+            assertThat(IgniteInitializer.accounts(ignite).get(hot).getBalance()).isEqualTo(30);
+            assertThat(accountService.getAccount(hot).getBalance()).isEqualTo(30);
+        } finally {
+            moneyTransferService.setLedgerFoldThreshold(MoneyTransferService.DEFAULT_LEDGER_FOLD_THRESHOLD);
+        }
+    }
+
+    @Test
+    void shouldCheckOverflowOfCreditedAccountAgainstLedger() {
+        moneyTransferService.setProcessingMode(ProcessingMode.LEDGER);
+        accountService.setProcessingMode(ProcessingMode.LEDGER);
+        final UUID from = accountService.createAccount(new Account(100));
+        final UUID hot = accountService.createAccount(new Account(Long.MAX_VALUE - 10));
+
+        final Transfer credited = submit(from, hot, 6);
+        assertThat(moneyTransferService.processTransfers(singletonList(PendingTransferKey.of(credited)))).isEmpty();
+        final Transfer overflowing = submit(from, hot, 6);
+        assertThat(moneyTransferService.processTransfers(singletonList(PendingTransferKey.of(overflowing)))).isEmpty();
+
+        assertThat(moneyTransferService.getTransfer(credited.getId()).getStatus()).isEqualTo(DONE);
+        assertThat(moneyTransferService.getTransfer(overflowing.getId()).getFailReasons()).containsExactly(BALANCE_OVERFLOW);
+        assertThat(accountService.getAccount(hot).getBalance()).isEqualTo(Long.MAX_VALUE - 4);
+    }
+
+    @Test
+    void shouldFoldLedgerBeforeSwitchingMode() {
+        moneyTransferService.setProcessingMode(ProcessingMode.LEDGER);
+        accountService.setProcessingMode(ProcessingMode.OBJECT);
+        final UUID from = accountService.createAccount(new Account(100));
+        final UUID to = accountService.createAccount(new Account(0));
+        assertThat(moneyTransferService.processTransfers(singletonList(PendingTransferKey.of(submit(from, to, 40)))))
+                .isEmpty();
+
+        assertThat(moneyTransferService.foldLedger()).isZero();
+
+        assertThat(new Ledger(ignite).primaryAccounts()).isEmpty();
+        assertThat(IgniteInitializer.accounts(ignite).get(to).getBalance()).isEqualTo(40);
+        assertThat(accountService.getAccount(to).getBalance()).isEqualTo(40);
+    }
+
+    @Test
+    void shouldStoreTransferWithCompactFields() {
+        final Transfer transfer = new Transfer();
+        transfer.setId(UUID.randomUUID());
+        transfer.setAccountFrom(UUID.randomUUID());
+        transfer.setAccountTo(UUID.randomUUID());
+        transfer.setAmount(10);
+        transfer.setDate(new Date(1234));
+        transfer.setSequence(7);
+        transfer.setStatus(FAILED);
+        transfer.getFailReasons().addAll(asList(TO_ACCOUNT_NOT_FOUND, INSUFFICIENT_FUNDS));
+
+        final BinaryObject binary = ignite.binary().toBinary(transfer);
+        assertThat(binary.<Byte>field("status")).isEqualTo((byte) FAILED.ordinal());
+        assertThat(binary.<Integer>field("failReasons"))
+                .isEqualTo(1 << TO_ACCOUNT_NOT_FOUND.ordinal() | 1 << INSUFFICIENT_FUNDS.ordinal());
+        assertThat(binary.<Date>field("date")).isEqualTo(new Date(1234));
+        assertThat(binary.<Long>field("sequence")).isEqualTo(7);
+
+        final Transfer deserialized = binary.deserialize();
+        assertThat(deserialized).isEqualToIgnoringGivenFields(transfer, "failReasons");
+        assertThat(deserialized.getFailReasons()).containsExactly(INSUFFICIENT_FUNDS, TO_ACCOUNT_NOT_FOUND);
+    }
+
+    private Transfer submit(UUID from, UUID to, long amount) {
+        final Transfer transfer = transfer(from, to, amount);
+        moneyTransferService.submitTransfer(transfer);
+        return transfer;
+    }
+
+    private static Transfer transfer(UUID from, UUID to, long amount) {
+        final Transfer transfer = new Transfer();
+        transfer.setAccountFrom(from);
+        transfer.setAccountTo(to);
+        transfer.setAmount(amount);
+        return transfer;
+    }
+
+}
@@ -0,0 +1,172 @@
+package ziggy.bank.service;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteCache;
+import org.apache.ignite.IgniteCluster;
+import org.apache.ignite.cache.query.ContinuousQuery;
+import org.apache.ignite.cache.query.QueryCursor;
+import org.apache.ignite.cluster.ClusterNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import ziggy.bank.model.Transfer;
+import ziggy.bank.model.TransferWaiterKey;
+
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.EventType;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static ziggy.bank.utils.Constants.TRANSFERS;
+import static ziggy.bank.utils.Constants.TRANSFER_WAITERS;
+
+class TransferCompletionListenerTest {
+
+    private static final UUID NODE_ID = UUID.randomUUID();
+
+    private Ignite ignite;
+    private IgniteCache transfersCache;
+    private IgniteCache waitersCache;
+    private QueryCursor cursor;
+    private ContinuousQuery<UUID, Transfer> query;
+    private TransferCompletionListener listener;
+
+    @BeforeEach
+    void setUp() {
+        ignite = mock(Ignite.class);
+        transfersCache = mock(IgniteCache.class);
+        waitersCache = mock(IgniteCache.class);
+        cursor = mock(QueryCursor.class);
+        final IgniteCluster cluster = mock(IgniteCluster.class);
+        final ClusterNode localNode = mock(ClusterNode.class);
+        when(ignite.cache(TRANSFERS)).thenReturn(transfersCache);
+        when(ignite.cache(TRANSFER_WAITERS)).thenReturn(waitersCache);
+        when(ignite.cluster()).thenReturn(cluster);
+        when(cluster.localNode()).thenReturn(localNode);
+        when(localNode.id()).thenReturn(NODE_ID);
+        final ArgumentCaptor<ContinuousQuery> queryCaptor = ArgumentCaptor.forClass(ContinuousQuery.class);
+        when(transfersCache.query(queryCaptor.capture())).thenReturn(cursor);
+
+        listener = new TransferCompletionListener(ignite);
+        listener.start();
+        query = queryCaptor.getValue();
+    }
+
+    @AfterEach
+    void tearDown() {
+        listener.stop();
+        verify(cursor).close();
+    }
+
+    @Test
+    void shouldCompleteWhenTransferIsProcessed() throws Exception {
+        final Transfer transfer = transfer();
+
+        final CompletableFuture<Transfer> first = listener.awaitProcessed(transfer.getId(), 10_000);
+        final CompletableFuture<Transfer> second = listener.awaitProcessed(transfer.getId(), 10_000);
+        assertThat(first).isNotDone();
+
+        query.getLocalListener().onUpdated(singletonList(event(transfer)));
+
+        assertThat(first.get(1, TimeUnit.SECONDS)).isSameAs(transfer);
+        assertThat(second.get(1, TimeUnit.SECONDS)).isSameAs(transfer);
+        assertThat(listener.waiting()).isZero();
+        final TransferWaiterKey waiter = new TransferWaiterKey(transfer.getId(), NODE_ID);
+        verify(waitersCache).put(waiter, Boolean.TRUE);
+        verify(waitersCache, timeout(1000)).removeAsync(waiter);
+    }
+
+    @Test
+    void shouldReceiveOnlyEventsOfWaitedTransfers() {
+        final Transfer waited = transfer();
+        final Transfer other = transfer();
+        when(waitersCache.localPeek(new TransferWaiterKey(waited.getId(), NODE_ID))).thenReturn(Boolean.TRUE);
+        final TransferCompletionListener.WaitedTransferFilter filter =
+                (TransferCompletionListener.WaitedTransferFilter) query.getRemoteFilterFactory().create();
+        filter.ignite = ignite;
+
+        assertThat(filter.evaluate(event(waited))).isTrue();
+        assertThat(filter.evaluate(event(other))).isFalse();
+    }
+
+    @Test
+    void shouldCompleteIfAlreadyProcessed() throws Exception {
+        final Transfer transfer = transfer();
+        when(transfersCache.get(transfer.getId())).thenReturn(transfer);
+
+        assertThat(listener.awaitProcessed(transfer.getId(), 10_000).get(1, TimeUnit.SECONDS)).isSameAs(transfer);
+        assertThat(listener.waiting()).isZero();
+    }
+
+    @Test
+    void shouldCompleteWithNullAfterTimeout() throws Exception {
+        final UUID id = UUID.randomUUID();
+        assertThat(listener.awaitProcessed(id, 50).get(1, TimeUnit.SECONDS)).isNull();
+        assertThat(listener.waiting()).isZero();
+        verify(waitersCache, timeout(1000)).removeAsync(new TransferWaiterKey(id, NODE_ID));
+    }
+
+    @Test
+    void shouldKeepRegistrationWhileAnotherCallerWaits() throws Exception {
+        final Transfer transfer = transfer();
+        final TransferWaiterKey waiter = new TransferWaiterKey(transfer.getId(), NODE_ID);
+
+        final CompletableFuture<Transfer> timedOut = listener.awaitProcessed(transfer.getId(), 50);
+        final CompletableFuture<Transfer> waiting = listener.awaitProcessed(transfer.getId(), 10_000);
+        assertThat(timedOut.get(1, TimeUnit.SECONDS)).isNull();
+        assertThat(listener.waiting()).isOne();
+        verify(waitersCache, never()).removeAsync(waiter);
+
+        query.getLocalListener().onUpdated(singletonList(event(transfer)));
+
+        assertThat(waiting.get(1, TimeUnit.SECONDS)).isSameAs(transfer);
+        assertThat(listener.waiting()).isZero();
+        verify(waitersCache).put(waiter, Boolean.TRUE);
+        verify(waitersCache, timeout(1000)).removeAsync(waiter);
+    }
+
+    private Transfer transfer() {
+        final Transfer transfer = new Transfer();
+        transfer.setId(UUID.randomUUID());
+        transfer.setStatus(Transfer.Status.DONE);
+        return transfer;
+    }
+
+    private CacheEntryEvent<UUID, Transfer> event(Transfer transfer) {
+        return new CacheEntryEvent<UUID, Transfer>(transfersCache, EventType.CREATED) {
+            @Override
+            public Transfer getOldValue() {
+                return null;
+            }
+
+            @Override
+            public boolean isOldValueAvailable() {
+                return false;
+            }
+
+            @Override
+            public UUID getKey() {
+                return transfer.getId();
+            }
+
+            @Override
+            public Transfer getValue() {
+                return transfer;
+            }
+
+            @Override
+            public <T> T unwrap(Class<T> clazz) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
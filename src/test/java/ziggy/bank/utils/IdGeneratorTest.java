@@ -0,0 +1,60 @@
+package ziggy.bank.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IdGeneratorTest {
+
+    @ParameterizedTest
+    @EnumSource(IdGenerator.Type.class)
+    void shouldGenerateUniqueIds(IdGenerator.Type type) {
+        final IdGenerator generator = IdGenerator.create(type);
+        final List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            ids.add(generator.next());
+        }
+        assertThat(new HashSet<>(ids)).hasSize(ids.size());
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = IdGenerator.Type.class, names = {"TIME_ORDERED", "SEQUENCE"})
+    void shouldGenerateIncreasingIds(IdGenerator.Type type) {
+        final IdGenerator generator = IdGenerator.create(type);
+        UUID previous = generator.next();
+        // more ids than the counter of one millisecond holds
+        for (int i = 0; i < 100_000; i++) {
+            final UUID next = generator.next();
+            assertThat(next).isGreaterThan(previous);
+            previous = next;
+        }
+    }
+
+    @Test
+    void shouldGenerateVersion7Ids() {
+        final long before = System.currentTimeMillis();
+        final UUID id = IdGenerator.create(IdGenerator.Type.TIME_ORDERED).next();
+
+        assertThat(id.version()).isEqualTo(7);
+        assertThat(id.variant()).isEqualTo(2);
+        assertThat(id.getMostSignificantBits() >>> 16).isBetween(before, before + TimeUnit.SECONDS.toMillis(1));
+    }
+
+    @Test
+    void shouldOrderTimeOrderedIdsOfDifferentGenerators() throws InterruptedException {
+        final UUID first = IdGenerator.create(IdGenerator.Type.TIME_ORDERED).next();
+        Thread.sleep(2);
+        final UUID second = IdGenerator.create(IdGenerator.Type.TIME_ORDERED).next();
+
+        assertThat(second).isGreaterThan(first);
+    }
+
+}